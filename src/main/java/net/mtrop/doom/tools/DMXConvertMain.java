@@ -6,24 +6,32 @@
 package net.mtrop.doom.tools;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.lang.ProcessBuilder.Redirect;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
-import net.mtrop.doom.sound.DMXSound;
 import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.exception.OptionParseException;
+import net.mtrop.doom.tools.struct.AsyncFactory;
 import net.mtrop.doom.tools.struct.ProcessCallable;
+import net.mtrop.doom.tools.struct.util.IOUtils;
 
 /**
  * Main class for Utility.
@@ -51,6 +59,8 @@ public final class DMXConvertMain
 	private static final String SWITCH_FFMPEG_PATH = "--ffmpeg";
 	private static final String SWITCH_OUTPUTDIR = "--output-dir";
 	private static final String SWITCH_OUTPUTDIR2 = "-o";
+	private static final String SWITCH_THREADS = "--threads";
+	private static final String SWITCH_THREADS2 = "-t";
 
 	/**
 	 * Program options.
@@ -68,6 +78,7 @@ public final class DMXConvertMain
 		private boolean onlyJSPI;
 		private File ffmpegPath;
 		private File outputDirectory;
+		private int threads;
 		
 		private Options()
 		{
@@ -81,6 +92,7 @@ public final class DMXConvertMain
 			this.onlyJSPI = false;
 			this.ffmpegPath = null;
 			this.outputDirectory = null;
+			this.threads = 1;
 		}
 
 		public Options setStdout(OutputStream out) 
@@ -119,6 +131,12 @@ public final class DMXConvertMain
 			return this;
 		}
 		
+		public Options setThreads(int threads) 
+		{
+			this.threads = Math.max(threads, 1);
+			return this;
+		}
+		
 		public Options addInputFile(File file)
 		{
 			this.sourceFiles.add(file);
@@ -127,18 +145,233 @@ public final class DMXConvertMain
 		
 	}
 	
+	/**
+	 * Thrown when reading from a decoder fails.
+	 */
+	private static class DecoderException extends IOException
+	{
+		private static final long serialVersionUID = 5416834201966437521L;
+
+		private DecoderException(IOException cause)
+		{
+			super(cause);
+		}
+	}
+	
+	/**
+	 * Writes a DMX sound file one block of samples at a time, so that a sound is never held in memory in full.
+	 * <p>The DMX format is: a 2-byte format number (3), a 2-byte sample rate, a 4-byte sample count, 
+	 * then 16 padding samples, the samples themselves, and 16 more padding samples (all little-endian).
+	 * The sample count includes the padding. Padding repeats the first and last samples.
+	 * The count is only known at the end, so it is written when the writer is closed.
+	 */
+	private static class DMXSoundWriter implements AutoCloseable
+	{
+		private static final int FORMAT_NUMBER = 3;
+		private static final int PADDING = 16;
+		/** Used for padding in a sound with no samples. */
+		private static final byte SILENCE = (byte)0x80;
+
+		private RandomAccessFile file;
+		private long sampleCount;
+		private byte lastSample;
+		
+		private DMXSoundWriter(File outputFile, int sampleRate) throws IOException
+		{
+			this.file = new RandomAccessFile(outputFile, "rw");
+			this.sampleCount = 0;
+			this.lastSample = SILENCE;
+			file.setLength(0L);
+			file.write(new byte[]{
+				(byte)(FORMAT_NUMBER & 0x0ff), (byte)((FORMAT_NUMBER >> 8) & 0x0ff),
+				(byte)(sampleRate & 0x0ff), (byte)((sampleRate >> 8) & 0x0ff),
+				0, 0, 0, 0 // sample count, written on close.
+			});
+		}
+		
+		/**
+		 * Writes a block of unsigned 8-bit samples.
+		 * @param buffer the source buffer.
+		 * @param offset the offset into the buffer.
+		 * @param length the amount of samples to write.
+		 * @throws IOException if a write error occurs.
+		 */
+		private void writeSamples(byte[] buffer, int offset, int length) throws IOException
+		{
+			if (length <= 0)
+				return;
+			if (sampleCount == 0)
+				writePadding(buffer[offset]);
+			file.write(buffer, offset, length);
+			sampleCount += length;
+			lastSample = buffer[offset + length - 1];
+		}
+		
+		private void writePadding(byte sample) throws IOException
+		{
+			byte[] padding = new byte[PADDING];
+			Arrays.fill(padding, sample);
+			file.write(padding);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				if (sampleCount == 0)
+					writePadding(SILENCE);
+				writePadding(lastSample);
+				
+				long count = sampleCount + (PADDING * 2);
+				file.seek(4L);
+				file.write(new byte[]{
+					(byte)(count & 0x0ff), (byte)((count >> 8) & 0x0ff), (byte)((count >> 16) & 0x0ff), (byte)((count >> 24) & 0x0ff)
+				});
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+	}
+	
+	/**
+	 * Runs FFmpeg decodes for a conversion, never more than a set amount at once.
+	 * FFmpeg decodes one input per process, so a process is started for each file, but the
+	 * threads that collect each process's error output are kept and reused for the whole run.
+	 */
+	private static class FFmpegDecoderPool implements AutoCloseable
+	{
+		private String executable;
+		private Semaphore slots;
+		private AsyncFactory async;
+		
+		private FFmpegDecoderPool(String executable, int size)
+		{
+			this.executable = executable;
+			this.slots = new Semaphore(size, true);
+			this.async = new AsyncFactory(size);
+		}
+		
+		/**
+		 * Starts decoding a file, waiting for a free slot if all of them are in use.
+		 * The slot is held until the returned decode is closed.
+		 * @param input the input file.
+		 * @return the running decode.
+		 * @throws IOException if FFmpeg could not be started, or the wait was interrupted.
+		 */
+		private FFmpegDecode open(File input) throws IOException
+		{
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for FFmpeg.");
+			}
+			
+			try {
+				Process process = ProcessCallable.create(executable, 
+					"-nostdin", "-hide_banner", "-loglevel", "error",
+					"-i", input.getPath(), "-f", "wav", "-acodec", "pcm_s16le", "-ac", "2", "-"
+				).exec();
+				process.getOutputStream().close();
+				return new FFmpegDecode(process, async.spawn(()->IOUtils.getBinaryContents(process.getErrorStream())));
+			} catch (IOException | RuntimeException e) {
+				slots.release();
+				throw e;
+			}
+		}
+		
+		@Override
+		public void close()
+		{
+			async.shutDownNow();
+		}
+		
+		/**
+		 * A single running FFmpeg decode.
+		 */
+		private class FFmpegDecode implements AutoCloseable
+		{
+			private Process process;
+			private AsyncFactory.Instance<byte[]> errorOutput;
+			private boolean closed;
+			
+			private FFmpegDecode(Process process, AsyncFactory.Instance<byte[]> errorOutput)
+			{
+				this.process = process;
+				this.errorOutput = errorOutput;
+				this.closed = false;
+			}
+			
+			/**
+			 * @return the decoded audio stream, or null if FFmpeg did not produce readable audio.
+			 * @throws IOException if the stream could not be read.
+			 */
+			private AudioInputStream getAudioStream() throws IOException
+			{
+				try {
+					return AudioSystem.getAudioInputStream(new BufferedInputStream(process.getInputStream(), 2048));
+				} catch (UnsupportedAudioFileException e) {
+					return null;
+				}
+			}
+			
+			/**
+			 * Gets what FFmpeg wrote to its standard error.
+			 * Only complete after this decode is closed.
+			 * @return the error output, or an empty string if there was none.
+			 */
+			private String getErrorOutput()
+			{
+				byte[] data = errorOutput.resultNonBlocking();
+				return data != null ? new String(data).trim() : "";
+			}
+			
+			/**
+			 * Stops the decode if it is still running, waits for the process to end, and frees its slot. 
+			 */
+			@Override
+			public void close()
+			{
+				if (closed)
+					return;
+				closed = true;
+				try {
+					// FFmpeg stops on its own once nothing reads its output.
+					Common.close(process.getInputStream());
+					if (!process.waitFor(5, TimeUnit.SECONDS))
+						process.destroyForcibly().waitFor();
+					errorOutput.join();
+				} catch (InterruptedException e) {
+					process.destroyForcibly();
+				} finally {
+					slots.release();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Program context.
 	 */
 	private static class Context
 	{
-		private static final File NULL_FILE = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+		/** Results of FFmpeg probes, by executable, so that each one is only probed once. */
+		private static final Map<String, Boolean> FFMPEG_PROBES = new ConcurrentHashMap<>();
+		
+		/** Size of the decoded sample buffer, in bytes (one byte per sample). */
+		private static final int SAMPLE_BUFFER_SIZE = 16384;
 		
 		private Options options;
+		private ThreadLocal<byte[]> sampleBuffer;
+		private FFmpegDecoderPool ffmpegPool;
 	
 		private Context(Options options)
 		{
 			this.options = options;
+			this.sampleBuffer = ThreadLocal.withInitial(()->new byte[SAMPLE_BUFFER_SIZE]);
+			this.ffmpegPool = null;
 		}
 		
 		public int call()
@@ -192,77 +425,227 @@ public final class DMXConvertMain
 			boolean searchFFmpeg = !options.onlyJSPI && useFFmpeg;
 			int convertedCount = 0;
 			
-			for (File f : options.sourceFiles)
+			if (searchFFmpeg)
+				ffmpegPool = new FFmpegDecoderPool(getFFmpegExecutable(options.ffmpegPath), options.threads);
+			
+			try
 			{
-				AudioInputStream ais = null;
-				if (searchSPI)
+				if (options.threads > 1 && options.sourceFiles.size() > 1)
 				{
-					try {
-						ais = openSPIAudioStreamForFile(f);
-					} catch (IOException e) {
-						options.stderr.printf("ERROR: Could not read %s.\n", f.getPath());
-					}
+					convertedCount = convertParallel(searchSPI, searchFFmpeg);
 				}
+				else for (File f : options.sourceFiles)
+				{
+					if (convertFile(f, searchSPI, searchFFmpeg, options.stdout, options.stderr))
+						convertedCount++;
+				}
+			}
+			finally
+			{
+				if (ffmpegPool != null)
+					ffmpegPool.close();
+			}
 
-				if (ais == null && searchFFmpeg)
+			options.stdout.printf("%d of %d file(s) converted.\n", convertedCount, options.sourceFiles.size());
+			return convertedCount == options.sourceFiles.size() ? ERROR_NONE : ERROR_CONVERSION_SKIPPED;
+		}
+		
+		// Converts each file on a worker pool, reporting each file's output in input order.
+		private int convertParallel(final boolean searchSPI, final boolean searchFFmpeg)
+		{
+			List<File> files = options.sourceFiles;
+			List<AsyncFactory.Instance<Boolean>> results = new LinkedList<>();
+			List<ByteArrayOutputStream> outBuffers = new LinkedList<>();
+			List<ByteArrayOutputStream> errBuffers = new LinkedList<>();
+			
+			AsyncFactory async = new AsyncFactory(Math.min(options.threads, files.size()));
+			try
+			{
+				for (final File f : files)
 				{
+					final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+					final ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+					outBuffers.add(outBuffer);
+					errBuffers.add(errBuffer);
+					results.add(async.spawn(()->convertFile(f, searchSPI, searchFFmpeg, new PrintStream(outBuffer, true), new PrintStream(errBuffer, true))));
+				}
+				
+				int convertedCount = 0;
+				for (File f : files)
+				{
+					AsyncFactory.Instance<Boolean> result = results.remove(0);
+					ByteArrayOutputStream outBuffer = outBuffers.remove(0);
+					ByteArrayOutputStream errBuffer = errBuffers.remove(0);
+					boolean converted;
 					try {
-						ais = openFFmpegAudioStreamForFile(options.ffmpegPath, f);
-					} catch (IOException e) {
-						options.stderr.printf("ERROR: Could not read %s.\n", f.getPath());
+						converted = result.get();
+					} catch (InterruptedException e) {
+						converted = false;
+						options.stderr.printf("ERROR: Interrupted while converting %s.\n", f.getPath());
+					} catch (ExecutionException e) {
+						converted = false;
+						options.stderr.printf("ERROR: Could not convert %s: %s\n", f.getPath(), e.getCause().getLocalizedMessage());
 					}
+					options.stdout.print(outBuffer.toString());
+					options.stderr.print(errBuffer.toString());
+					if (converted)
+						convertedCount++;
+				}
+				return convertedCount;
+			}
+			finally
+			{
+				async.shutDownNow();
+			}
+		}
+		
+		/**
+		 * Converts a single file.
+		 * Safe to call from multiple threads.
+		 * @param f the input file.
+		 * @param searchSPI if true, attempt to decode using Java SPI.
+		 * @param searchFFmpeg if true, attempt to decode using FFmpeg.
+		 * @param out the output stream for messages.
+		 * @param err the error stream for messages.
+		 * @return true if converted, false if not.
+		 */
+		private boolean convertFile(File f, boolean searchSPI, boolean searchFFmpeg, PrintStream out, PrintStream err)
+		{
+			AudioInputStream ais = null;
+			if (searchSPI)
+			{
+				try {
+					ais = openSPIAudioStreamForFile(f);
+				} catch (IOException e) {
+					err.printf("ERROR: Could not read %s.\n", f.getPath());
+				}
+			}
+
+			if (ais == null && searchFFmpeg)
+				return convertFFmpegFile(f, out, err);
+			
+			if (ais == null)
+			{
+				err.printf("ERROR: Could not find decoder for %s. Skipping...\n", f.getPath());
+				return false;
+			}
+			
+			return convertStream(f, ais, out, err);
+		}
+		
+		// Converts a file decoded by FFmpeg, reporting what FFmpeg said if it fails.
+		private boolean convertFFmpegFile(File f, PrintStream out, PrintStream err)
+		{
+			FFmpegDecoderPool.FFmpegDecode decode;
+			try {
+				decode = ffmpegPool.open(f);
+			} catch (IOException e) {
+				err.printf("ERROR: Could not read %s.\n", f.getPath());
+				err.printf("ERROR: Could not find decoder for %s. Skipping...\n", f.getPath());
+				return false;
+			}
+
+			boolean converted = false;
+			try
+			{
+				AudioInputStream ais;
+				try {
+					ais = decode.getAudioStream();
+				} catch (IOException e) {
+					ais = null;
+					err.printf("ERROR: Could not read %s.\n", f.getPath());
 				}
 				
 				if (ais == null)
+					err.printf("ERROR: Could not find decoder for %s. Skipping...\n", f.getPath());
+				else
+					converted = convertStream(f, ais, out, err);
+			}
+			finally
+			{
+				decode.close();
+			}
+			
+			if (!converted)
+			{
+				String errorOutput = decode.getErrorOutput();
+				if (!errorOutput.isEmpty())
 				{
-					options.stderr.printf("ERROR: Could not find decoder for %s. Skipping...\n", f.getPath());
-					continue;
+					err.printf("FFmpeg output for %s:\n", f.getPath());
+					for (String line : errorOutput.split("\\r?\\n"))
+						err.println("    " + line);
 				}
+			}
+			return converted;
+		}
+		
+		// Converts a decodable audio stream to DMX, closing the stream.
+		private boolean convertStream(File f, AudioInputStream ais, PrintStream out, PrintStream err)
+		{
+			String outName = Common.getFileNameWithoutExtension(f) + ".dmx";
+			File outputFile = options.outputDirectory != null
+				? new File(options.outputDirectory + File.separator + outName) 
+				: new File((f.getParent() == null ? "." + File.separator : f.getParent() + File.separator) + outName);
+			
+			if (!Common.createPathForFile(outputFile))
+			{
+				err.printf("ERROR: Could not create path for %s. Skipping...\n", outputFile);
+				Common.close(ais);
+				return false;
+			}
 				
-				String outName = Common.getFileNameWithoutExtension(f) + ".dmx";
-				File outputFile = options.outputDirectory != null
-					? new File(options.outputDirectory + File.separator + outName) 
-					: new File((f.getParent() == null ? "." + File.separator : f.getParent() + File.separator) + outName);
+			try (AudioInputStream decoded = getDecoderStream(ais))
+			{
+				int sampleRate = (int)decoded.getFormat().getSampleRate();
+				if (sampleRate < 1 || sampleRate > 65535)
+				{
+					err.printf("ERROR: Sample rate of %s (%d) can't be stored in a DMX sound. Skipping...\n", f.getPath(), sampleRate);
+					return false;
+				}
 				
-				if (!Common.createPathForFile(outputFile))
+				byte[] buffer = sampleBuffer.get();
+				try (DMXSoundWriter writer = new DMXSoundWriter(outputFile, sampleRate))
 				{
-					options.stderr.printf("ERROR: Could not create path for %s. Skipping...\n", outputFile);
-					continue;
+					// Decoded stream is 8-bit unsigned mono, so one byte is one DMX sample.
+					int buf;
+					while ((buf = readSamples(decoded, buffer)) > 0)
+						writer.writeSamples(buffer, 0, buf);
 				}
-					
-				try (AudioInputStream decoded = getDecoderStream(ais))
+				catch (DecoderException e)
 				{
-					AudioFormat format = decoded.getFormat();
-					byte[] sample = new byte[1];
-					
-					DMXSound dmx = new DMXSound((int)format.getSampleRate());
-					
-					while (decoded.read(sample) > 0)
-						dmx.addSample((double)((sample[0] & 0x0ff) - 128) / 128.0);
-					
-					try (FileOutputStream fos = new FileOutputStream(outputFile))
-					{
-						dmx.writeBytes(fos);
-						options.stdout.printf("Wrote %s.\n", outputFile.getPath());
-						convertedCount++;
-					} 
-					catch (IOException e) 
-					{
-						options.stderr.printf("ERROR: Could not write %s.\n", outputFile.getPath());
-					}
-					catch (SecurityException e) 
-					{
-						options.stderr.printf("ERROR: Could not write %s (ACCESS DENIED).\n", outputFile.getPath());
-					}
-				} 
+					err.printf("ERROR: Could not decode %s.\n", f.getPath());
+					outputFile.delete();
+					return false;
+				}
 				catch (IOException e) 
 				{
-					options.stderr.printf("ERROR: Could not open decoder for %s.\n", f.getPath());
+					err.printf("ERROR: Could not write %s.\n", outputFile.getPath());
+					return false;
 				}
+				catch (SecurityException e) 
+				{
+					err.printf("ERROR: Could not write %s (ACCESS DENIED).\n", outputFile.getPath());
+					return false;
+				}
+				
+				out.printf("Wrote %s.\n", outputFile.getPath());
+				return true;
+			} 
+			catch (IOException e) 
+			{
+				err.printf("ERROR: Could not open decoder for %s.\n", f.getPath());
+			}
+			return false;
+		}
+		
+		// Reads samples, separating decoder errors from write errors.
+		private static int readSamples(AudioInputStream decoded, byte[] buffer) throws DecoderException
+		{
+			try {
+				return decoded.read(buffer);
+			} catch (IOException e) {
+				throw new DecoderException(e);
 			}
-
-			options.stdout.printf("%d of %d file(s) converted.\n", convertedCount, options.sourceFiles.size());
-			return convertedCount == options.sourceFiles.size() ? ERROR_NONE : ERROR_CONVERSION_SKIPPED;
 		}
 		
 		// Wraps an audio stream into a decoder. 
@@ -290,34 +673,22 @@ public final class DMXConvertMain
 			}
 		}
 		
-		// Opens an audio stream via FFmpeg
-		// Throws SecurityException or UnsupportedAudioFileException
-		private AudioInputStream openFFmpegAudioStreamForFile(File ffmpegPath, File input) throws IOException
+		private static String getFFmpegExecutable(File ffmpegPath)
 		{
-			String exe = ffmpegPath != null ? ffmpegPath.getAbsolutePath() : "ffmpeg";
-
-			Process proc = (new ProcessBuilder())
-				.command(
-					exe, "-i", input.getPath(), "-f", "wav", "-acodec", "pcm_s16le", "-ac", "2", "-"
-				)
-				.redirectError(Redirect.appendTo(NULL_FILE))
-				.redirectOutput(Redirect.PIPE)
-			.start();
-			try {
-				return AudioSystem.getAudioInputStream(new BufferedInputStream(proc.getInputStream(), 2048));
-			} catch (UnsupportedAudioFileException e) {
-				return null;
-			}
+			return ffmpegPath != null ? ffmpegPath.getAbsolutePath() : "ffmpeg";
 		}
 		
-		private boolean detectFFmpeg(File ffmpegPath)
+		// Probes for FFmpeg once per executable.
+		private static boolean detectFFmpeg(File ffmpegPath)
 		{
-			try {
-				ProcessCallable.create(ffmpegPath != null ? ffmpegPath.getAbsolutePath() : "ffmpeg").call();
-				return true;
-			} catch (Exception e) {
-				return false;
-			}
+			return FFMPEG_PROBES.computeIfAbsent(getFFmpegExecutable(ffmpegPath), (exe)->{
+				try {
+					ProcessCallable.create(exe, "-version").call();
+					return true;
+				} catch (Exception e) {
+					return false;
+				}
+			});
 		}
 		
 	}
@@ -339,6 +710,7 @@ public final class DMXConvertMain
 		final int STATE_START = 0;
 		final int STATE_FFMPEG = 1;
 		final int STATE_OUTPUTDIR = 2;
+		final int STATE_THREADS = 3;
 		int state = STATE_START;
 		
 		for (int i = 0; i < args.length; i++)
@@ -363,6 +735,8 @@ public final class DMXConvertMain
 						state = STATE_FFMPEG;
 					else if (arg.equals(SWITCH_OUTPUTDIR) || arg.equals(SWITCH_OUTPUTDIR2))
 						state = STATE_OUTPUTDIR;
+					else if (arg.equals(SWITCH_THREADS) || arg.equals(SWITCH_THREADS2))
+						state = STATE_THREADS;
 					else
 						options.sourceFiles.add(new File(arg));
 				}
@@ -381,6 +755,21 @@ public final class DMXConvertMain
 					state = STATE_START;
 				}
 				break;
+
+				case STATE_THREADS:
+				{
+					int n;
+					try {
+						n = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					}
+					if (n < 1)
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					options.setThreads(n);
+					state = STATE_START;
+				}
+				break;
 			}
 		}
 
@@ -388,6 +777,8 @@ public final class DMXConvertMain
 			throw new OptionParseException("ERROR: Expected path to FFMpeg.");
 		if (state == STATE_OUTPUTDIR)
 			throw new OptionParseException("ERROR: Expected path to output directory.");
+		if (state == STATE_THREADS)
+			throw new OptionParseException("ERROR: Expected number of threads.");
 
 		return options;
 	}
@@ -461,6 +852,9 @@ public final class DMXConvertMain
 		out.println("    -o [dir]            output file is placed in the source file's directory.");
 		out.println("                        If the output directory is not found, it is created.");
 		out.println();
+		out.println("    --threads [num]     Converts files using [num] worker threads. Results");
+		out.println("    -t [num]            are still reported in input order. Default is 1.");
+		out.println();
 		out.println("    --ffmpeg [file]     Sets the path to FFmpeg. If not provided, it is");
 		out.println("                        searched for on the PATH.");
 		out.println();
@@ -75,6 +75,8 @@ public final class DecoHackMain
 	private static final String SWITCH_BUDGET2 = "-b";
 	private static final String SWITCH_SOURCE_OUTPUT = "--source-output";
 	private static final String SWITCH_SOURCE_OUTPUT2 = "-s";
+	private static final String SWITCH_CACHE = "--cache";
+	private static final String SWITCH_CACHE2 = "-c";
 
 	/**
 	 * Program options.
@@ -96,6 +98,7 @@ public final class DecoHackMain
 		private boolean outputBudget;
 
 		private File outSourceFile;
+		private File cacheFile;
 		
 		private Options()
 		{
@@ -111,6 +114,7 @@ public final class DecoHackMain
 			this.outputBudget = false;
 			
 			this.outSourceFile = null;
+			this.cacheFile = null;
 		}
 
 		public Options setStdout(OutputStream out) 
@@ -165,6 +169,12 @@ public final class DecoHackMain
 			return this;
 		}
 		
+		public Options setCacheFile(File cacheFile) 
+		{
+			this.cacheFile = cacheFile;
+			return this;
+		}
+		
 	}
 	
 	/**
@@ -247,7 +257,7 @@ public final class DecoHackMain
 			AbstractPatchContext<?> context;
 			try 
 			{
-				context = DecoHackParser.read(options.inFiles);
+				context = DecoHackParser.read(options.inFiles, options.cacheFile);
 			} 
 			catch (PreprocessorException e) 
 			{
@@ -367,6 +377,7 @@ public final class DecoHackMain
 		final int STATE_OUTCHARSET = 2;
 		final int STATE_DUMPRES = 3;
 		final int STATE_SOURCEOUTFILE = 4;
+		final int STATE_CACHEFILE = 5;
 		int state = STATE_START;
 
 		for (int i = 0; i < args.length; i++)
@@ -398,6 +409,8 @@ public final class DecoHackMain
 						state = STATE_SOURCEOUTFILE;
 					else if (arg.equals(SWITCH_OUTPUTCHARSET) || arg.equals(SWITCH_OUTPUTCHARSET2))
 						state = STATE_OUTCHARSET;
+					else if (arg.equals(SWITCH_CACHE) || arg.equals(SWITCH_CACHE2))
+						state = STATE_CACHEFILE;
 					else
 						options.inFiles.add(new File(arg));
 				}
@@ -436,6 +449,13 @@ public final class DecoHackMain
 					state = STATE_START;
 				}
 				break;
+				
+				case STATE_CACHEFILE:
+				{
+					options.cacheFile = new File(arg);
+					state = STATE_START;
+				}
+				break;
 			}
 		}
 		
@@ -443,6 +463,8 @@ public final class DecoHackMain
 			throw new OptionParseException("ERROR: Expected output file.");
 		if (state == STATE_OUTCHARSET)
 			throw new OptionParseException("ERROR: Expected output charset name.");
+		if (state == STATE_CACHEFILE)
+			throw new OptionParseException("ERROR: Expected cache file.");
 		
 		return options;
 	}
@@ -536,6 +558,17 @@ public final class DecoHackMain
 		out.println("    --source-output [file]   Outputs the combined source to a single file.");
 		out.println("    -s [file]");
 		out.println();
+		out.println("    --cache [file]           Keeps a compile cache in [file]. If no source");
+		out.println("    -c [file]                file changed since the last compile, the patch");
+		out.println("                             is restored from it instead of being parsed.");
+		out.println("                             Otherwise, only the source files that changed");
+		out.println("                             are read into tokens again. Files with the");
+		out.println("                             same size and modified time are not read.");
+		out.println("                             A snapshot of the patch is only kept at the end,");
+		out.println("                             so only blocks added at the end, or changes to");
+		out.println("                             whitespace, are parsed from it. Other changes");
+		out.println("                             are parsed from the start.");
+		out.println();
 		if (full)
 		{
 			try (BufferedReader br = new BufferedReader(new InputStreamReader(Common.openResource("decohack/help.txt")))) {
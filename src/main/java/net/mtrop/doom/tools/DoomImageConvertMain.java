@@ -1,7 +1,11 @@
 package net.mtrop.doom.tools;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,10 +13,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.imageio.ImageIO;
 
@@ -27,6 +41,7 @@ import net.mtrop.doom.object.BinaryObject;
 import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.exception.OptionParseException;
 import net.mtrop.doom.tools.exception.UtilityException;
+import net.mtrop.doom.tools.struct.AsyncFactory;
 import net.mtrop.doom.tools.struct.TokenScanner;
 import net.mtrop.doom.util.NameUtils;
 
@@ -76,6 +91,12 @@ public final class DoomImageConvertMain
 	private static final String SWITCH_PALETTE = "--palette";
 	private static final String SWITCH_PALETTE2 = "-p";
 
+	private static final String SWITCH_THREADS = "--threads";
+	private static final String SWITCH_THREADS2 = "-t";
+
+	private static final String SWITCH_MANIFEST = "--manifest";
+	private static final String SWITCH_MANIFEST2 = "-m";
+
 	public enum Mode
 	{
 		PALETTE,
@@ -89,6 +110,169 @@ public final class DoomImageConvertMain
 		private Mode mode;
 		private Integer x;
 		private Integer y;
+		
+		// Comparable form for manifests.
+		private String toManifestString()
+		{
+			return mode.name() + " " + (x != null ? String.valueOf(x) : "-") + " " + (y != null ? String.valueOf(y) : "-");
+		}
+	}
+
+	/**
+	 * A manifest of converted files, for incremental conversion.
+	 * Entries are keyed by source path (relative to the source directory).
+	 */
+	private static class Manifest
+	{
+		private static final String HEADER = "# DImgConv Manifest 1";
+		private static final String PALETTE = "palette";
+		private static final String NO_PALETTE = "-";
+		
+		private String paletteHash;
+		private Map<String, ManifestEntry> entries;
+		
+		private Manifest(String paletteHash)
+		{
+			this.paletteHash = paletteHash;
+			this.entries = new TreeMap<>();
+		}
+		
+		/**
+		 * Reads a manifest file.
+		 * @param f the file to read.
+		 * @return the manifest read, or null if the file is not a readable manifest.
+		 * @throws IOException if the file could not be read.
+		 */
+		private static Manifest read(File f) throws IOException
+		{
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)))
+			{
+				String line;
+				if (!HEADER.equals(br.readLine()))
+					return null;
+				if ((line = br.readLine()) == null || !line.startsWith(PALETTE + "\t"))
+					return null;
+				
+				Manifest out = new Manifest(line.substring(PALETTE.length() + 1));
+				while ((line = br.readLine()) != null)
+				{
+					if (line.isEmpty())
+						continue;
+					String[] fields = line.split("\t");
+					if (fields.length != 5)
+						return null;
+					try {
+						ManifestEntry entry = new ManifestEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], fields[4]);
+						out.entries.put(entry.path, entry);
+					} catch (NumberFormatException e) {
+						return null;
+					}
+				}
+				return out;
+			}
+		}
+		
+		/**
+		 * Writes this manifest to a file.
+		 * @param f the file to write.
+		 * @throws IOException if the file could not be written.
+		 */
+		private void write(File f) throws IOException
+		{
+			try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)))
+			{
+				bw.write(HEADER);
+				bw.newLine();
+				bw.write(PALETTE + "\t" + paletteHash);
+				bw.newLine();
+				for (ManifestEntry entry : entries.values())
+				{
+					bw.write(entry.path + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.hash + "\t" + entry.info);
+					bw.newLine();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A single source file record in a manifest.
+	 */
+	private static class ManifestEntry
+	{
+		private String path;
+		private long size;
+		private long modified;
+		private String hash;
+		private String info;
+		
+		private ManifestEntry(String path, long size, long modified, String hash, String info)
+		{
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.info = info;
+		}
+	}
+
+	/**
+	 * Nearest-color lookup bound to a single palette that remembers every color that it has already matched.
+	 * Safe to share between threads.
+	 */
+	private static class PaletteQuantizer
+	{
+		private static final int CACHE_SIZE = 1 << 16;
+		private static final int CACHE_MASK = CACHE_SIZE - 1;
+		private static final int CACHE_MAX_PROBES = 32;
+		private static final long CACHE_USED = 1L << 40;
+		
+		private Palette palette;
+		// Entries are (used bit | ARGB << 8 | index).
+		private AtomicLongArray cache;
+		
+		private PaletteQuantizer(Palette palette)
+		{
+			this.palette = palette;
+			this.cache = new AtomicLongArray(CACHE_SIZE);
+		}
+		
+		/**
+		 * Gets the index of the closest color in the palette.
+		 * If the color table fills up, unseen colors are still matched, just not remembered.
+		 * @param argb the ARGB color.
+		 * @return the palette index.
+		 */
+		public int getNearestColorIndex(int argb)
+		{
+			long key = argb & 0x0ffffffffL;
+			int hash = argb * 0x9e3779b9;
+			int slot = (hash ^ (hash >>> 16)) & CACHE_MASK;
+			int index = -1;
+			for (int i = 0; i < CACHE_MAX_PROBES; i++)
+			{
+				long entry = cache.get(slot);
+				if (entry == 0L)
+				{
+					if (index < 0)
+						index = findNearestColorIndex(argb);
+					if (cache.compareAndSet(slot, 0L, CACHE_USED | (key << 8) | index))
+						return index;
+					entry = cache.get(slot);
+				}
+				if (((entry >>> 8) & 0x0ffffffffL) == key)
+					return (int)(entry & 0x0ff);
+				slot = (slot + 1) & CACHE_MASK;
+			}
+			return index < 0 ? findNearestColorIndex(argb) : index;
+		}
+		
+		private int findNearestColorIndex(int argb)
+		{
+			synchronized (palette)
+			{
+				return palette.getNearestColorIndex(argb);
+			}
+		}
 	}
 
 	/**
@@ -117,6 +301,12 @@ public final class DoomImageConvertMain
 		
 		private MetaInfo metaInfoFallback;
 		
+		// Amount of conversion threads.
+		private int threads;
+		
+		// Manifest file for incremental conversion.
+		private File manifestPath;
+		
 		public Options()
 		{
 			this.stdout = null;
@@ -132,6 +322,8 @@ public final class DoomImageConvertMain
 			this.metaInfoFilename = "dimgconv.txt";
 			this.metaInfoFallback = new MetaInfo();
 			this.metaInfoFallback.mode = Mode.GRAPHIC;
+			this.threads = 1;
+			this.manifestPath = null;
 		}
 		
 		public Options setStdout(OutputStream out) 
@@ -201,6 +393,18 @@ public final class DoomImageConvertMain
 			return this;
 		}
 		
+		public Options setThreads(int threads)
+		{
+			this.threads = Math.max(threads, 1);
+			return this;
+		}
+		
+		public Options setManifestPath(File manifestPath)
+		{
+			this.manifestPath = manifestPath;
+			return this;
+		}
+		
 		public void verboseln(String message) 
 		{
 			if (verbose)
@@ -309,6 +513,9 @@ public final class DoomImageConvertMain
 				}
 			}
 			
+			// One quantizer for the whole run, so that color matches are shared across files.
+			PaletteQuantizer quantizer = palette != null ? new PaletteQuantizer(palette) : null;
+			
 			// Figure out if output is directory or WAD.
 			WadFile outputWad = null;
 			File outputDir = null;
@@ -400,6 +607,12 @@ public final class DoomImageConvertMain
 				}
 			}
 			
+			if (options.manifestPath != null && (!options.sourcePath.isDirectory() || outputDir == null))
+			{
+				options.stderr.println("ERROR: Incremental conversion (`--manifest`) requires a source directory and an output directory.");
+				return ERROR_BAD_OUTPUT;
+			}
+			
 			if (options.sourcePath.isDirectory())
 			{
 				if (outputFile != null)
@@ -412,9 +625,14 @@ public final class DoomImageConvertMain
 					try
 					{
 						final File dest = outputDir;
-						processDir(options.sourcePath, options.sourcePath, options.recursive, palette, options.metaInfoFallback, 
-							(input, pal, info, path)->readFile(input, pal, info, new File(dest.getPath() + Common.getFileNameWithoutExtension(path) + ".lmp"))
-						);
+						int err;
+						if (options.manifestPath != null)
+						{
+							if ((err = convertDirIncremental(palette, quantizer, dest)) != ERROR_NONE)
+								return err;
+						}
+						else if ((err = convertDir(quantizer, (input, data, path)->writeFile(data, getOutputFile(dest, path)))) != ERROR_NONE)
+							return err;
 					}
 					catch (IOException e)
 					{
@@ -436,9 +654,9 @@ public final class DoomImageConvertMain
 				{
 					try (final WadFile.Adder adder = outputWad.createAdder())
 					{
-						processDir(options.sourcePath, options.sourcePath, options.recursive, palette, options.metaInfoFallback, 
-							(input, pal, info, path)->readFile(input, pal, info, adder)
-						);
+						int err;
+						if ((err = convertDir(quantizer, (input, data, path)->writeEntry(input, data, adder))) != ERROR_NONE)
+							return err;
 					}
 					catch (IOException e)
 					{
@@ -469,7 +687,7 @@ public final class DoomImageConvertMain
 					try
 					{
 						int err;
-						if ((err = readFile(options.sourcePath, palette, options.metaInfoFallback, outputFile)) != ERROR_NONE)
+						if ((err = readFile(options.sourcePath, quantizer, options.metaInfoFallback, outputFile)) != ERROR_NONE)
 							return err;
 					}
 					catch (IOException e)
@@ -489,7 +707,7 @@ public final class DoomImageConvertMain
 					{
 						File file = new File(outputDir.getPath() + File.separator + Common.getFileNameWithoutExtension(options.sourcePath) + ".lmp");
 						int err;
-						if ((err = readFile(options.sourcePath, palette, options.metaInfoFallback, file)) != ERROR_NONE)
+						if ((err = readFile(options.sourcePath, quantizer, options.metaInfoFallback, file)) != ERROR_NONE)
 							return err;
 					}
 					catch (IOException e)
@@ -507,7 +725,7 @@ public final class DoomImageConvertMain
 				{
 					try (final WadFile.Adder adder = outputWad.createAdder())
 					{
-						readFile(options.sourcePath, palette, options.metaInfoFallback, adder);
+						readFile(options.sourcePath, quantizer, options.metaInfoFallback, adder);
 					}
 					catch (IOException e)
 					{
@@ -534,10 +752,202 @@ public final class DoomImageConvertMain
 		@FunctionalInterface
 		private interface FileAdder
 		{
-			int addFile(File input, Palette palette, MetaInfo info, String path) throws IOException;
+			int addFile(File input, MetaInfo info, String path) throws IOException;
+		}
+		
+		@FunctionalInterface
+		private interface DataWriter
+		{
+			int writeData(File input, byte[] data, String path) throws IOException;
+		}
+		
+		/**
+		 * A single queued file conversion for parallel conversion.
+		 */
+		private static class ConvertJob
+		{
+			private File input;
+			private MetaInfo info;
+			private String path;
+			private AsyncFactory.Instance<byte[]> result;
+			
+			private ConvertJob(File input, MetaInfo info, String path)
+			{
+				this.input = input;
+				this.info = info;
+				this.path = path;
+				this.result = null;
+			}
 		}
 		
-		private int processDir(File base, File srcDir, boolean recursive, Palette palette, MetaInfo fallback, FileAdder adder) throws IOException, SecurityException, UtilityException
+		private int convertDir(PaletteQuantizer quantizer, DataWriter writer) throws IOException, SecurityException, UtilityException
+		{
+			final List<ConvertJob> jobs = new LinkedList<>();
+			int err;
+			if ((err = scanDir(jobs)) != ERROR_NONE)
+				return err;
+			return convertJobs(jobs, quantizer, writer);
+		}
+		
+		// Only converts files that changed since the last run, according to the manifest.
+		private int convertDirIncremental(Palette palette, PaletteQuantizer quantizer, File dest) throws IOException, SecurityException, UtilityException
+		{
+			String paletteHash = palette != null ? Common.getDigest(palette.toBytes()) : Manifest.NO_PALETTE;
+			
+			Manifest previous = null;
+			boolean paletteChanged = false;
+			if (options.manifestPath.exists())
+			{
+				if ((previous = Manifest.read(options.manifestPath)) == null)
+					options.verboseln("Manifest " + options.manifestPath.getPath() + " is unreadable - converting everything.");
+				else if (paletteChanged = !previous.paletteHash.equals(paletteHash))
+					options.verboseln("Palette changed since last conversion - converting everything.");
+			}
+			
+			final List<ConvertJob> jobs = new LinkedList<>();
+			int err;
+			if ((err = scanDir(jobs)) != ERROR_NONE)
+				return err;
+
+			Manifest current = new Manifest(paletteHash);
+			Set<String> outputPaths = new HashSet<>();
+			List<ConvertJob> changed = new LinkedList<>();
+			for (ConvertJob job : jobs)
+			{
+				File outputFile = getOutputFile(dest, job.path);
+				outputPaths.add(outputFile.getPath());
+				
+				ManifestEntry entry = new ManifestEntry(job.path, job.input.length(), job.input.lastModified(), null, job.info.toManifestString());
+				ManifestEntry prev = previous != null && !paletteChanged ? previous.entries.get(job.path) : null;
+				if (prev != null && prev.info.equals(entry.info) && prev.size == entry.size && outputFile.exists())
+				{
+					if (prev.modified == entry.modified || prev.hash.equals(entry.hash = Common.getFileDigest(job.input)))
+						entry.hash = prev.hash;
+					else
+						changed.add(job);
+				}
+				else
+				{
+					changed.add(job);
+				}
+				
+				if (entry.hash == null)
+					entry.hash = Common.getFileDigest(job.input);
+				current.entries.put(entry.path, entry);
+			}
+			
+			options.verboseln(changed.size() + " of " + jobs.size() + " files changed since the last conversion.");
+			if ((err = convertJobs(changed, quantizer, (input, data, path)->writeFile(data, getOutputFile(dest, path)))) != ERROR_NONE)
+				return err;
+			
+			// Remove outputs whose sources are gone.
+			if (previous != null)
+			{
+				for (ManifestEntry prev : previous.entries.values())
+				{
+					if (current.entries.containsKey(prev.path))
+						continue;
+					File staleFile = getOutputFile(dest, prev.path);
+					if (!outputPaths.contains(staleFile.getPath()) && staleFile.exists())
+					{
+						if (!staleFile.delete())
+							throw new IOException("Could not delete stale output file: " + staleFile.getPath());
+						options.verboseln("Deleted " + staleFile.getPath() + ".");
+					}
+				}
+			}
+			
+			if (!Common.createPathForFile(options.manifestPath))
+				throw new IOException("Could not create path for manifest: " + options.manifestPath.getPath());
+			current.write(options.manifestPath);
+			options.verboseln("Wrote manifest " + options.manifestPath.getPath() + ".");
+			return ERROR_NONE;
+		}
+		
+		private int scanDir(final List<ConvertJob> jobs) throws IOException, SecurityException, UtilityException
+		{
+			return processDir(options.sourcePath, options.sourcePath, options.recursive, options.metaInfoFallback, 
+				(input, info, path)->{
+					jobs.add(new ConvertJob(input, info, path));
+					return ERROR_NONE;
+				}
+			);
+		}
+		
+		private int convertJobs(List<ConvertJob> jobs, PaletteQuantizer quantizer, DataWriter writer) throws IOException
+		{
+			if (options.threads > 1)
+				return convertParallel(jobs, quantizer, writer);
+			
+			int err;
+			for (ConvertJob job : jobs)
+			{
+				byte[] data;
+				if ((data = convertFile(job.input, quantizer, job.info)) == null)
+					return ERROR_NO_PALETTE;
+				if ((err = writer.writeData(job.input, data, job.path)) != ERROR_NONE)
+					return err;
+			}
+			return ERROR_NONE;
+		}
+		
+		private static File getOutputFile(File dest, String path)
+		{
+			return new File(dest.getPath() + Common.getFileNameWithoutExtension(path) + ".lmp");
+		}
+		
+		// Converts on a worker pool, but writes in job order on the calling thread.
+		private int convertParallel(List<ConvertJob> jobs, PaletteQuantizer quantizer, DataWriter writer) throws IOException
+		{
+			options.verboseln("Converting " + jobs.size() + " files using " + options.threads + " threads...");
+			
+			final int readAhead = options.threads * 2;
+			
+			AsyncFactory async = new AsyncFactory(options.threads);
+			try
+			{
+				Iterator<ConvertJob> it = jobs.iterator();
+				Deque<ConvertJob> pending = new LinkedList<>();
+				int err;
+				while (it.hasNext() || !pending.isEmpty())
+				{
+					while (it.hasNext() && pending.size() < readAhead)
+					{
+						final ConvertJob job = it.next();
+						job.result = async.spawn(()->convertFile(job.input, quantizer, job.info));
+						pending.add(job);
+					}
+					
+					ConvertJob job = pending.pollFirst();
+					byte[] data;
+					try {
+						data = job.result.get();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while converting " + job.input.getPath(), e);
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof IOException)
+							throw (IOException)cause;
+						else if (cause instanceof RuntimeException)
+							throw (RuntimeException)cause;
+						else
+							throw new IOException("Could not convert " + job.input.getPath(), cause);
+					}
+					
+					if (data == null)
+						return ERROR_NO_PALETTE;
+					if ((err = writer.writeData(job.input, data, job.path)) != ERROR_NONE)
+						return err;
+				}
+				return ERROR_NONE;
+			}
+			finally
+			{
+				async.shutDownNow();
+			}
+		}
+		
+		private int processDir(File base, File srcDir, boolean recursive, MetaInfo fallback, FileAdder adder) throws IOException, SecurityException, UtilityException
 		{
 			options.verboseln("Scanning directory " + srcDir.getPath() + "...");
 			File metaFile = new File(srcDir.getPath() + File.separator + options.metaInfoFilename);
@@ -555,15 +965,15 @@ public final class DoomImageConvertMain
 				{
 					if (!recursive)
 						continue;
-					else
-						processDir(base, f, recursive, palette, fallback, adder);
+					else if ((err = processDir(base, f, recursive, fallback, adder)) != ERROR_NONE)
+						return err;
 				}
 				else if (!f.getName().equals(options.metaInfoFilename))
 				{
 					String fileName = Common.getFileNameWithoutExtension(f);
 					MetaInfo info = metaMap.getOrDefault(fileName, metaMap.get("*"));
 					info = info == null ? fallback : info;
-					if ((err = adder.addFile(f, palette, info, treeName)) != ERROR_NONE)
+					if ((err = adder.addFile(f, info, treeName)) != ERROR_NONE)
 						return err;
 				}
 			}
@@ -571,123 +981,87 @@ public final class DoomImageConvertMain
 			return ERROR_NONE;
 		}
 				
-		private int readFile(File input, Palette palette, MetaInfo info, File output) throws IOException, SecurityException
+		private int readFile(File input, PaletteQuantizer quantizer, MetaInfo info, File output) throws IOException, SecurityException
 		{
+			byte[] data;
+			if ((data = convertFile(input, quantizer, info)) == null)
+				return ERROR_NO_PALETTE;
+			return writeFile(data, output);
+		}
+
+		private int readFile(File input, PaletteQuantizer quantizer, MetaInfo info, WadFile.Adder output) throws IOException
+		{
+			byte[] data;
+			if ((data = convertFile(input, quantizer, info)) == null)
+				return ERROR_NO_PALETTE;
+			return writeEntry(input, data, output);
+		}
+		
+		/**
+		 * Converts a file to its Doom-format representation.
+		 * Safe to call from multiple threads.
+		 * @return the converted data, or null if the file could not be converted (no palette).
+		 */
+		private byte[] convertFile(File input, PaletteQuantizer quantizer, MetaInfo info) throws IOException
+		{
+			if (info.mode != Mode.PALETTE && quantizer == null)
+			{
+				options.stderr.println("ERROR: Attempt to convert " + info.mode.name() + " " + input.getPath() + " without a provided palette!");
+				return null;
+			}
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
 			switch (info.mode)
 			{
 				case PALETTE:
 				{
-					Palette[] palettes = readPalette(input);
-					try (FileOutputStream fos = new FileOutputStream(output))
-					{
-						for (Palette p : palettes)
-							p.writeBytes(fos);
-					}
+					for (Palette p : readPalette(input))
+						p.writeBytes(bos);
 				}
 				break;
 				
 				case COLORMAP:
 				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert COLORMAP " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					Colormap[] colormaps = readColormaps(palette, input);
-					try (FileOutputStream fos = new FileOutputStream(output))
-					{
-						for (Colormap c : colormaps)
-							c.writeBytes(fos);
-					}
+					for (Colormap c : readColormaps(quantizer, input))
+						c.writeBytes(bos);
 				}
 				break;
 
 				case FLAT:
 				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert FLAT " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					Flat flat = readFlat(palette, input);
-					try (FileOutputStream fos = new FileOutputStream(output))
-					{
-						flat.writeBytes(fos);
-					}
+					readFlat(quantizer, input).writeBytes(bos);
 				}
 				break;
 				
 				default:
 				case GRAPHIC:
 				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert GRAPHIC " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					Picture picture = readPictureFile(input, palette, info);
-					try (FileOutputStream fos = new FileOutputStream(output))
-					{
-						picture.writeBytes(fos);
-					}
+					readPictureFile(input, quantizer, info).writeBytes(bos);
 				}
 				break;
 			}
+			return bos.toByteArray();
+		}
+		
+		private int writeFile(byte[] data, File output) throws IOException, SecurityException
+		{
+			try (FileOutputStream fos = new FileOutputStream(output))
+			{
+				fos.write(data);
+			}
 			options.verboseln("Wrote " + output.getPath() + ".");
 			return ERROR_NONE;
 		}
-
-		private int readFile(File input, Palette palette, MetaInfo info, WadFile.Adder output) throws IOException
+		
+		private int writeEntry(File input, byte[] data, WadFile.Adder output) throws IOException
 		{
 			String entryName = NameUtils.toValidEntryName(Common.getFileNameWithoutExtension(input));
-			switch (info.mode)
-			{
-				case PALETTE:
-				{
-					output.addData(entryName, readPalette(input));
-				}
-				break;
-				
-				case COLORMAP:
-				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert COLORMAP " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					output.addData(entryName, readColormaps(palette, input));
-				}
-				break;
-	
-				case FLAT:
-				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert FLAT " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					output.addData(entryName, readFlat(palette, input));
-				}
-				break;
-				
-				default:
-				case GRAPHIC:
-				{
-					if (palette == null)
-					{
-						options.stderr.println("ERROR: Attempt to convert GRAPHIC " + input.getPath() + " without a provided palette!");
-						return ERROR_NO_PALETTE;
-					}
-					Picture picture = readPictureFile(input, palette, info);
-					output.addData(entryName, picture);
-				}
-				break;
-			}
+			output.addData(entryName, data);
 			options.verboseln("Added " + input.getPath() + " to WAD as " + entryName);
 			return ERROR_NONE;
 		}
 		
-		private Picture readPictureFile(File input, Palette palette, MetaInfo info) throws IOException, FileNotFoundException
+		private Picture readPictureFile(File input, PaletteQuantizer quantizer, MetaInfo info) throws IOException, FileNotFoundException
 		{
 			Picture picture;
 			if (Common.getFileExtension(input).equalsIgnoreCase("png"))
@@ -698,25 +1072,14 @@ public final class DoomImageConvertMain
 				{
 					png.readBytes(fis);
 				}
-				picture = new Picture(png.getWidth(), png.getHeight());
-				for (int x = 0; x < png.getWidth(); x++)
-				{
-					for (int y = 0; y < png.getHeight(); y++)
-					{
-						int argb = png.getImage().getRGB(x, y);
-						// must be absolutely opaque.
-						if ((argb & 0xff000000) != 0xff000000)
-							picture.setPixel(x, y, Picture.PIXEL_TRANSLUCENT);
-						else
-							picture.setPixel(x, y, palette.getNearestColorIndex(argb));
-					}
-				}
+				picture = readPicture(quantizer, png.getImage());
 				picture.setOffsetX(png.getOffsetX());
 				picture.setOffsetY(png.getOffsetY());
 			}
 			else
 			{
-				picture = readPicture(palette, input);
+				options.verboseln("Reading " + input.getPath() + " as graphic...");
+				picture = readPicture(quantizer, ImageIO.read(input));
 			}
 			
 			if (info.x != null)
@@ -736,63 +1099,155 @@ public final class DoomImageConvertMain
 			for (int i = 0; i < out.length; i++)
 				out[i] = new Palette();
 			
+			int[] row = new int[image.getWidth()];
+			int[] samples = new int[image.getWidth() * 4];
 			for (int y = 0; y < out.length; y++)
+			{
+				readRowARGB(image, y, samples, row);
 				for (int x = 0; x < maxWidth; x++)
-					out[y].setColor(x, image.getRGB(x, y));
+					out[y].setColor(x, row[x]);
+			}
 			return out;
 		}
 		
-		private Colormap[] readColormaps(Palette pal, File f) throws IOException
+		private Colormap[] readColormaps(PaletteQuantizer quantizer, File f) throws IOException
 		{
 			options.verboseln("Reading " + f.getPath() + " as colormap...");
 			BufferedImage image = ImageIO.read(f);
 			Colormap[] out = new Colormap[image.getHeight()];
-			int maxWidth = Math.min(Math.max(image.getWidth(), 0), 256);
+			int width = image.getWidth();
+			int maxWidth = Math.min(Math.max(width, 0), 256);
 			for (int i = 0; i < out.length; i++)
 				out[i] = new Colormap();
 
+			int[] indices = readIndices(quantizer, image, false);
 			for (int y = 0; y < out.length; y++)
 				for (int x = 0; x < maxWidth; x++)
-					out[y].setPaletteIndex(x, pal.getNearestColorIndex(image.getRGB(x, y)));
+					out[y].setPaletteIndex(x, indices[y * width + x]);
 			return out;
 		}
 		
-		private Picture readPicture(Palette pal, File f) throws IOException
+		private Picture readPicture(PaletteQuantizer quantizer, BufferedImage image)
 		{
-			options.verboseln("Reading " + f.getPath() + " as graphic...");
-			BufferedImage image = ImageIO.read(f);
-			Picture out = new Picture(image.getWidth(), image.getHeight());
-			for (int x = 0; x < image.getWidth(); x++)
-				for (int y = 0; y < image.getHeight(); y++)
+			int width = image.getWidth();
+			Picture out = new Picture(width, image.getHeight());
+			int[] indices = readIndices(quantizer, image, true);
+			for (int y = 0; y < image.getHeight(); y++)
+				for (int x = 0; x < width; x++)
 				{
-					int argb = image.getRGB(x, y);
-					// must be absolutely opaque.
-					if ((argb & 0xff000000) != 0xff000000)
-						out.setPixel(x, y, Picture.PIXEL_TRANSLUCENT);
-					else
-						out.setPixel(x, y, pal.getNearestColorIndex(argb));
+					int index = indices[y * width + x];
+					out.setPixel(x, y, index < 0 ? Picture.PIXEL_TRANSLUCENT : index);
 				}
 			return out;
 		}
 		
-		private Flat readFlat(Palette pal, File f) throws IOException
+		private Flat readFlat(PaletteQuantizer quantizer, File f) throws IOException
 		{
 			options.verboseln("Reading " + f.getPath() + " as flat...");
 			BufferedImage image = ImageIO.read(f);
-			Flat out = new Flat(image.getWidth(), image.getHeight());
-			for (int x = 0; x < image.getWidth(); x++)
-				for (int y = 0; y < image.getHeight(); y++)
+			int width = image.getWidth();
+			Flat out = new Flat(width, image.getHeight());
+			int[] indices = readIndices(quantizer, image, true);
+			for (int y = 0; y < image.getHeight(); y++)
+				for (int x = 0; x < width; x++)
 				{
-					int argb = image.getRGB(x, y);
-					// must be absolutely opaque.
-					if ((argb & 0xff000000) != 0xff000000)
-						out.setPixel(x, y, 0);
-					else
-						out.setPixel(x, y, pal.getNearestColorIndex(argb));
+					int index = indices[y * width + x];
+					out.setPixel(x, y, index < 0 ? 0 : index);
 				}
 			return out;
 		}
 		
+		/**
+		 * Reads a full image as palette indices, row by row (index of [x, y] is <code>y * width + x</code>).
+		 * Indexed images only match each color in their own palette once, then remap their raw pixel data.
+		 * @param quantizer the quantizer to use.
+		 * @param image the source image.
+		 * @param opaqueOnly if true, any color that is not fully opaque becomes <code>-1</code>.
+		 * @return the palette indices.
+		 */
+		private static int[] readIndices(PaletteQuantizer quantizer, BufferedImage image, boolean opaqueOnly)
+		{
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int[] out = new int[width * height];
+			int[] row = new int[width];
+			
+			if (image.getColorModel() instanceof IndexColorModel)
+			{
+				IndexColorModel colorModel = (IndexColorModel)image.getColorModel();
+				int[] remap = new int[1 << colorModel.getPixelSize()];
+				for (int i = 0; i < remap.length; i++)
+					remap[i] = quantizeColor(quantizer, colorModel.getRGB(i), opaqueOnly);
+				
+				Raster raster = image.getRaster();
+				for (int y = 0; y < height; y++)
+				{
+					raster.getSamples(0, y, width, 1, 0, row);
+					for (int x = 0; x < width; x++)
+						out[y * width + x] = remap[row[x]];
+				}
+			}
+			else
+			{
+				int[] samples = new int[width * 4];
+				for (int y = 0; y < height; y++)
+				{
+					readRowARGB(image, y, samples, row);
+					for (int x = 0; x < width; x++)
+						out[y * width + x] = quantizeColor(quantizer, row[x], opaqueOnly);
+				}
+			}
+			return out;
+		}
+		
+		private static int quantizeColor(PaletteQuantizer quantizer, int argb, boolean opaqueOnly)
+		{
+			// must be absolutely opaque.
+			if (opaqueOnly && (argb & 0xff000000) != 0xff000000)
+				return -1;
+			return quantizer.getNearestColorIndex(argb);
+		}
+		
+		/**
+		 * Reads a single image row as ARGB.
+		 * Known 8-bit RGB/RGBA layouts are read straight from the raster instead of through the color model.
+		 * @param image the source image.
+		 * @param y the row.
+		 * @param samples the scratch sample buffer (at least width * 4).
+		 * @param out the output row (width).
+		 */
+		private static void readRowARGB(BufferedImage image, int y, int[] samples, int[] out)
+		{
+			int width = out.length;
+			switch (image.getType())
+			{
+				case BufferedImage.TYPE_INT_ARGB:
+				case BufferedImage.TYPE_4BYTE_ABGR:
+				{
+					image.getRaster().getPixels(0, y, width, 1, samples);
+					for (int x = 0, i = 0; x < width; x++, i += 4)
+						out[x] = (samples[i + 3] << 24) | (samples[i] << 16) | (samples[i + 1] << 8) | samples[i + 2];
+				}
+				break;
+				
+				case BufferedImage.TYPE_INT_RGB:
+				case BufferedImage.TYPE_INT_BGR:
+				case BufferedImage.TYPE_3BYTE_BGR:
+				{
+					image.getRaster().getPixels(0, y, width, 1, samples);
+					for (int x = 0, i = 0; x < width; x++, i += 3)
+						out[x] = 0xff000000 | (samples[i] << 16) | (samples[i + 1] << 8) | samples[i + 2];
+				}
+				break;
+				
+				default:
+				{
+					image.getRGB(0, y, width, 1, out, 0, width);
+				}
+				break;
+			}
+		}
+		
 		private Map<String, MetaInfo> readMetaInfoFile(File f) throws IOException, UtilityException
 		{
 			options.verboseln("Reading metadata file from " + f.getPath() + "...");
@@ -863,6 +1318,8 @@ public final class DoomImageConvertMain
 		final int STATE_OUTPUT = 1;
 		final int STATE_METAFILENAME = 2;
 		final int STATE_PALETTE = 3;
+		final int STATE_THREADS = 4;
+		final int STATE_MANIFEST = 5;
 		int state = STATE_START;
 		
 		int i = 0;
@@ -893,6 +1350,10 @@ public final class DoomImageConvertMain
 						state = STATE_METAFILENAME;
 					else if (arg.equalsIgnoreCase(SWITCH_PALETTE) || arg.equalsIgnoreCase(SWITCH_PALETTE2))
 						state = STATE_PALETTE;
+					else if (arg.equalsIgnoreCase(SWITCH_THREADS) || arg.equalsIgnoreCase(SWITCH_THREADS2))
+						state = STATE_THREADS;
+					else if (arg.equalsIgnoreCase(SWITCH_MANIFEST) || arg.equalsIgnoreCase(SWITCH_MANIFEST2))
+						state = STATE_MANIFEST;
 					else if (options.sourcePath == null)
 						options.sourcePath = new File(arg);
 					else
@@ -920,6 +1381,28 @@ public final class DoomImageConvertMain
 					state = STATE_START;
 				}
 				break;
+
+				case STATE_THREADS:
+				{
+					int n;
+					try {
+						n = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					}
+					if (n < 1)
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					options.setThreads(n);
+					state = STATE_START;
+				}
+				break;
+
+				case STATE_MANIFEST:
+				{
+					options.manifestPath = new File(arg);
+					state = STATE_START;
+				}
+				break;
 			}
 			i++;
 		}
@@ -930,6 +1413,10 @@ public final class DoomImageConvertMain
 			throw new OptionParseException("ERROR: Expected name of metainfo filename.");
 		if (state == STATE_PALETTE)
 			throw new OptionParseException("ERROR: Expected path to palette file.");
+		if (state == STATE_THREADS)
+			throw new OptionParseException("ERROR: Expected number of threads.");
+		if (state == STATE_MANIFEST)
+			throw new OptionParseException("ERROR: Expected path to manifest file.");
 		
 		return options;
 	}
@@ -1023,6 +1510,16 @@ public final class DoomImageConvertMain
 		out.println("    -i [name]           directory that specifies the mode for specific");
 		out.println("                        files. Default is \"dimgconv.txt\"");
 		out.println();
+		out.println("    --threads [num]     If the [source] is a directory, converts files using");
+		out.println("    -t [num]            [num] worker threads. Output order is unaffected.");
+		out.println("                        Default is 1.");
+		out.println();
+		out.println("    --manifest [path]   Converts incrementally: only files that changed since");
+		out.println("    -m [path]           the last conversion are converted, and outputs whose");
+		out.println("                        sources were removed are deleted. The manifest file");
+		out.println("                        at [path] keeps track of converted files between runs.");
+		out.println("                        Requires a source directory and an output directory.");
+		out.println();
 		out.println("    --verbose           Prints verbose output.");
 		out.println("    -v");
 		out.println();
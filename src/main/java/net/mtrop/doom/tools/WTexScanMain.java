@@ -5,8 +5,8 @@
  ******************************************************************************/
 package net.mtrop.doom.tools;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -16,10 +16,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import net.mtrop.doom.Wad;
 import net.mtrop.doom.WadBuffer;
@@ -29,13 +32,13 @@ import net.mtrop.doom.map.MapFormat;
 import net.mtrop.doom.map.data.DoomSector;
 import net.mtrop.doom.map.data.DoomSidedef;
 import net.mtrop.doom.map.udmf.UDMFObject;
-import net.mtrop.doom.map.udmf.UDMFReader;
-import net.mtrop.doom.map.udmf.UDMFTable;
+import net.mtrop.doom.map.udmf.UDMFScanner;
+import net.mtrop.doom.map.udmf.UDMFScanner.ElementType;
 import net.mtrop.doom.map.udmf.attributes.UDMFDoomSectorAttributes;
 import net.mtrop.doom.map.udmf.attributes.UDMFDoomSidedefAttributes;
-import net.mtrop.doom.struct.io.IOUtils;
 import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.exception.OptionParseException;
+import net.mtrop.doom.tools.struct.AsyncFactory;
 import net.mtrop.doom.util.MapUtils;
 import net.mtrop.doom.util.NameUtils;
 
@@ -65,6 +68,7 @@ public final class WTexScanMain
 	private static final String SWITCH_NOSKIES = "--no-skies";
 	private static final String SWITCH_MAP = "--map";
 	private static final String SWITCH_MAP2 = "-m";
+	private static final String SWITCH_THREADS = "--threads";
 
 	/** Regex pattern for Episode, Map. */
 	private static final Pattern EPISODE_PATTERN = Pattern.compile("E[1-5]M[1-9]");
@@ -86,6 +90,7 @@ public final class WTexScanMain
 		private boolean skipSkies;
 		private List<File> wadFiles;
 		private SortedSet<String> mapsToScan;
+		private int threads;
 		
 		private Options()
 		{
@@ -99,6 +104,7 @@ public final class WTexScanMain
 			this.skipSkies = false;
 			this.wadFiles = new LinkedList<>();
 			this.mapsToScan = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+			this.threads = 1;
 		}
 		
 		void println(Object msg)
@@ -163,6 +169,12 @@ public final class WTexScanMain
 			return this;
 		}
 		
+		public Options setThreads(int threads) 
+		{
+			this.threads = Math.max(threads, 1);
+			return this;
+		}
+		
 		public Options addWadFile(File file)
 		{
 			this.wadFiles.add(file);
@@ -185,61 +197,87 @@ public final class WTexScanMain
 		private Options options;
 		private SortedSet<String> textureList;
 		private SortedSet<String> flatList;
+		private boolean atLeastOneError;
+		
+		/** Worker pool for map scans. Null if scanning serially. */
+		private AsyncFactory async;
+		/** Map scans not yet merged, in the order they were read. */
+		private LinkedList<AsyncFactory.Instance<MapScan>> pendingScans;
 
 		private Context(Options options)
 		{
 			this.options = options;
 			this.textureList = new TreeSet<>();
 			this.flatList = new TreeSet<>();
+			this.atLeastOneError = false;
+			this.async = null;
+			this.pendingScans = new LinkedList<>();
 		}
 		
 		// Process PK3/ZIP
 		private void processPK3(String fileName, File f) throws ZipException, IOException
 		{
 			options.println("# Inspecting " + fileName + "...");
-			ZipFile zf = new ZipFile(f);
-			
-			@SuppressWarnings("unchecked")
-			Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
-			while (en.hasMoreElements())
+			try (ZipFile zf = new ZipFile(f))
 			{
-				ZipEntry ze = en.nextElement();
-				if (ze.isDirectory())
-					continue;
-				
-				String zeName = ze.getName().toLowerCase();
-				
-				if (zeName.endsWith(".wad"))
+				@SuppressWarnings("unchecked")
+				Enumeration<ZipEntry> en = (Enumeration<ZipEntry>)zf.entries();
+				while (en.hasMoreElements())
 				{
-					WadBuffer wm = null;
+					ZipEntry ze = en.nextElement();
+					if (ze.isDirectory() || !isScannedEntry(ze.getName()))
+						continue;
+					
 					try (InputStream zin = zf.getInputStream(ze)) 
 					{
-						wm = new WadBuffer(zin);
-						inspectWAD(wm);
+						processPK3Entry(fileName, ze.getName(), zin);
 					} 
 					catch (IOException e) 
 					{
 						options.errln("ERROR: Could not read entry "+ze.getName()+".");
 					}
 				}
-				else if (zeName.endsWith(".pk3") || zeName.endsWith(".pke"))
+			}
+		}
+		
+		// Process PK3/ZIP inside another archive, read in place as a stream (no extraction).
+		private void processPK3(String fileName, InputStream in) throws IOException
+		{
+			options.println("# Inspecting " + fileName + "...");
+			// Not closed - that would close the enclosing archive's stream.
+			ZipInputStream zin = new ZipInputStream(in);
+			ZipEntry ze;
+			while ((ze = zin.getNextEntry()) != null)
+			{
+				if (ze.isDirectory() || !isScannedEntry(ze.getName()))
+					continue;
+				
+				try
+				{
+					processPK3Entry(fileName, ze.getName(), zin);
+				}
+				catch (IOException e) 
 				{
-					File pk3 = File.createTempFile("wtexscan", "pk3tmp");
-					try (InputStream zin = zf.getInputStream(ze); FileOutputStream fos = new FileOutputStream(pk3)) 
-					{
-						IOUtils.relay(zin, fos);
-						IOUtils.close(fos);
-						processPK3(fileName + File.separator + ze.getName(), pk3);
-					} 
-					catch (IOException e) 
-					{
-						options.errln("ERROR: Could not read entry "+ze.getName()+".");
-					} 
-					pk3.deleteOnExit();
+					options.errln("ERROR: Could not read entry "+ze.getName()+".");
 				}
 			}
+		}
+		
+		private static boolean isScannedEntry(String entryName)
+		{
+			String zeName = entryName.toLowerCase();
+			return zeName.endsWith(".wad") || zeName.endsWith(".pk3") || zeName.endsWith(".pke");
+		}
+		
+		// Process a WAD or archive in a PK3, reading it from the entry's stream.
+		private void processPK3Entry(String fileName, String entryName, InputStream in) throws IOException
+		{
+			String zeName = entryName.toLowerCase();
 			
-			zf.close();
+			if (zeName.endsWith(".wad"))
+				inspectWAD(new WadBuffer(in));
+			else if (zeName.endsWith(".pk3") || zeName.endsWith(".pke"))
+				processPK3(fileName + File.separator + entryName, in);
 		}
 
 		// Process WAD
@@ -260,27 +298,6 @@ public final class WTexScanMain
 					inspectMap(wad, mapName);
 		}
 
-		/**
-		 * Returns the episode and map as (x,y) in the provided pair.
-		 * If p.x and p.y = -1, the episode and map was not detected.
-		 * Map only lumps have p.x = 0.
-		 * @param mapName the map lump
-		 * @param p the output Pair.
-		 */
-		private void getEpisodeAndMap(String mapName, Pair p)
-		{
-			if (EPISODE_PATTERN.matcher(mapName).matches())
-			{
-				p.x = Integer.parseInt(mapName.substring(1, 2));;
-				p.y = Integer.parseInt(mapName.substring(3));			
-			}
-			else if (MAP_PATTERN.matcher(mapName).matches())
-			{
-				p.x = 0;
-				p.y = Integer.parseInt(mapName.substring(3));
-			}
-		}
-
 		// Inspect a map in a WAD.
 		private void inspectMap(Wad wad, String mapName) throws IOException
 		{
@@ -295,173 +312,86 @@ public final class WTexScanMain
 			}
 		
 			options.println("#    Format is "+format.name()+"...");
-		
-			// filled in if UDMF.
-			UDMFTable udmf = null;
 			
-			if (format == MapFormat.UDMF)
-			{
-				try (InputStream in = wad.getInputStream("TEXTMAP", wad.lastIndexOf(mapName)))
-				{
-					udmf = UDMFReader.readData(in);
-				}
-			}
-					
+			int mapIndex = wad.lastIndexOf(mapName);
+			MapScan scan = new MapScan(mapName);
+			
 			if (options.outputTextures)
 			{
 				options.println("#        Reading SIDEDEFS...");
-		
-				switch (format)
-				{
-					default:
-					case DOOM:
-					case HEXEN:
-					{
-						inspectSidedefs(wad.getDataAs("SIDEDEFS", wad.lastIndexOf(mapName), DoomSidedef.class, DoomSidedef.LENGTH));
-					}
-					break;
-		
-					case UDMF:
-					{
-						inspectSidedefs(udmf.getObjects("sidedef"));
-					}
-					break;
-				}
+				scan.scanSidedefs = true;
+				if (format != MapFormat.UDMF)
+					scan.sidedefData = wad.getData("SIDEDEFS", mapIndex);
 			}
 		
 			if (options.outputFlats)
 			{
 				options.println("#        Reading SECTORS...");
-		
-				switch (format)
-				{
-					default:
-					case DOOM:
-					case HEXEN:
-					{
-						inspectSectors(wad.getDataAs("SECTORS", wad.lastIndexOf(mapName), DoomSector.class, DoomSector.LENGTH));
-					}
-					break;
-		
-					case UDMF:
-					{
-						inspectSectors(udmf.getObjects("sector"));
-					}
-					break;
-						
-				}
+				scan.scanSectors = true;
+				if (format != MapFormat.UDMF)
+					scan.sectorData = wad.getData("SECTORS", mapIndex);
 			}
 			
-			if (!options.skipSkies)
-			{
-				inspectMap(mapName);
-			}
+			scan.scanSkies = !options.skipSkies;
 			
-		}
-
-		private void inspectMap(String mapName)
-		{
-			Pair p = new Pair();
-			getEpisodeAndMap(mapName, p);
-			if (p.x == 0)
+			if (format == MapFormat.UDMF)
 			{
-				if (p.y >= 21)
+				// Parallel scans can't share the WAD, so they get a copy of TEXTMAP.
+				if (async != null)
 				{
-					if (!textureList.contains("SKY3"))
-						textureList.add("SKY3");
+					scan.textmapData = wad.getData("TEXTMAP", mapIndex);
 				}
-				else if (p.y >= 12)
+				else try (InputStream in = wad.getInputStream("TEXTMAP", mapIndex))
 				{
-					if (!textureList.contains("SKY2"))
-						textureList.add("SKY2");
+					if (in != null)
+						scan.inspectTextmap(in);
 				}
-				else
-				{
-					if (!textureList.contains("SKY1"))
-						textureList.add("SKY1");
-				}
-			}
-			else if (p.x == 1)
-			{
-				if (!textureList.contains("SKY1"))
-					textureList.add("SKY1");
-			}
-			else if (p.x == 2)
-			{
-				if (!textureList.contains("SKY2"))
-					textureList.add("SKY2");
-			}
-			else if (p.x == 3)
-			{
-				if (!textureList.contains("SKY3"))
-					textureList.add("SKY3");
-			}
-			else if (p.x == 4)
-			{
-				if (!textureList.contains("SKY4"))
-					textureList.add("SKY4");
-				if (!textureList.contains("SKY1"))
-					textureList.add("SKY1");
-			}
-			else if (p.x == 5)
-			{
-				if (!textureList.contains("SKY3"))
-					textureList.add("SKY3");
-			}
-		}
-
-		// Adds sidedef textures to the list.
-		private void inspectSidedefs(DoomSidedef[] sidedefs)
-		{
-			for (DoomSidedef s : sidedefs)
-			{
-				addTexture(s.getTextureTop());
-				addTexture(s.getTextureMiddle());
-				addTexture(s.getTextureBottom());
 			}
+			
+			submitScan(scan);
 		}
 
-		// Adds sidedef textures to the list.
-		private void inspectSidedefs(UDMFObject[] sidedefs)
+		// Scans a map now, or hands it to a worker if scanning in parallel.
+		private void submitScan(MapScan scan) throws IOException
 		{
-			for (UDMFObject s : sidedefs)
+			if (async == null)
 			{
-				addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_TOP, NameUtils.EMPTY_TEXTURE_NAME));
-				addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_MIDDLE, NameUtils.EMPTY_TEXTURE_NAME));
-				addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_BOTTOM, NameUtils.EMPTY_TEXTURE_NAME));
+				mergeScan(scan.call());
+				return;
 			}
+			
+			pendingScans.add(async.spawn(scan));
+			// Don't let read map data pile up faster than it is scanned.
+			while (pendingScans.size() > options.threads * 2)
+				finishScan(pendingScans.removeFirst());
 		}
-
-		// Adds sector textures to the list.
-		private void inspectSectors(DoomSector[] sectors)
+		
+		// Waits for all pending scans.
+		private void finishScans()
 		{
-			for (DoomSector s : sectors)
-			{
-				addFlat(s.getTextureFloor());
-				addFlat(s.getTextureCeiling());
-			}
+			while (!pendingScans.isEmpty())
+				finishScan(pendingScans.removeFirst());
 		}
-
-		// Adds sector textures to the list.
-		private void inspectSectors(UDMFObject[] sectors)
+		
+		// Waits for a scan and merges it. 
+		private void finishScan(AsyncFactory.Instance<MapScan> instance)
 		{
-			for (UDMFObject s : sectors)
-			{
-				addFlat(s.getString(UDMFDoomSectorAttributes.ATTRIB_TEXTURE_FLOOR));
-				addFlat(s.getString(UDMFDoomSectorAttributes.ATTRIB_TEXTURE_CEILING));
+			try {
+				mergeScan(instance.get());
+			} catch (InterruptedException e) {
+				options.errln("ERROR: Interrupted while scanning maps.");
+				atLeastOneError = true;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				options.errf("ERROR: %s: %s\n", cause.getClass().getSimpleName(), cause.getLocalizedMessage());
+				atLeastOneError = true;
 			}
 		}
-
-		private void addTexture(String texture)
-		{
-			if (!textureList.contains(texture) && texture != null && !texture.trim().isEmpty() && !texture.equals("-"))
-				textureList.add(texture);
-		}
-
-		private void addFlat(String flat)
+		
+		private void mergeScan(MapScan scan)
 		{
-			if (!flatList.contains(flat) && flat != null && !flat.trim().isEmpty())
-				flatList.add(flat);
+			textureList.addAll(scan.textureList);
+			flatList.addAll(scan.flatList);
 		}
 
 		public int call()
@@ -488,30 +418,41 @@ public final class WTexScanMain
 				return ERROR_NONE;
 			}
 		
-			boolean atLeastOneError = false;
-			for (File f : options.wadFiles)
+			if (options.threads > 1)
+				async = new AsyncFactory(options.threads);
+			
+			try
 			{
-				try
+				for (File f : options.wadFiles)
 				{
-					if (f.getName().toLowerCase().endsWith(".wad"))
-						processWAD(f);
-					else if (f.getName().toLowerCase().endsWith(".pk3"))
-						processPK3(f.getPath(), f);
-					else if (f.getName().toLowerCase().endsWith(".pke"))
-						processPK3(f.getPath(), f);
-					else if (f.getName().toLowerCase().endsWith(".zip"))
-						processPK3(f.getPath(), f);
-					else
+					try
+					{
+						if (f.getName().toLowerCase().endsWith(".wad"))
+							processWAD(f);
+						else if (f.getName().toLowerCase().endsWith(".pk3"))
+							processPK3(f.getPath(), f);
+						else if (f.getName().toLowerCase().endsWith(".pke"))
+							processPK3(f.getPath(), f);
+						else if (f.getName().toLowerCase().endsWith(".zip"))
+							processPK3(f.getPath(), f);
+						else
+						{
+							options.errf("ERROR: %s is not a WAD, PK3, PKE, or ZIP.\n", f.getPath());
+							atLeastOneError = true;
+						}
+					}
+					catch (IOException e)
 					{
-						options.errf("ERROR: %s is not a WAD, PK3, PKE, or ZIP.\n", f.getPath());
+						options.errf("ERROR: %s: %s\n", e.getClass().getSimpleName(), e.getLocalizedMessage());
 						atLeastOneError = true;
 					}
 				}
-				catch (IOException e)
-				{
-					options.errf("ERROR: %s: %s\n", e.getClass().getSimpleName(), e.getLocalizedMessage());
-					atLeastOneError = true;
-				}
+				finishScans();
+			}
+			finally
+			{
+				if (async != null)
+					async.shutDownNow();
 			}
 			
 			if (atLeastOneError)
@@ -554,6 +495,201 @@ public final class WTexScanMain
 
 	}
 	
+	/**
+	 * The texture and flat scan of a single map.
+	 * The map's lumps are read up front, so that scans do not share the WAD and can run in parallel.
+	 * Each scan fills its own lists, which are merged into the full lists afterward.
+	 * UDMF maps are scanned one object at a time, and are never read into a full table.
+	 */
+	private static class MapScan implements Callable<MapScan>
+	{
+		private String mapName;
+		private byte[] textmapData;
+		private byte[] sidedefData;
+		private byte[] sectorData;
+		private boolean scanSidedefs;
+		private boolean scanSectors;
+		private boolean scanSkies;
+		
+		private SortedSet<String> textureList;
+		private SortedSet<String> flatList;
+		
+		/**
+		 * Creates a new map scan.
+		 * @param mapName the map name.
+		 */
+		private MapScan(String mapName)
+		{
+			this.mapName = mapName;
+			this.textmapData = null;
+			this.sidedefData = null;
+			this.sectorData = null;
+			this.scanSidedefs = false;
+			this.scanSectors = false;
+			this.scanSkies = false;
+			this.textureList = new TreeSet<>();
+			this.flatList = new TreeSet<>();
+		}
+
+		@Override
+		public MapScan call() throws IOException
+		{
+			if (textmapData != null)
+			{
+				try (InputStream in = new ByteArrayInputStream(textmapData))
+				{
+					inspectTextmap(in);
+				}
+			}
+
+			if (scanSidedefs)
+				inspectSidedefs(sidedefData);
+			
+			if (scanSectors)
+				inspectSectors(sectorData);
+			
+			if (scanSkies)
+				inspectSkies();
+			
+			// Not needed anymore.
+			textmapData = null;
+			sidedefData = null;
+			sectorData = null;
+			return this;
+		}
+		
+		/**
+		 * Returns the episode and map as (x,y) in the provided pair.
+		 * If p.x and p.y = -1, the episode and map was not detected.
+		 * Map only lumps have p.x = 0.
+		 * @param mapName the map lump
+		 * @param p the output Pair.
+		 */
+		private static void getEpisodeAndMap(String mapName, Pair p)
+		{
+			if (EPISODE_PATTERN.matcher(mapName).matches())
+			{
+				p.x = Integer.parseInt(mapName.substring(1, 2));;
+				p.y = Integer.parseInt(mapName.substring(3));			
+			}
+			else if (MAP_PATTERN.matcher(mapName).matches())
+			{
+				p.x = 0;
+				p.y = Integer.parseInt(mapName.substring(3));
+			}
+		}
+
+		private void inspectSkies()
+		{
+			Pair p = new Pair();
+			getEpisodeAndMap(mapName, p);
+			if (p.x == 0)
+			{
+				if (p.y >= 21)
+					textureList.add("SKY3");
+				else if (p.y >= 12)
+					textureList.add("SKY2");
+				else
+					textureList.add("SKY1");
+			}
+			else if (p.x == 1)
+			{
+				textureList.add("SKY1");
+			}
+			else if (p.x == 2)
+			{
+				textureList.add("SKY2");
+			}
+			else if (p.x == 3)
+			{
+				textureList.add("SKY3");
+			}
+			else if (p.x == 4)
+			{
+				textureList.add("SKY4");
+				textureList.add("SKY1");
+			}
+			else if (p.x == 5)
+			{
+				textureList.add("SKY3");
+			}
+		}
+
+		// Adds sidedef textures to the list.
+		private void inspectSidedefs(byte[] data) throws IOException
+		{
+			if (data == null)
+				return;
+			try (InputStream in = new ByteArrayInputStream(data))
+			{
+				DoomSidedef s = new DoomSidedef();
+				for (int i = 0; i < data.length / DoomSidedef.LENGTH; i++)
+				{
+					s.readBytes(in);
+					addTexture(s.getTextureTop());
+					addTexture(s.getTextureMiddle());
+					addTexture(s.getTextureBottom());
+				}
+			}
+		}
+
+
+		// Adds sector textures to the list.
+		private void inspectSectors(byte[] data) throws IOException
+		{
+			if (data == null)
+				return;
+			try (InputStream in = new ByteArrayInputStream(data))
+			{
+				DoomSector s = new DoomSector();
+				for (int i = 0; i < data.length / DoomSector.LENGTH; i++)
+				{
+					s.readBytes(in);
+					addFlat(s.getTextureFloor());
+					addFlat(s.getTextureCeiling());
+				}
+			}
+		}
+
+		// Adds UDMF sidedef and sector textures to the lists, reading one object at a time.
+		private void inspectTextmap(InputStream in) throws IOException
+		{
+			UDMFScanner scanner = UDMFScanner.createScanner(in);
+			while (scanner.hasNext())
+			{
+				UDMFScanner.Element element = scanner.next();
+				if (!element.isType(ElementType.OBJECT))
+					continue;
+				
+				if (scanSidedefs && "sidedef".equalsIgnoreCase(element.getName()))
+				{
+					UDMFObject s = element.getUDMFObject();
+					addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_TOP, NameUtils.EMPTY_TEXTURE_NAME));
+					addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_MIDDLE, NameUtils.EMPTY_TEXTURE_NAME));
+					addTexture(s.getString(UDMFDoomSidedefAttributes.ATTRIB_TEXTURE_BOTTOM, NameUtils.EMPTY_TEXTURE_NAME));
+				}
+				else if (scanSectors && "sector".equalsIgnoreCase(element.getName()))
+				{
+					UDMFObject s = element.getUDMFObject();
+					addFlat(s.getString(UDMFDoomSectorAttributes.ATTRIB_TEXTURE_FLOOR));
+					addFlat(s.getString(UDMFDoomSectorAttributes.ATTRIB_TEXTURE_CEILING));
+				}
+			}
+		}
+
+		private void addTexture(String texture)
+		{
+			if (texture != null && !texture.trim().isEmpty() && !texture.equals("-"))
+				textureList.add(texture);
+		}
+
+		private void addFlat(String flat)
+		{
+			if (flat != null && !flat.trim().isEmpty())
+				flatList.add(flat);
+		}
+	}
+	
 	private static class Pair
 	{
 		public int x;
@@ -576,6 +712,7 @@ public final class WTexScanMain
 	
 		final int STATE_INIT = 0;
 		final int STATE_MAP = 1;
+		final int STATE_THREADS = 2;
 	
 		int state = STATE_INIT;
 		int i = 0;
@@ -600,6 +737,8 @@ public final class WTexScanMain
 						options.setSkipSkies(true);
 					else if (arg.equals(SWITCH_MAP) || arg.equals(SWITCH_MAP2))
 						state = STATE_MAP;
+					else if (arg.equals(SWITCH_THREADS))
+						state = STATE_THREADS;
 					else
 						options.addWadFile(new File(arg));
 				}
@@ -611,6 +750,21 @@ public final class WTexScanMain
 					state = STATE_INIT;
 				}
 				break;
+
+				case STATE_THREADS:
+				{
+					int n;
+					try {
+						n = Integer.parseInt(arg);
+					} catch (NumberFormatException e) {
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					}
+					if (n < 1)
+						throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+					options.setThreads(n);
+					state = STATE_INIT;
+				}
+				break;
 			}
 			i++;
 		}
@@ -698,6 +852,9 @@ public final class WTexScanMain
 		out.println();
 		out.println("    --map [mapname]     Map to scan. If not specified, all maps will be scanned.");
 		out.println("    -m");
+		out.println();
+		out.println("    --threads [num]     Scans maps using [num] worker threads. Output is the");
+		out.println("                        same as a scan with one thread.");
 	}
 	
 }
@@ -7,7 +7,6 @@ package net.mtrop.doom.tools;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,11 +16,12 @@ import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 
-import net.mtrop.doom.struct.io.IOUtils;
 import net.mtrop.doom.tools.common.Common;
+import net.mtrop.doom.tools.common.ParseException;
 import net.mtrop.doom.tools.exception.OptionParseException;
 import net.mtrop.doom.tools.wadmerge.WadMergeCommand;
 import net.mtrop.doom.tools.wadmerge.WadMergeContext;
+import net.mtrop.doom.tools.wadmerge.WadMergeScript;
 
 /**
  * Main class for WadMerge.
@@ -36,11 +36,18 @@ public final class WadMergeMain
 	private static final int ERROR_BAD_INPUT_FILE = 1;
 	private static final int ERROR_BAD_SCRIPT = 2;
 	private static final int ERROR_BAD_OPTIONS = 3;
+	private static final int ERROR_IO_ERROR = 4;
 
 	private static final String SWITCH_HELP = "--help";
 	private static final String SWITCH_HELP2 = "-h";
 	private static final String SWITCH_VERBOSE = "--verbose";
 	private static final String SWITCH_VERBOSE2 = "-v";
+	private static final String SWITCH_PLAN = "--plan";
+	private static final String SWITCH_THREADS = "--threads";
+	private static final String SWITCH_CHECK = "--check";
+	private static final String SWITCH_BUFFER_BUDGET = "--buffer-budget";
+	private static final String SWITCH_DEDUPLICATE = "--dedup";
+	private static final String SWITCH_INCREMENTAL = "--incremental";
 	private static final String SWITCH_VERSION = "--version";
 	private static final String SWITCH_SYSTEMIN = "--";
 	
@@ -56,6 +63,12 @@ public final class WadMergeMain
 		private boolean help;
 		private boolean version;
 		private boolean verbose;
+		private boolean planMode;
+		private int threads;
+		private boolean check;
+		private int bufferBudget;
+		private boolean deduplicate;
+		private boolean incremental;
 		private boolean useStdin;
 		private File inputFile;
 		private List<String> args;
@@ -68,6 +81,12 @@ public final class WadMergeMain
 			this.help = false;
 			this.version = false;
 			this.verbose = false;
+			this.planMode = false;
+			this.threads = 1;
+			this.check = false;
+			this.bufferBudget = 0;
+			this.deduplicate = false;
+			this.incremental = false;
 			this.inputFile = new File("wadmerge.txt");
 			this.args = new LinkedList<>();
 		}
@@ -96,6 +115,42 @@ public final class WadMergeMain
 			return this;
 		}
 		
+		public Options setPlanMode(boolean planMode) 
+		{
+			this.planMode = planMode;
+			return this;
+		}
+		
+		public Options setThreads(int threads) 
+		{
+			this.threads = Math.max(threads, 1);
+			return this;
+		}
+		
+		public Options setCheck(boolean check) 
+		{
+			this.check = check;
+			return this;
+		}
+		
+		public Options setBufferBudget(int megabytes) 
+		{
+			this.bufferBudget = Math.max(megabytes, 0);
+			return this;
+		}
+		
+		public Options setDeduplicate(boolean deduplicate) 
+		{
+			this.deduplicate = deduplicate;
+			return this;
+		}
+		
+		public Options setIncremental(boolean incremental) 
+		{
+			this.incremental = incremental;
+			return this;
+		}
+		
 		public Options setUseStdin(boolean useStdin) 
 		{
 			this.useStdin = useStdin;
@@ -150,44 +205,65 @@ public final class WadMergeMain
 			}
 			
 			String streamName;
-			BufferedReader reader;
-			if (options.useStdin)
-			{
-				streamName = "STDIN";
-				reader = new BufferedReader(new InputStreamReader(options.stdin));
-			}
-			else
+			WadMergeScript script;
+			try
 			{
-				try
-				{
-					reader = new BufferedReader(new InputStreamReader(new FileInputStream(options.inputFile)));
-					streamName = options.inputFile.getPath();
-				}
-				catch (FileNotFoundException e)
+				if (options.useStdin)
 				{
-					options.stderr.printf("ERROR: File %s not found.\n", options.inputFile.getPath());
-					return ERROR_BAD_INPUT_FILE;
+					streamName = "STDIN";
+					script = WadMergeScript.compile(streamName, new BufferedReader(new InputStreamReader(options.stdin)));
 				}
-				catch (SecurityException e)
+				else
 				{
-					options.stderr.printf("ERROR: File %s not readable (access denied).\n", options.inputFile.getPath());
-					return ERROR_BAD_INPUT_FILE;
+					// Compiled script files are cached by path, length, and modified time.
+					streamName = options.inputFile.getPath();
+					script = WadMergeScript.compile(options.inputFile);
 				}
 			}
-		
-			try 
+			catch (FileNotFoundException e)
 			{
-				if (!WadMergeCommand.callScript(streamName, reader, new WadMergeContext(options.stdout, options.verbose), options.args.toArray(new String[options.args.size()])))
-					return ERROR_BAD_SCRIPT;
+				options.stderr.printf("ERROR: File %s not found.\n", options.inputFile.getPath());
+				return ERROR_BAD_INPUT_FILE;
+			}
+			catch (SecurityException e)
+			{
+				options.stderr.printf("ERROR: File %s not readable (access denied).\n", options.inputFile.getPath());
+				return ERROR_BAD_INPUT_FILE;
 			}
 			catch (IOException e)
 			{
-				options.stderr.printf("ERROR: File %s not found.\n", options.inputFile.getPath());
+				options.stderr.printf("ERROR: Script could not be read: %s\n", e.getLocalizedMessage());
 				return ERROR_BAD_INPUT_FILE;
 			}
-			finally
+			catch (ParseException e)
+			{
+				options.stderr.printf("ERROR: %s\n", e.getLocalizedMessage());
+				return ERROR_BAD_SCRIPT;
+			}
+		
+			WadMergeContext context = new WadMergeContext(options.stdout, options.verbose, options.planMode || options.incremental);
+			context.setBufferBudget(options.bufferBudget * 1024L * 1024L);
+			context.setDeduplicate(options.deduplicate);
+			context.setIncremental(options.incremental);
+			if (options.check)
+			{
+				if (!script.check(streamName, context, options.args.toArray(new String[options.args.size()])))
+					return ERROR_BAD_SCRIPT;
+				options.stdout.printf("Script %s is OK.\n", streamName);
+				return ERROR_NONE;
+			}
+			
+			if (!script.call(streamName, context, options.args.toArray(new String[options.args.size()]), options.threads))
+				return ERROR_BAD_SCRIPT;
+			
+			try
+			{
+				context.close();
+			}
+			catch (IOException e)
 			{
-				IOUtils.close(reader);
+				options.stderr.printf("ERROR: Could not finish writing files: %s\n", e.getLocalizedMessage());
+				return ERROR_IO_ERROR;
 			}
 			
 			return ERROR_NONE;
@@ -211,16 +287,59 @@ public final class WadMergeMain
 		options.stderr = err;
 		options.stdin = in;
 		
+		final int STATE_INIT = 0;
+		final int STATE_THREADS = 1;
+		final int STATE_BUFFER_BUDGET = 2;
+		int state = STATE_INIT;
+		
 		boolean sawInput = false;
 		int i = 0;
 		while (i < args.length)
 		{
 			String arg = args[i];
 			
-			if (arg.equals(SWITCH_HELP) || arg.equals(SWITCH_HELP2))
+			if (state == STATE_THREADS)
+			{
+				int n;
+				try {
+					n = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+				}
+				if (n < 1)
+					throw new OptionParseException("ERROR: Thread count needs to be a number greater than 0.");
+				options.setThreads(n);
+				state = STATE_INIT;
+			}
+			else if (state == STATE_BUFFER_BUDGET)
+			{
+				int n;
+				try {
+					n = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					throw new OptionParseException("ERROR: Buffer budget needs to be a number of megabytes greater than 0.");
+				}
+				if (n < 1)
+					throw new OptionParseException("ERROR: Buffer budget needs to be a number of megabytes greater than 0.");
+				options.setBufferBudget(n);
+				state = STATE_INIT;
+			}
+			else if (arg.equals(SWITCH_HELP) || arg.equals(SWITCH_HELP2))
 				options.help = true;
 			else if (arg.equals(SWITCH_VERBOSE) || arg.equals(SWITCH_VERBOSE2))
 				options.verbose = true;
+			else if (arg.equals(SWITCH_PLAN))
+				options.planMode = true;
+			else if (arg.equals(SWITCH_THREADS))
+				state = STATE_THREADS;
+			else if (arg.equals(SWITCH_CHECK))
+				options.check = true;
+			else if (arg.equals(SWITCH_BUFFER_BUDGET))
+				state = STATE_BUFFER_BUDGET;
+			else if (arg.equals(SWITCH_DEDUPLICATE))
+				options.deduplicate = true;
+			else if (arg.equals(SWITCH_INCREMENTAL))
+				options.incremental = true;
 			else if (arg.equals(SWITCH_VERSION))
 				options.version = true;
 			else if (arg.equals(SWITCH_SYSTEMIN))
@@ -235,6 +354,11 @@ public final class WadMergeMain
 			i++;
 		}
 		
+		if (state == STATE_THREADS)
+			throw new OptionParseException("ERROR: Expected number after thread count switch.");
+		if (state == STATE_BUFFER_BUDGET)
+			throw new OptionParseException("ERROR: Expected number after buffer budget switch.");
+		
 		return options;
 	}
 	
@@ -301,6 +425,35 @@ public final class WadMergeMain
 		out.println("    --verbose     Prints verbose output.");
 		out.println("    -v");
 		out.println();
+		out.println("    --plan        Plan mode. Buffers and files record where their entries");
+		out.println("                  come from instead of reading them, and each output file");
+		out.println("                  is assembled in a single pass when it is saved or finished.");
+		out.println();
+		out.println("    --threads [num]");
+		out.println("                  Runs commands that work on unrelated symbols and files at");
+		out.println("                  the same time, using [num] worker threads. Output is grouped");
+		out.println("                  by each set of related commands. If a command fails, no");
+		out.println("                  more commands are started, but unrelated commands after it");
+		out.println("                  in the script may have already run and written files.");
+		out.println();
+		out.println("    --buffer-budget [mb]");
+		out.println("                  Buffers record where their entries come from, like in");
+		out.println("                  plan mode, and entry data that a buffer holds in memory");
+		out.println("                  is moved to a temporary file once it grows past [mb]");
+		out.println("                  megabytes, to save memory.");
+		out.println();
+		out.println("    --dedup       Writes identical entry data once when saving a WAD. Entries");
+		out.println("                  with the same data point at the same place in the file.");
+		out.println();
+		out.println("    --incremental Writes a manifest next to each saved WAD. On the next run,");
+		out.println("                  data from unchanged sources is copied from the previous");
+		out.println("                  WAD, and unchanged WADs are not written. Implies --plan.");
+		out.println();
+		out.println("    --check       Checks the script for unknown commands, bad tokens, and");
+		out.println("                  missing arguments, symbols that are used before they are");
+		out.println("                  created or after they are discarded, and input files and");
+		out.println("                  directories that do not exist, and exits without running it.");
+		out.println();
 		out.println("[scriptfile]:");
 		out.println("    <filename>    The input script file.");
 		out.println();
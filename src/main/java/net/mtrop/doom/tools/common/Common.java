@@ -7,6 +7,7 @@ package net.mtrop.doom.tools.common;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,6 +18,8 @@ import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -254,6 +257,55 @@ public final class Common
 		return out;
 	}
 	
+	/**
+	 * Gets the SHA-1 digest of a byte array as a hexadecimal string.
+	 * @param data the data to digest.
+	 * @return the digest string.
+	 */
+	public static String getDigest(byte[] data)
+	{
+		MessageDigest digest = createDigest();
+		digest.update(data);
+		return toHexString(digest.digest());
+	}
+
+	/**
+	 * Gets the SHA-1 digest of a file's contents as a hexadecimal string.
+	 * @param file the file to read.
+	 * @return the digest string.
+	 * @throws IOException if the file could not be read.
+	 * @throws SecurityException if you do not have permission to read the file.
+	 */
+	public static String getFileDigest(File file) throws IOException
+	{
+		MessageDigest digest = createDigest();
+		byte[] buffer = new byte[16384];
+		try (FileInputStream fis = new FileInputStream(file))
+		{
+			int buf;
+			while ((buf = fis.read(buffer)) > 0)
+				digest.update(buffer, 0, buf);
+		}
+		return toHexString(digest.digest());
+	}
+
+	private static MessageDigest createDigest()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-1 is not available on this JVM.", e);
+		}
+	}
+	
+	private static String toHexString(byte[] data)
+	{
+		StringBuilder sb = new StringBuilder(data.length * 2);
+		for (byte b : data)
+			sb.append(String.format("%02x", b & 0x0ff));
+		return sb.toString();
+	}
+	
 	/**
 	 * Convenience method for
 	 * <code>new BufferedReader(new InputStreamReader(in))</code>
@@ -97,8 +97,21 @@ public final class Utility
 	 */
 	public static TextureSet readDEUTEXFile(BufferedReader reader, PatchNames startingPatches, CommonTextureList<?> startingTextureList) throws IOException, ParseException
 	{
-		Texture currentTexture = null;
 		TextureSet textureSet = new TextureSet(startingPatches, startingTextureList);
+		readDEUTEXFile(reader, textureSet);
+		return textureSet;
+	}
+	
+	/**
+	 * Parses a DEUTEX texture file contents into an existing texture set.
+	 * @param reader the reader to read from.
+	 * @param textureSet the texture set to add the textures to.
+	 * @throws IOException if an I/O Error occurs during read.
+	 * @throws ParseException if an error occurs during parse.
+	 */
+	public static void readDEUTEXFile(BufferedReader reader, TextureSet textureSet) throws IOException, ParseException
+	{
+		Texture currentTexture = null;
 		String line;
 		int linenum = 0;
 		Pattern whitespacePattern = Pattern.compile("\\s+"); 
@@ -152,7 +165,6 @@ public final class Utility
 				}
 			}
 		}
-		return textureSet;
 	}
 	
 	/**
@@ -0,0 +1,871 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.decohack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.mtrop.doom.tools.common.Common;
+import net.mtrop.doom.tools.decohack.contexts.AbstractPatchContext;
+import net.mtrop.doom.tools.struct.Lexer.Token;
+import net.mtrop.doom.tools.struct.PreprocessorLexer.Includer;
+import net.mtrop.doom.tools.struct.PreprocessorLexer.TokenizedResource;
+import net.mtrop.doom.tools.struct.util.IOUtils;
+
+/**
+ * A compile cache for DECOHack scripts, kept in a file between compiles.
+ * <p>The parser only depends on the tokens that it reads, so the cache keeps a digest of the tokens
+ * read before each boundary between top-level blocks of the last compile, and snapshots of the parser
+ * state (the patch context and the like) at the end of the last few compiles.
+ * <p>The cache also keeps the digest of each source file read, the tokens that it was read into, and where each
+ * of its includes was found, so that if none of them changed, the patch is restored from the end of the last compile
+ * without reading any tokens. Otherwise, only the source files that changed are read into tokens again.
+ * A file whose length and modified time are the same as when it was digested is not read to check it.
+ * <p>Otherwise, if the tokens before a snapshot's boundary are the same in the next compile (like when only
+ * whitespace changed), the snapshot is restored and only the tokens after it are parsed. Things, states and
+ * sounds are allocated from what earlier blocks left, so a changed block can change everything after it, and
+ * only the blocks before the first change are ever reused. If the parser did not look at the end of the tokens
+ * before the snapshot at the end, that boundary is open, and blocks added after it are parsed from it.
+ * <p>Reading or writing a snapshot costs about as much as parsing the whole patch, so snapshots are only
+ * taken at the end, and only restored if nearly all of the tokens are before them. This means that only
+ * compiles that add blocks at the end, or only change whitespace, restore one: a compile after an edit
+ * to a block parses from the start. Boundaries are only recorded by the first compile and by compiles of
+ * the same sources as the last one, so the next compile of the same sources takes the snapshot that later
+ * unchanged compiles restore. Other compiles keep what is before the snapshot that they restored, if any.
+ * @author Matthew Tropiano
+ */
+final class DecoHackCache
+{
+	/** Cache file header. */
+	private static final String MAGIC = "DECOHack Compile Cache";
+	/** Cache file format version. */
+	private static final int FORMAT_VERSION = 4;
+	/** DECOHack version (the cache is not used across versions). */
+	private static final String VERSION = Common.getVersionString("decohack");
+	/** The charset that sources are read in (tokens are not reused across charsets). */
+	private static final String CHARSET = Charset.defaultCharset().name();
+	/** The most snapshots to keep. */
+	private static final int MAX_SNAPSHOTS = 4;
+	/** How recently a file can have been modified for its modified time to be trusted (some file systems keep whole seconds). */
+	private static final long MIN_FILE_AGE_MILLIS = 2000L;
+	/** The least fraction of the tokens that must be before a snapshot to restore it instead of parsing from the start. */
+	private static final double MIN_SNAPSHOT_PREFIX = 0.9;
+
+	/** Classes outside of DECOHack that can be in a snapshot. */
+	private static final Set<String> SNAPSHOT_CLASSES = new HashSet<String>()
+	{
+		private static final long serialVersionUID = 2165907633390271442L;
+		{
+			add("java.lang.Boolean");
+			add("java.lang.Enum");
+			add("java.lang.Integer");
+			add("java.lang.Number");
+			add("java.lang.String");
+			add("java.lang.String$CaseInsensitiveComparator");
+			add("java.util.HashMap");
+			add("java.util.TreeMap");
+			add("net.mtrop.doom.tools.struct.SparseBitSet");
+		}
+	};
+	/** Package of the classes in DECOHack that can be in a snapshot. */
+	private static final String SNAPSHOT_PACKAGE = "net.mtrop.doom.tools.decohack.";
+
+	/** The paths of the files read for the last compile, in order. */
+	private List<String> files;
+	/** The sources read for the last compile (besides built-in ones), or null if not known. */
+	private List<Source> sources;
+	/** The sources read for the last compile, by path. */
+	private Map<String, Source> sourcesByPath;
+	/** The digests of files that changed since the last compile, computed for this compile, by path. */
+	private Map<String, FileDigest> changedDigests;
+	/** The boundaries of the last compile, in order. */
+	private List<Boundary> boundaries;
+	/** Serialized parser states, by boundary index. */
+	private NavigableMap<Integer, byte[]> snapshots;
+	/** If true, the last boundary is at the end of the last compile's tokens, and has a snapshot. */
+	private boolean ended;
+
+	/** The digest of the tokens read by the parser so far. */
+	private TokenDigest tokenDigest;
+	/** If true, boundaries are recorded and a snapshot is taken at the end. */
+	private boolean snapshotAtEnd;
+	/** If true, the cache has changed since it was read. */
+	private boolean changed;
+
+	/**
+	 * The digest of a file's contents, and the length and modified time of the file when it was read.
+	 */
+	private static class FileDigest
+	{
+		private long length;
+		private long lastModified;
+		private String digest;
+
+		private FileDigest(long length, long lastModified, String digest)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		// Checks if the file is still the same length and modified time (if the time is known).
+		private boolean matches(long length, long lastModified)
+		{
+			return lastModified != 0L && this.lastModified == lastModified && this.length == length;
+		}
+	}
+
+	/**
+	 * A source file read for a compile.
+	 */
+	static class Source
+	{
+		/** The resource path. */
+		private String path;
+		/** The digest of its contents. */
+		private String digest;
+		/** The length of its file when it was read. */
+		private long length;
+		/** The modified time of its file when it was read (0 if not known or too recent to trust). */
+		private long lastModified;
+		/** Its include paths, and the resource paths that they were found at. */
+		private Map<String, String> includes;
+		/** The tokens that it was read into (null if they have not been read from the cache). */
+		private TokenizedResource resource;
+		/** The tokens that it was read into, as written to the cache (null if they have not been written yet). */
+		private byte[] tokenData;
+
+		/**
+		 * Creates a new source.
+		 * @param path the resource path.
+		 * @param digest the digest of its contents.
+		 * @param length the length of its file when it was read.
+		 * @param lastModified the modified time of its file when it was read (0 if not known or too recent to trust).
+		 * @param includes its include paths, and the resource paths that they were found at.
+		 * @param resource the tokens that it was read into.
+		 */
+		Source(String path, String digest, long length, long lastModified, Map<String, String> includes, TokenizedResource resource)
+		{
+			this.path = path;
+			this.digest = digest;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.includes = includes;
+			this.resource = resource;
+			this.tokenData = null;
+		}
+
+		// Gets the tokens as written to the cache.
+		private byte[] getTokenData() throws IOException
+		{
+			if (tokenData == null)
+			{
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(65536);
+				try (DataOutputStream out = new DataOutputStream(bos))
+				{
+					resource.writeData(out);
+				}
+				tokenData = bos.toByteArray();
+			}
+			return tokenData;
+		}
+
+		// Checks if its file is still the same length and modified time (if the time is known).
+		private boolean matches(long length, long lastModified)
+		{
+			return lastModified != 0L && this.lastModified == lastModified && this.length == length;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(path, digest, includes);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Source))
+				return false;
+			Source source = (Source)obj;
+			return path.equals(source.path) && digest.equals(source.digest) && includes.equals(source.includes);
+		}
+	}
+
+	/** The amount of snapshots restored, for tests. */
+	static final AtomicInteger RESTORE_COUNT = new AtomicInteger(0);
+
+	/**
+	 * A boundary between top-level blocks.
+	 */
+	private static class Boundary
+	{
+		/** The amount of tokens read before it. */
+		private int tokenCount;
+		/** The digest of the tokens read before it. */
+		private byte[] digest;
+		/** If true, this is at the end, but the end was not counted, so any tokens can come after it. */
+		private boolean open;
+
+		private Boundary(int tokenCount, byte[] digest, boolean open)
+		{
+			this.tokenCount = tokenCount;
+			this.digest = digest;
+			this.open = open;
+		}
+	}
+
+	/**
+	 * The running digest of the tokens read by a parser.
+	 * Each boundary's digest is chained to the one before it.
+	 */
+	private static class TokenDigest
+	{
+		private MessageDigest digest;
+		private int tokenCount;
+		// Token bytes waiting to be digested, since digesting each token on its own is slow.
+		private byte[] buffer;
+		private int bufferLength;
+
+		private TokenDigest()
+		{
+			try {
+				this.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-1 is not available on this JVM.", e);
+			}
+			this.tokenCount = 0;
+			this.buffer = new byte[16384];
+			this.bufferLength = 0;
+		}
+
+		private TokenDigest(Boundary boundary)
+		{
+			this();
+			this.digest.update(boundary.digest);
+			this.tokenCount = boundary.tokenCount;
+		}
+
+		// Adds a read token (null if the end was read).
+		private void update(Token token)
+		{
+			tokenCount++;
+			if (token == null)
+				return;
+
+			String lexeme = token.getLexeme();
+			int length = 8 + lexeme.length() * 2;
+			if (buffer.length - bufferLength < length)
+			{
+				flush();
+				if (buffer.length < length)
+					buffer = new byte[length];
+			}
+
+			int b = bufferLength;
+			b = putInt(token.getType(), b);
+			b = putInt(lexeme.length(), b);
+			for (int i = 0; i < lexeme.length(); i++)
+			{
+				char c = lexeme.charAt(i);
+				buffer[b++] = (byte)(c >>> 8);
+				buffer[b++] = (byte)c;
+			}
+			bufferLength = b;
+		}
+
+		// Puts an int in the buffer at an offset, returning the offset after it.
+		private int putInt(int value, int b)
+		{
+			buffer[b++] = (byte)(value >>> 24);
+			buffer[b++] = (byte)(value >>> 16);
+			buffer[b++] = (byte)(value >>> 8);
+			buffer[b++] = (byte)value;
+			return b;
+		}
+
+		// Digests the waiting token bytes.
+		private void flush()
+		{
+			digest.update(buffer, 0, bufferLength);
+			bufferLength = 0;
+		}
+
+		// Ends the digest at a boundary, and starts the next one from it.
+		private Boundary boundary()
+		{
+			flush();
+			byte[] out = digest.digest();
+			digest.update(out);
+			return new Boundary(tokenCount, out, false);
+		}
+	}
+
+	/**
+	 * The parser state restored from a snapshot.
+	 */
+	static class Restore
+	{
+		private int tokenCount;
+		private boolean open;
+		private AbstractPatchContext<?> context;
+		private Map<String, String> editorKeys;
+		private int lastAutoThingIndex;
+
+		/**
+		 * @return the amount of tokens that the parser read before the snapshot.
+		 */
+		int getTokenCount()
+		{
+			return tokenCount;
+		}
+
+		/**
+		 * @return true if the parser did not read the end before the snapshot, so the next token is read after the skipped ones.
+		 */
+		boolean isOpen()
+		{
+			return open;
+		}
+
+		/**
+		 * @return the patch context.
+		 */
+		AbstractPatchContext<?> getContext()
+		{
+			return context;
+		}
+
+		/**
+		 * @return the editor keys.
+		 */
+		Map<String, String> getEditorKeys()
+		{
+			return editorKeys;
+		}
+
+		/**
+		 * @return the last auto thing index.
+		 */
+		int getLastAutoThingIndex()
+		{
+			return lastAutoThingIndex;
+		}
+	}
+
+	private DecoHackCache()
+	{
+		this.files = new ArrayList<>();
+		this.sources = null;
+		this.sourcesByPath = new HashMap<>();
+		this.changedDigests = new ConcurrentHashMap<>();
+		this.boundaries = new ArrayList<>();
+		this.snapshots = new TreeMap<>();
+		this.ended = false;
+		this.tokenDigest = new TokenDigest();
+		this.snapshotAtEnd = true;
+		this.changed = true;
+	}
+
+	/**
+	 * Reads a compile cache file.
+	 * If the file does not exist, can't be read, or is from a different version or charset, an empty cache is returned.
+	 * @param file the cache file.
+	 * @return the cache read.
+	 */
+	static DecoHackCache read(File file)
+	{
+		DecoHackCache out = new DecoHackCache();
+		if (!file.exists())
+			return out;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			if (!MAGIC.equals(in.readUTF()) || in.readInt() != FORMAT_VERSION || !VERSION.equals(in.readUTF()) || !CHARSET.equals(in.readUTF()))
+				return out;
+
+			List<String> files = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--)
+				files.add(in.readUTF());
+			List<Source> sources = null;
+			if (in.readBoolean())
+			{
+				sources = new ArrayList<>();
+				for (int i = in.readInt(); i > 0; i--)
+				{
+					String path = in.readUTF();
+					String digest = in.readUTF();
+					long fileLength = in.readLong();
+					long lastModified = in.readLong();
+					Map<String, String> includes = new LinkedHashMap<>();
+					for (int j = in.readInt(); j > 0; j--)
+						includes.put(in.readUTF(), in.readUTF());
+					int length = in.readInt();
+					if (length < 0 || length > file.length())
+						return out;
+					Source source = new Source(path, digest, fileLength, lastModified, includes, null);
+					in.readFully(source.tokenData = new byte[length]);
+					sources.add(source);
+				}
+			}
+			List<Boundary> boundaries = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int tokenCount = in.readInt();
+				byte[] digest = new byte[in.readUnsignedByte()];
+				in.readFully(digest);
+				boundaries.add(new Boundary(tokenCount, digest, in.readBoolean()));
+			}
+			boolean ended = in.readBoolean();
+			NavigableMap<Integer, byte[]> snapshots = new TreeMap<>();
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int index = in.readInt();
+				int length = in.readInt();
+				if (index < 0 || index >= boundaries.size() || length < 0 || length > file.length())
+					return out;
+				byte[] data = new byte[length];
+				in.readFully(data);
+				snapshots.put(index, data);
+			}
+			out.files = files;
+			out.sources = sources;
+			if (sources != null)
+			{
+				for (Source source : sources)
+					out.sourcesByPath.put(source.path, source);
+			}
+			out.boundaries = boundaries;
+			out.snapshots = snapshots;
+			out.ended = ended;
+			out.changed = false;
+		}
+		catch (IOException | SecurityException e)
+		{
+			// Bad caches are compiled from scratch.
+		}
+		return out;
+	}
+
+	/**
+	 * Writes this cache to a file, if it changed since it was read.
+	 * @param file the cache file.
+	 * @throws IOException if the file could not be written.
+	 * @throws SecurityException if you do not have permission to write the file.
+	 */
+	void write(File file) throws IOException
+	{
+		if (!changed)
+			return;
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			out.writeUTF(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(VERSION);
+			out.writeUTF(CHARSET);
+			out.writeInt(files.size());
+			for (String path : files)
+				out.writeUTF(path);
+			out.writeBoolean(sources != null);
+			if (sources != null)
+			{
+				out.writeInt(sources.size());
+				for (Source source : sources)
+				{
+					out.writeUTF(source.path);
+					out.writeUTF(source.digest);
+					out.writeLong(source.length);
+					out.writeLong(source.lastModified);
+					out.writeInt(source.includes.size());
+					for (Map.Entry<String, String> entry : source.includes.entrySet())
+					{
+						out.writeUTF(entry.getKey());
+						out.writeUTF(entry.getValue());
+					}
+					byte[] tokenData = source.getTokenData();
+					out.writeInt(tokenData.length);
+					out.write(tokenData);
+				}
+			}
+			out.writeInt(boundaries.size());
+			for (Boundary boundary : boundaries)
+			{
+				out.writeInt(boundary.tokenCount);
+				out.writeByte(boundary.digest.length);
+				out.write(boundary.digest);
+				out.writeBoolean(boundary.open);
+			}
+			out.writeBoolean(ended);
+			out.writeInt(snapshots.size());
+			for (Map.Entry<Integer, byte[]> entry : snapshots.entrySet())
+			{
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue().length);
+				out.write(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Restores the patch from the end of the last compile, if the same files are read, 
+	 * and none of the sources that they read have changed since.
+	 * @param files the paths of the files to read, in order.
+	 * @param includer the includer to read sources and find includes with.
+	 * @return the restored patch, or null if it can't be restored (parse as usual).
+	 */
+	AbstractPatchContext<?> restoreUnchanged(List<String> files, Includer includer)
+	{
+		int end = boundaries.size() - 1;
+		if (sources == null || !ended || !files.equals(this.files) || !snapshots.containsKey(end))
+			return null;
+		for (Source source : sources)
+		{
+			if (!isUnchanged(source, includer))
+				return null;
+		}
+
+		Restore restore;
+		if ((restore = readSnapshot(end)) == null)
+			return null;
+		RESTORE_COUNT.incrementAndGet();
+		return restore.context;
+	}
+
+	// Checks if the contents and includes of a source are still the same.
+	// Its file is only read if its length or modified time changed. If its contents changed, the digest is kept for this compile.
+	private boolean isUnchanged(Source source, Includer includer)
+	{
+		try {
+			File file = new File(source.path);
+			long length = file.length();
+			long lastModified = getLastModified(file);
+			if (!source.matches(length, lastModified))
+			{
+				String digest;
+				try (InputStream in = includer.getIncludeResource(source.path))
+				{
+					if (in == null)
+						return false;
+					digest = Common.getDigest(IOUtils.getBinaryContents(in));
+				}
+				if (!source.digest.equals(digest))
+				{
+					changedDigests.put(source.path, new FileDigest(length, lastModified, digest));
+					return false;
+				}
+				// Same contents, so only the file's length and time are new.
+				source.length = length;
+				source.lastModified = lastModified;
+				changed = true;
+			}
+			for (Map.Entry<String, String> entry : source.includes.entrySet())
+			{
+				if (!entry.getValue().equals(includer.getIncludeResourcePath(source.path, entry.getKey())))
+					return false;
+			}
+			return true;
+		}
+		catch (IOException | SecurityException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the modified time of a file, if it can be trusted to change when the file does.
+	 * Files modified just now could be modified again without changing it.
+	 * @param file the file.
+	 * @return the modified time, or 0 if it is not known or too recent.
+	 */
+	static long getLastModified(File file)
+	{
+		long out = file.lastModified();
+		return System.currentTimeMillis() - out >= MIN_FILE_AGE_MILLIS ? out : 0L;
+	}
+
+	/**
+	 * Gets the digest of a source file's contents without reading them, if its file is the same length
+	 * and modified time as when it was last digested, by the last compile or this one.
+	 * This can be called from many threads at once.
+	 * @param path the resource path.
+	 * @param length the length of its file now.
+	 * @param lastModified the modified time of its file now, from {@link #getLastModified(File)}.
+	 * @return the digest, or null if it is not known (read and digest the contents).
+	 */
+	String getDigest(String path, long length, long lastModified)
+	{
+		Source source;
+		FileDigest fileDigest;
+		if ((source = sourcesByPath.get(path)) != null && source.matches(length, lastModified))
+			return source.digest;
+		if ((fileDigest = changedDigests.get(path)) != null && fileDigest.matches(length, lastModified))
+			return fileDigest.digest;
+		return null;
+	}
+
+	/**
+	 * Gets the tokens that a source file was read into for the last compile, if its contents are the same.
+	 * This can be called from many threads at once, but only once for each path.
+	 * @param path the resource path.
+	 * @param digest the digest of its contents now.
+	 * @return the tokens, or null if there are none for these contents (read it into tokens).
+	 */
+	TokenizedResource getTokens(String path, String digest)
+	{
+		Source source;
+		if ((source = sourcesByPath.get(path)) == null || !source.digest.equals(digest))
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(source.tokenData)))
+		{
+			return source.resource = TokenizedResource.readData(in);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// Bad tokens are read again.
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the files and sources read for this compile.
+	 * If this is the first compile, or the sources are the same as the last compile's, a snapshot is taken at the end.
+	 * @param files the paths of the files read, in order.
+	 * @param sources the sources read (besides built-in ones), or null if not known.
+	 */
+	void setSources(List<String> files, List<Source> sources)
+	{
+		snapshotAtEnd = sources != null && (this.files.isEmpty() || (files.equals(this.files) && sources.equals(this.sources)));
+		if (files.equals(this.files) && Objects.equals(sources, this.sources) && sameFileTimes(sources))
+			return;
+		if (sources != null)
+		{
+			// Tokens that were read from the cache don't need to be written again.
+			for (Source source : sources)
+			{
+				Source previous;
+				if ((previous = sourcesByPath.get(source.path)) != null && previous.resource == source.resource)
+					source.tokenData = previous.tokenData;
+			}
+		}
+		this.files = files;
+		this.sources = sources;
+		changed = true;
+	}
+
+	// Checks if the files of the sources are the same length and modified time as the last compile's.
+	private boolean sameFileTimes(List<Source> sources)
+	{
+		if (sources == null)
+			return true;
+		for (Source source : sources)
+		{
+			Source previous;
+			if ((previous = sourcesByPath.get(source.path)) == null || previous.length != source.length || previous.lastModified != source.lastModified)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds where the tokens to parse first change from the last compile, and restores the latest snapshot before it,
+	 * if nearly all of the tokens are before that snapshot.
+	 * Everything in this cache after the restored snapshot is dropped, or everything, if there is none.
+	 * @param tokens all of the tokens that the parser will read, in order.
+	 * @return the restored state, or null if there is no usable snapshot (parse from the start).
+	 */
+	Restore restore(Collection<Token> tokens)
+	{
+		int matchIndex = -1;
+		// Without a snapshot, there is nothing to compare the tokens to.
+		if (!snapshots.isEmpty())
+		{
+			TokenDigest prefixDigest = new TokenDigest();
+			Iterator<Token> it = tokens.iterator();
+			for (int i = 0; i < boundaries.size(); i++)
+			{
+				Boundary boundary = boundaries.get(i);
+				while (prefixDigest.tokenCount < boundary.tokenCount)
+					prefixDigest.update(it.hasNext() ? it.next() : null);
+				if (!Arrays.equals(prefixDigest.boundary().digest, boundary.digest))
+					break;
+				matchIndex = i;
+			}
+		}
+
+		Integer index = snapshots.floorKey(matchIndex);
+		if (index != null && boundaries.get(index).tokenCount < tokens.size() * MIN_SNAPSHOT_PREFIX)
+			index = null;
+
+		Restore out = null;
+		if (index != null && (out = readSnapshot(index)) == null)
+			index = null;
+
+		// Compiles keep what is before the restored snapshot. Only compiles that take a snapshot record the rest.
+		int keepIndex = index != null ? index : -1;
+		if (boundaries.size() > keepIndex + 1)
+		{
+			boundaries.subList(keepIndex + 1, boundaries.size()).clear();
+			snapshots.tailMap(keepIndex, false).clear();
+			changed = true;
+		}
+		tokenDigest = keepIndex >= 0 ? new TokenDigest(boundaries.get(keepIndex)) : new TokenDigest();
+
+		// A snapshot restored at the end of these tokens is still the end.
+		boolean ended = out != null && out.tokenCount + (out.open ? 0 : -1) >= tokens.size();
+		if (this.ended != ended)
+		{
+			this.ended = ended;
+			changed = true;
+		}
+		if (out != null)
+			RESTORE_COUNT.incrementAndGet();
+		return out;
+	}
+
+	// Reads a snapshot. If it can't be read, the whole cache is dropped.
+	private Restore readSnapshot(int index)
+	{
+		Restore out = new Restore();
+		try (ObjectInputStream in = new SnapshotInputStream(new ByteArrayInputStream(snapshots.get(index))))
+		{
+			out.context = (AbstractPatchContext<?>)in.readObject();
+			out.editorKeys = castMap(in.readObject());
+			out.lastAutoThingIndex = in.readInt();
+		}
+		catch (IOException | ClassNotFoundException | RuntimeException e)
+		{
+			// Bad snapshots are compiled from scratch.
+			boundaries.clear();
+			snapshots.clear();
+			changed = true;
+			return null;
+		}
+		out.tokenCount = boundaries.get(index).tokenCount;
+		out.open = boundaries.get(index).open;
+		return out;
+	}
+
+	/**
+	 * Adds a token read by the parser.
+	 * @param token the token read, or null if the end was read.
+	 */
+	void update(Token token)
+	{
+		if (snapshotAtEnd)
+			tokenDigest.update(token);
+	}
+
+	/**
+	 * Adds a boundary between top-level blocks, and takes a snapshot of the parser state if it is the end,
+	 * if this compile records them.
+	 * @param end true if this is the boundary at the end of the tokens.
+	 * @param open true if this is the end, but the parser did not look at the end, so more blocks can be parsed after it.
+	 * @param context the patch context.
+	 * @param editorKeys the editor keys.
+	 * @param lastAutoThingIndex the last auto thing index.
+	 */
+	void addBoundary(boolean end, boolean open, AbstractPatchContext<?> context, Map<String, String> editorKeys, int lastAutoThingIndex)
+	{
+		if (!snapshotAtEnd)
+			return;
+
+		int index = boundaries.size();
+		Boundary boundary = tokenDigest.boundary();
+		if (open)
+		{
+			// The end adds nothing to the digest, so only its count is taken back.
+			boundary.tokenCount--;
+			boundary.open = true;
+		}
+		boundaries.add(boundary);
+		changed = true;
+
+		if (end)
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(65536);
+			try (ObjectOutputStream out = new ObjectOutputStream(bos))
+			{
+				out.writeObject(context);
+				out.writeObject(editorKeys);
+				out.writeInt(lastAutoThingIndex);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Could not take a snapshot of the patch.", e);
+			}
+			snapshots.put(index, bos.toByteArray());
+			while (snapshots.size() > MAX_SNAPSHOTS)
+				snapshots.pollFirstEntry();
+			ended = true;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, String> castMap(Object object)
+	{
+		return (Map<String, String>)object;
+	}
+
+	/**
+	 * An object input stream that only reads the classes that can be in a snapshot.
+	 */
+	private static class SnapshotInputStream extends ObjectInputStream
+	{
+		private SnapshotInputStream(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			String name = desc.getName();
+			int dimensions = 0;
+			while (dimensions < name.length() && name.charAt(dimensions) == '[')
+				dimensions++;
+			if (dimensions > 0)
+				name = name.length() == dimensions + 1 ? "" : name.substring(dimensions + 1, name.length() - 1);
+
+			if (!name.isEmpty() && !name.startsWith(SNAPSHOT_PACKAGE) && !SNAPSHOT_CLASSES.contains(name))
+				throw new InvalidClassException(desc.getName(), "Class can't be in a DECOHack cache.");
+			return super.resolveClass(desc);
+		}
+	}
+
+}
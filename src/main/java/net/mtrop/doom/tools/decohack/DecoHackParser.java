@@ -5,6 +5,7 @@
  ******************************************************************************/
 package net.mtrop.doom.tools.decohack;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -15,15 +16,21 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.decohack.contexts.AbstractPatchContext;
 import net.mtrop.doom.tools.decohack.contexts.PatchBoomContext;
 import net.mtrop.doom.tools.decohack.contexts.PatchDSDHackedContext;
@@ -55,9 +62,11 @@ import net.mtrop.doom.tools.decohack.data.DEHWeaponTemplate;
 import net.mtrop.doom.tools.decohack.exception.DecoHackParseException;
 import net.mtrop.doom.tools.decohack.patches.DEHPatch;
 import net.mtrop.doom.tools.decohack.patches.DEHPatchBoom.EpisodeMap;
+import net.mtrop.doom.tools.struct.AsyncFactory;
 import net.mtrop.doom.tools.struct.Lexer;
 import net.mtrop.doom.tools.struct.PreprocessorLexer;
 import net.mtrop.doom.tools.struct.util.EnumUtils;
+import net.mtrop.doom.tools.struct.util.IOUtils;
 
 /**
  * The DecoHack parser.
@@ -221,6 +230,7 @@ public final class DecoHackParser extends Lexer.Parser
 
 	/**
 	 * Reads a DECOHack script from a starting text file.
+	 * <p>The files and everything that they include are read into tokens first, at the same time.
 	 * @param files the files to read from (as though each file is included, in order).
 	 * @return an exportable patch.
 	 * @throws DecoHackParseException if one or more parse errors happen.
@@ -229,23 +239,111 @@ public final class DecoHackParser extends Lexer.Parser
 	 * @throws NullPointerException if file is null. 
 	 */
 	public static AbstractPatchContext<?> read(Iterable<File> files) throws IOException
+	{
+		return read(files, null);
+	}
+
+	/**
+	 * Reads a DECOHack script from a starting text file, using a compile cache file.
+	 * <p>The files and everything that they include are read into tokens first, at the same time.
+	 * <p>If a cache file is provided and none of the files or what they include changed since the last compile that used it,
+	 * the patch is restored from it without parsing. Otherwise, files that did not change get their tokens from it, 
+	 * and the patch is restored from the latest snapshot that nearly all of the tokens are before, if any, and the rest is parsed. The cache is updated after a successful parse.
+	 * The resulting patch is the same as one parsed from the start.
+	 * @param files the files to read from (as though each file is included, in order).
+	 * @param cacheFile the compile cache file to use, or null for no cache. It does not need to exist.
+	 * @return an exportable patch.
+	 * @throws DecoHackParseException if one or more parse errors happen.
+	 * @throws IOException if the stream can't be read, or the cache file can't be written.
+	 * @throws SecurityException if a read error happens due to OS permissioning.
+	 * @throws NullPointerException if file is null. 
+	 */
+	public static AbstractPatchContext<?> read(Iterable<File> files, File cacheFile) throws IOException
 	{
 		DecoHackParser parser = new DecoHackParser(null, null);
-		Lexer lexer = parser.getLexer();
+		DecoHackLexer lexer = (DecoHackLexer)parser.getLexer();
 		
-		// Lexer streams are a stack, so add files backwards for the correct order.
-		Deque<File> backwards = new LinkedList<>();
+		List<String> paths = new ArrayList<>();
 		for (File file : files)
-			backwards.push(file);
-		while (!backwards.isEmpty())
+			paths.add(file.getPath());
+		
+		DecoHackCache cache = null;
+		if (cacheFile != null)
 		{
-			File file = backwards.pollFirst();
-			lexer.pushStream(file.getPath(), new InputStreamReader(new FileInputStream(file)));
+			cache = DecoHackCache.read(cacheFile);
+			AbstractPatchContext<?> out;
+			if ((out = cache.restoreUnchanged(paths, lexer.includer)) != null)
+			{
+				// Files that were touched, but not changed, have new times.
+				cache.write(cacheFile);
+				return out;
+			}
+		}
+		
+		// The cache can only be used if every token is known before parsing.
+		if (lexer.pushTokenizedFiles(paths, cache))
+		{
+			if (cache != null)
+			{
+				cache.setSources(paths, lexer.sources);
+				parser.cache = cache;
+				AbstractPatchContext<?> out = parser.parse();
+				cache.write(cacheFile);
+				return out;
+			}
+		}
+		else
+		{
+			// Lexer streams are a stack, so add files backwards for the correct order.
+			Deque<File> backwards = new LinkedList<>();
+			for (File file : files)
+				backwards.push(file);
+			while (!backwards.isEmpty())
+			{
+				File file = backwards.pollFirst();
+				lexer.pushStream(file.getPath(), new InputStreamReader(new FileInputStream(file)));
+			}
 		}
 
 		return parser.parse();
 	}
 
+	/**
+	 * Reads every token of a DECOHack script the way that the parser gets them, without parsing them.
+	 * If a directive has an error, the tokens before it are still added to the list.
+	 * @param paths the resource paths to read from (as though each is included, in order).
+	 * @param tokenized if true, the resources are read into tokens first, else they are read as streams.
+	 * @param out the list to add the tokens to.
+	 * @return true if the tokens were read, false if they could only be read as streams and tokenized is true.
+	 * @throws IOException if a resource can't be read.
+	 * @throws PreprocessorLexer.PreprocessorException if a directive has an error.
+	 */
+	static boolean readTokens(List<String> paths, boolean tokenized, List<Lexer.Token> out) throws IOException
+	{
+		DecoHackLexer lexer = new DecoHackLexer(null, null);
+		if (tokenized)
+		{
+			if (!lexer.pushTokenizedFiles(paths, null))
+				return false;
+		}
+		else
+		{
+			// Lexer streams are a stack, so add resources backwards for the correct order.
+			for (int i = paths.size() - 1; i >= 0; i--)
+			{
+				InputStream in;
+				if ((in = lexer.includer.getIncludeResource(paths.get(i))) == null)
+					throw new IOException("Could not open " + paths.get(i));
+				lexer.pushStream(paths.get(i), new InputStreamReader(in));
+			}
+		}
+		
+		Lexer.Token token;
+		while ((token = lexer.nextToken()) != null)
+			out.add(token);
+		return true;
+	}
+
 	/**
 	 * Reads a DECOHack script.
 	 * @param streamName the name of the stream.
@@ -278,11 +376,33 @@ public final class DecoHackParser extends Lexer.Parser
 
 	// =======================================================================
 
+	@Override
+	protected Lexer.Token currentToken()
+	{
+		Lexer.Token out;
+		if ((out = super.currentToken()) == null)
+			endConsulted = true;
+		return out;
+	}
+
+	@Override
+	protected boolean currentType(int... tokenTypes)
+	{
+		if (super.currentToken() == null)
+			endConsulted = true;
+		return super.currentType(tokenTypes);
+	}
+
 	@Override
 	protected void nextToken() 
 	{
+		// Reading past the end depends on it as much as looking at it.
+		if (super.currentToken() == null)
+			endConsulted = true;
 		do {
 			super.nextToken();
+			if (cache != null)
+				cache.update(super.currentToken());
 			
 			/*
 			 * Some line comments are DECORATE Actor editor keys.
@@ -291,10 +411,10 @@ public final class DecoHackParser extends Lexer.Parser
 			 * be treated like a comment in other situations. Passive parsing of these
 			 * key comments seems to be the "best of both worlds" approach.
 			 */
-			if (currentType(DecoHackKernel.TYPE_LINE_COMMENT) && currentToken().getLexeme().startsWith("$"))
+			if (super.currentType(DecoHackKernel.TYPE_LINE_COMMENT) && super.currentToken().getLexeme().startsWith("$"))
 			{
 				// Lazily split this thing.
-				String content = currentToken().getLexeme().substring(1).trim();
+				String content = super.currentToken().getLexeme().substring(1).trim();
 				int splitIndex = content.indexOf(' ');
 				if (splitIndex > 0)
 				{
@@ -307,7 +427,7 @@ public final class DecoHackParser extends Lexer.Parser
 					editorKeys.put(content, "");
 			}
 			
-		} while (currentType(DecoHackKernel.TYPE_COMMENT, DecoHackKernel.TYPE_LINE_COMMENT));
+		} while (super.currentType(DecoHackKernel.TYPE_COMMENT, DecoHackKernel.TYPE_LINE_COMMENT));
 	}
 	
 	// =======================================================================
@@ -4131,6 +4251,10 @@ public final class DecoHackParser extends Lexer.Parser
 	private Map<String, String> editorKeys;
 	/** Last auto thing index (for slightly better search continuation). */
 	private int lastAutoThingIndex;
+	/** Compile cache (can be null). */
+	private DecoHackCache cache;
+	/** If true, the parser looked at the end of the tokens (the parse may depend on nothing coming after). */
+	private boolean endConsulted;
 
 	// Return the exporter for the patch.
 	private DecoHackParser(String streamName, Reader in)
@@ -4139,6 +4263,8 @@ public final class DecoHackParser extends Lexer.Parser
 		this.errors = new LinkedList<>();
 		this.editorKeys = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		this.lastAutoThingIndex = 0;
+		this.cache = null;
+		this.endConsulted = false;
 	}
 	
 	private void addErrorMessage(String message, Object... args)
@@ -4159,18 +4285,26 @@ public final class DecoHackParser extends Lexer.Parser
 	 */
 	public AbstractPatchContext<?> parse()
 	{
-		// prime first token.
-		nextToken();
-		
 		boolean noError;
 		AbstractPatchContext<?> context = null;
 		
 		try {
-			context = parseUsing();
+			if ((context = restore()) == null)
+			{
+				// prime first token.
+				nextToken();
+				endConsulted = false;
+				if ((context = parseUsing()) != null)
+					addBoundary(context);
+			}
 			// keep parsing entries.
 			noError = context != null;
 			while (currentToken() != null && noError)
+			{
 				noError = parseEntry(context);
+				if (noError)
+					addBoundary(context);
+			}
 		} catch (DecoHackParseException e) {
 			addErrorMessage(e.getMessage());
 			noError = false;
@@ -4204,6 +4338,35 @@ public final class DecoHackParser extends Lexer.Parser
 		return context;
 	}
 	
+	// Restores the parser from the cache, if there is a snapshot before the first change since the last compile.
+	// Returns the restored context, or null if parsing needs to start from the beginning.
+	private AbstractPatchContext<?> restore()
+	{
+		DecoHackCache.Restore restore;
+		if (cache == null || (restore = cache.restore(((PreprocessorLexer)getLexer()).getQueuedTokens())) == null)
+			return null;
+		
+		this.editorKeys = restore.getEditorKeys();
+		this.lastAutoThingIndex = restore.getLastAutoThingIndex();
+		// Skip the tokens parsed before the snapshot (comments were already read for editor keys).
+		for (int i = 0; i < restore.getTokenCount(); i++)
+			super.nextToken();
+		// If the end was not read before the snapshot, read what comes after it instead.
+		if (restore.isOpen())
+			nextToken();
+		return restore.getContext();
+	}
+	
+	// Adds a boundary between blocks to the cache, if any.
+	private void addBoundary(AbstractPatchContext<?> context)
+	{
+		if (cache != null)
+		{
+			boolean end = super.currentToken() == null;
+			cache.addBoundary(end, end && !endConsulted, context, editorKeys, lastAutoThingIndex);
+		}
+	}
+	
 	@FunctionalInterface
 	private static interface LabelApplier
 	{
@@ -4521,10 +4684,48 @@ public final class DecoHackParser extends Lexer.Parser
 	{
 		private static final Kernel KERNEL = new DecoHackKernel();
 
+		/** Path prefix of built-in resources. */
+		private static final String CLASSPATH_PREFIX = "classpath:";
+		/** Path prefix of the built-in constants, which are only directives (besides the aliases). */
+		private static final String CONSTANTS_PREFIX = "classpath:decohack/constants/";
+		/** Snapshots of the built-in constants, read once and shared by every lexer. Empty if a resource can't have one. */
+		private static final Map<String, Optional<IncludeSnapshot>> CONSTANTS_SNAPSHOTS = new ConcurrentHashMap<>();
+		/** The thread pool for reading resources into tokens, shared by every lexer. */
+		private static final AsyncFactory ASYNC = new AsyncFactory(Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+		/** The includer. */
+		private Includer includer;
+		/** The resources tokenized for the files being read, by path. */
+		private Map<String, TokenizedResource> tokenizedResources;
+		/** The sources tokenized for the files being read (besides built-in ones). Null if some could not be tokenized. */
+		private List<DecoHackCache.Source> sources;
+		
+		/**
+		 * A tokenized resource and the digest of the contents that it was read from, if needed,
+		 * with the length and modified time of its file.
+		 */
+		private static class TokenizedContents
+		{
+			private String digest;
+			private long length;
+			private long lastModified;
+			private TokenizedResource resource;
+			
+			private TokenizedContents(String digest, long length, long lastModified, TokenizedResource resource)
+			{
+				this.digest = digest;
+				this.length = length;
+				this.lastModified = lastModified;
+				this.resource = resource;
+			}
+		}
+		
 		private DecoHackLexer(String streamName, Reader in)
 		{
 			super(KERNEL, streamName, in);
-			setIncluder(new PreprocessorLexer.DefaultIncluder() 
+			this.tokenizedResources = new HashMap<>();
+			this.sources = null;
+			setIncluder(includer = new PreprocessorLexer.DefaultIncluder() 
 			{
 				private final Map<String, String> SPECIAL_INCLUDES = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER)
 				{
@@ -4555,8 +4756,186 @@ public final class DecoHackParser extends Lexer.Parser
 						return super.getIncludeResourcePath(streamName, path);
 					}
 				}
+				
+				@Override
+				public IncludeSnapshot getIncludeSnapshot(String path) throws IOException
+				{
+					return getConstantsSnapshot(this, path, new HashSet<>());
+				}
+				
+				@Override
+				public TokenizedResource getTokenizedResource(String path) throws IOException
+				{
+					TokenizedResource out;
+					if ((out = tokenizedResources.get(path)) == null && (out = readTokenizedResource(this, path)) != null)
+						tokenizedResources.put(path, out);
+					return out;
+				}
 			});
 		}
+		
+		/**
+		 * Reads files and everything that they include as tokenized resources, and queues up their tokens.
+		 * Resources are read at the same time on a thread pool, a level of includes at a time. 
+		 * Built-in constants that have snapshots are included from them, so they are not read.
+		 * @param paths the paths of the files to read.
+		 * @param cache the compile cache, or null for none. If not null, files that have not changed since the last 
+		 * 		compile are not read into tokens again, and the digests of the files' contents are kept as the lexer's sources.
+		 * @return true if the tokens were queued, false if the files need to be read as streams instead.
+		 */
+		private boolean pushTokenizedFiles(List<String> paths, DecoHackCache cache)
+		{
+			sources = cache != null ? new ArrayList<>() : null;
+			Set<String> seen = new HashSet<>(paths);
+			List<String> next = new ArrayList<>(seen);
+			while (!next.isEmpty())
+			{
+				Map<String, AsyncFactory.Instance<TokenizedContents>> instances = new LinkedHashMap<>();
+				for (String path : next)
+					instances.put(path, ASYNC.spawn(() -> readTokenizedContents(includer, path, cache)));
+				
+				next = new ArrayList<>();
+				for (Map.Entry<String, AsyncFactory.Instance<TokenizedContents>> entry : instances.entrySet())
+				{
+					AsyncFactory.Instance<TokenizedContents> instance = entry.getValue();
+					TokenizedContents contents;
+					// Resources that can't be read are left for the lexer to report.
+					if (instance.getException() != null || (contents = instance.result()) == null || contents.resource == null)
+					{
+						sources = null;
+						continue;
+					}
+					
+					TokenizedResource resource = contents.resource;
+					tokenizedResources.put(entry.getKey(), resource);
+					Map<String, String> includes = new LinkedHashMap<>();
+					for (String includePath : resource.getIncludePaths())
+					{
+						String resolvedPath = null;
+						try {
+							resolvedPath = includer.getIncludeResourcePath(resource.getStreamName(), includePath);
+						} catch (IOException e) {
+							// Left for the lexer to report.
+						}
+						if (resolvedPath == null)
+						{
+							sources = null;
+							continue;
+						}
+						includes.put(includePath, resolvedPath);
+						if (seen.add(resolvedPath) && !hasConstantsSnapshot(resolvedPath))
+							next.add(resolvedPath);
+					}
+					if (sources != null && !entry.getKey().startsWith(CLASSPATH_PREFIX))
+						sources.add(new DecoHackCache.Source(entry.getKey(), contents.digest, contents.length, contents.lastModified, includes, resource));
+				}
+			}
+			
+			List<TokenizedResource> resources = new ArrayList<>(paths.size());
+			for (String path : paths)
+			{
+				TokenizedResource resource;
+				if ((resource = tokenizedResources.get(path)) == null)
+					return false;
+				resources.add(resource);
+			}
+			return pushTokenized(resources);
+		}
+		
+		// Checks if a resource is included from a built-in constants snapshot.
+		private boolean hasConstantsSnapshot(String path)
+		{
+			try {
+				return getConstantsSnapshot(includer, path, new HashSet<>()) != null;
+			} catch (IOException e) {
+				// Left for the lexer to report.
+				return false;
+			}
+		}
+		
+		// Reads a tokenized resource.
+		private static TokenizedResource readTokenizedResource(Includer includer, String path) throws IOException
+		{
+			TokenizedContents contents;
+			return (contents = readTokenizedContents(includer, path, null)) != null ? contents.resource : null;
+		}
+		
+		// Reads a tokenized resource and, if there is a compile cache, the digest of its contents.
+		// Files that are the same as the last compile's get their tokens from the cache, and are not read
+		// if the cache already knows their digest.
+		private static TokenizedContents readTokenizedContents(Includer includer, String path, DecoHackCache cache) throws IOException
+		{
+			boolean cached = cache != null && !path.startsWith(CLASSPATH_PREFIX);
+			long length = 0L;
+			long lastModified = 0L;
+			String digest = null;
+			TokenizedResource resource = null;
+			if (cached)
+			{
+				File file = new File(path);
+				length = file.length();
+				lastModified = DecoHackCache.getLastModified(file);
+				if ((digest = cache.getDigest(path, length, lastModified)) != null)
+					resource = cache.getTokens(path, digest);
+			}
+			
+			if (resource == null)
+			{
+				byte[] data;
+				try (InputStream in = includer.getIncludeResource(path))
+				{
+					if (in == null)
+						return null;
+					data = IOUtils.getBinaryContents(in);
+				}
+				if (cached && digest == null)
+				{
+					digest = Common.getDigest(data);
+					resource = cache.getTokens(path, digest);
+				}
+				if (resource == null)
+					resource = TokenizedResource.read(KERNEL, path, new InputStreamReader(new ByteArrayInputStream(data)));
+			}
+			return new TokenizedContents(digest, length, lastModified, resource);
+		}
+		
+		// Gets a built-in constants snapshot, reading it on first use.
+		// A snapshot is only kept if everything that it includes has one as well.
+		private static IncludeSnapshot getConstantsSnapshot(Includer includer, String path, Set<String> visiting) throws IOException
+		{
+			if (!path.startsWith(CONSTANTS_PREFIX))
+				return null;
+
+			Optional<IncludeSnapshot> out;
+			if ((out = CONSTANTS_SNAPSHOTS.get(path)) == null)
+			{
+				if (!visiting.add(path))
+					return null;
+				
+				IncludeSnapshot snapshot = null;
+				try (InputStream in = includer.getIncludeResource(path))
+				{
+					if (in != null)
+						snapshot = IncludeSnapshot.read(path, new InputStreamReader(in));
+				}
+				if (snapshot != null)
+				{
+					for (String includePath : snapshot.getIncludePaths())
+					{
+						String resolvedPath = includer.getIncludeResourcePath(path, includePath);
+						if (resolvedPath == null || getConstantsSnapshot(includer, resolvedPath, visiting) == null)
+						{
+							snapshot = null;
+							break;
+						}
+					}
+				}
+				
+				visiting.remove(path);
+				CONSTANTS_SNAPSHOTS.put(path, out = Optional.ofNullable(snapshot));
+			}
+			return out.orElse(null);
+		}
 	}
 
 }
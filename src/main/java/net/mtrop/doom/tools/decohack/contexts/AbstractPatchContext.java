@@ -6,7 +6,12 @@
 package net.mtrop.doom.tools.decohack.contexts;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.io.Writer;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -26,32 +31,38 @@ import net.mtrop.doom.tools.decohack.data.enums.DEHActionPointer;
 import net.mtrop.doom.tools.decohack.data.enums.DEHActionPointerType;
 import net.mtrop.doom.tools.decohack.data.enums.DEHFeatureLevel;
 import net.mtrop.doom.tools.decohack.patches.DEHPatch;
-import net.mtrop.doom.tools.struct.IntervalMap;
+import net.mtrop.doom.tools.struct.SparseBitSet;
 
 /**
  * Abstract patch context.
+ * Contexts can be serialized, so that they can be kept between compiles.
  * @author Matthew Tropiano
  * @param <P> DEH patch type.
  */
-public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPatch
+public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPatch, Serializable
 {
+	private static final long serialVersionUID = 6221318269307089587L;
+
 	protected static final String CRLF = "\r\n";
+	/** Values written for each state, besides its args. */
+	private static final int STATE_FIELDS = 10;
 
 	private Map<Integer, DEHAmmo> ammo;
 	private Map<Integer, DEHSound> sounds;
 	private Map<Integer, DEHWeapon> weapons;
 	private Map<Integer, DEHThing> things;
-	private Map<Integer, DEHState> states;
-	private Map<Integer, DEHActionPointer> pointers;
+	/** Written by hand - there can be a lot of these. */
+	private transient Map<Integer, DEHState> states;
+	/** Written by hand - there can be a lot of these. */
+	private transient Map<Integer, DEHActionPointer> pointers;
 	private DEHMiscellany miscellany;
 
-	private int freeStateCount;
-	private int freePointerStateCount;
-	private int freeThingCount;
+	/** States that have an action pointer, or null if every state has one. */
+	private SparseBitSet pointerStates;
 
-	protected IntervalMap<Boolean> freeStatesMap;
-	protected IntervalMap<Boolean> protectedStatesMap;
-	protected IntervalMap<Boolean> freeThingsMap;
+	protected SparseBitSet freeStates;
+	protected SparseBitSet protectedStates;
+	protected SparseBitSet freeThings;
 	
 	protected Map<String, Integer> thingAliasMap;
 	protected Map<String, Integer> weaponAliasMap;
@@ -115,12 +126,18 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 		
 		this.miscellany = (new DEHMiscellany()).copyFrom(source.getMiscellany());
 		
-		this.freeStateCount = 0;
-		this.freeStatesMap = new IntervalMap<>(0, getStateCount() - 1, false);
-		this.protectedStatesMap = new IntervalMap<>(0, getStateCount() - 1, false);
-
-		this.freeThingCount = 0;
-		this.freeThingsMap = new IntervalMap<>(0, getThingCount() - 1, false);
+		this.pointerStates = null;
+		if (getActionPointerCount() < getStateCount())
+		{
+			this.pointerStates = new SparseBitSet();
+			for (int i = 0; i < getStateCount(); i++)
+				if (getStateActionPointerIndex(i) != null)
+					pointerStates.set(i, true);
+		}
+		
+		this.freeStates = new SparseBitSet();
+		this.protectedStates = new SparseBitSet();
+		this.freeThings = new SparseBitSet();
 		this.thingAliasMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		this.weaponAliasMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 		
@@ -322,7 +339,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public int getFreeStateCount() 
 	{
-		return freeStateCount;
+		return (int)freeStates.cardinality();
 	}
 	
 	/**
@@ -331,7 +348,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public int getFreePointerStateCount() 
 	{
-		return freePointerStateCount;
+		return pointerStates != null ? (int)freeStates.cardinality(pointerStates) : getFreeStateCount();
 	}
 	
 	/**
@@ -342,8 +359,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public boolean isFreeState(int index)
 	{
-		checkIndexRange(index, freeStatesMap);
-		return freeStatesMap.getOrDefault(index, false);
+		checkIndexRange(index, getStateCount());
+		return freeStates.get(index);
 	}
 
 	/**
@@ -359,22 +376,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 		if (isProtectedState(index))
 			throw new IllegalStateException("State " + index + " is a protected state.");
 		
-		checkIndexRange(index, freeStatesMap);
-
-		boolean prev = freeStatesMap.get(index); 
-		freeStatesMap.set(index, state);
-		if (prev && !state)
-		{
-			freeStateCount--;
-			if (getStateActionPointerIndex(index) != null)
-				freePointerStateCount--;
-		}
-		else if (!prev && state)
-		{
-			freeStateCount++;
-			if (getStateActionPointerIndex(index) != null)
-				freePointerStateCount++;
-		}
+		checkIndexRange(index, getStateCount());
+		freeStates.set(index, state);
 	}
 
 	/**
@@ -388,12 +391,14 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setFreeState(int min, int max, boolean state)
 	{
-		checkIndexRange(min, freeStatesMap);
-		checkIndexRange(max, freeStatesMap);
+		checkIndexRange(min, getStateCount());
+		checkIndexRange(max, getStateCount());
 		int a = Math.min(min, max);
 		int b = Math.max(min, max);
-		while (a <= b)
-			setFreeState(a++, state);
+		int protectedIndex = protectedStates.nextSetBit(a);
+		if (protectedIndex >= 0 && protectedIndex <= b)
+			throw new IllegalStateException("State " + protectedIndex + " is a protected state.");
+		freeStates.set(a, b, state);
 	}
 	
 	/**
@@ -404,8 +409,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public boolean isProtectedState(int index)
 	{
-		checkIndexRange(index, protectedStatesMap);
-		return protectedStatesMap.getOrDefault(index, false);
+		checkIndexRange(index, getStateCount());
+		return protectedStates.get(index);
 	}
 
 	/**
@@ -416,8 +421,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setProtectedState(int index, boolean state)
 	{
-		checkIndexRange(index, protectedStatesMap);
-		protectedStatesMap.set(index, state);
+		checkIndexRange(index, getStateCount());
+		protectedStates.set(index, state);
 	}
 
 	/**
@@ -429,12 +434,9 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setProtectedState(int min, int max, boolean state)
 	{
-		checkIndexRange(min, protectedStatesMap);
-		checkIndexRange(max, protectedStatesMap);
-		int a = Math.min(min, max);
-		int b = Math.max(min, max);
-		while (a <= b)
-			setProtectedState(a++, state);
+		checkIndexRange(min, getStateCount());
+		checkIndexRange(max, getStateCount());
+		protectedStates.set(min, max, state);
 	}
 
 	/**
@@ -505,9 +507,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public Integer findNextFreeState(int startingIndex)
 	{
-		return searchNextFree(startingIndex, getStateCount(), (i) -> 
-			isFillableState(i)
-		);
+		return searchNextFree(startingIndex, getStateCount(), freeStates, protectedStates, null);
 	}
 	
 	/**
@@ -519,9 +519,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public Integer findNextFreeActionPointerState(int startingIndex)
 	{
-		return searchNextFree(startingIndex, getStateCount(), (i) -> 
-			isFillableState(i) && getStateActionPointerIndex(i) != null
-		);
+		return searchNextFree(startingIndex, getStateCount(), freeStates, protectedStates, true);
 	}
 	
 	/**
@@ -533,9 +531,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public Integer findNextFreeNonActionPointerState(int startingIndex)
 	{
-		return searchNextFree(startingIndex, getStateCount(), (i) -> 
-			isFillableState(i) && getStateActionPointerIndex(i) == null
-		);
+		return searchNextFree(startingIndex, getStateCount(), freeStates, protectedStates, false);
 	}
 
 	/**
@@ -558,7 +554,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public int getFreeThingCount() 
 	{
-		return freeThingCount;
+		return (int)freeThings.cardinality();
 	}
 	
 	/**
@@ -569,8 +565,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public boolean isFreeThing(int thingIndex)
 	{
-		checkIndexRange(thingIndex, freeThingsMap);
-		return freeThingsMap.get(thingIndex);
+		checkIndexRange(thingIndex, getThingCount());
+		return freeThings.get(thingIndex);
 	}
 
 	/**
@@ -581,14 +577,8 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setFreeThing(int index, boolean state)
 	{
-		checkIndexRange(index, freeThingsMap);
-		
-		boolean prev = freeThingsMap.get(index); 
-		freeThingsMap.set(index, state);
-		if (prev && !state)
-			freeThingCount--;
-		else if (!prev && state)
-			freeThingCount++;
+		checkIndexRange(index, getThingCount());
+		freeThings.set(index, state);
 	}
 
 	/**
@@ -600,13 +590,9 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setFreeThing(int min, int max, boolean state)
 	{
-		checkIndexRange(min, freeThingsMap);
-		checkIndexRange(max, freeThingsMap);
-		
-		int a = Math.min(min, max);
-		int b = Math.max(min, max);
-		while (a <= b)
-			setFreeThing(a++, state);
+		checkIndexRange(min, getThingCount());
+		checkIndexRange(max, getThingCount());
+		freeThings.set(min, max, state);
 	}
 
 	/**
@@ -618,9 +604,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public Integer findNextFreeThing(int startingIndex)
 	{
-		return searchNextFree(startingIndex, getThingCount(), (i) -> 
-			isFreeThing(i)
-		);
+		return searchNextFree(startingIndex, getThingCount(), freeThings, null, null);
 	}
 	
 	/**
@@ -631,7 +615,7 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 	 */
 	public void setThingAlias(String identifier, int index)
 	{
-		checkIndexRange(index, freeThingsMap);
+		checkIndexRange(index, getThingCount());
 		thingAliasMap.put(identifier, index);
 	}
 	
@@ -705,11 +689,94 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 		writeCommonPatchBody(writer);
 	}
 	
-	// Throws IndexOutOfBoundsException if out of range.
-	protected void checkIndexRange(int index, IntervalMap<?> map)
+	// Writes the states and pointers as arrays of values, since default serialization is slow for that many objects.
+	private void writeObject(ObjectOutputStream out) throws IOException
 	{
-		if (index < 0 || index > map.getMaxIndex())
-			throw new IndexOutOfBoundsException("Index cannot be less than 0 or greater than " + map.getMaxIndex());
+		out.defaultWriteObject();
+
+		int length = 0;
+		for (DEHState state : states.values())
+			length += STATE_FIELDS + state.getArgs().length;
+
+		int[] stateData = new int[length];
+		int i = 0;
+		for (Map.Entry<Integer, DEHState> entry : states.entrySet())
+		{
+			DEHState state = entry.getValue();
+			stateData[i++] = entry.getKey();
+			stateData[i++] = state.getSpriteIndex();
+			stateData[i++] = state.getFrameIndex();
+			stateData[i++] = state.isBright() ? 1 : 0;
+			stateData[i++] = state.getNextStateIndex();
+			stateData[i++] = state.getDuration();
+			stateData[i++] = state.getMisc1();
+			stateData[i++] = state.getMisc2();
+			stateData[i++] = state.getMBF21Flags();
+			stateData[i++] = state.getArgs().length;
+			for (int arg : state.getArgs())
+				stateData[i++] = arg;
+		}
+		out.writeObject(stateData);
+
+		// Pointers are written by name, once each.
+		Map<DEHActionPointer, Integer> pointerIds = new EnumMap<>(DEHActionPointer.class);
+		int[] pointerData = new int[pointers.size() * 2];
+		i = 0;
+		for (Map.Entry<Integer, DEHActionPointer> entry : pointers.entrySet())
+		{
+			pointerData[i++] = entry.getKey();
+			pointerData[i++] = pointerIds.computeIfAbsent(entry.getValue(), (p) -> pointerIds.size());
+		}
+		String[] pointerNames = new String[pointerIds.size()];
+		for (Map.Entry<DEHActionPointer, Integer> entry : pointerIds.entrySet())
+			pointerNames[entry.getValue()] = entry.getKey().name();
+		out.writeObject(pointerData);
+		out.writeObject(pointerNames);
+	}
+
+	// Reads the states and pointers written by writeObject().
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		try {
+			int[] stateData = (int[])in.readObject();
+			this.states = new TreeMap<>();
+			int i = 0;
+			while (i < stateData.length)
+			{
+				int index = stateData[i++];
+				DEHState state = DEHState.create(
+					stateData[i++], 
+					stateData[i++], 
+					stateData[i++] != 0, 
+					stateData[i++], 
+					stateData[i++], 
+					stateData[i++], 
+					stateData[i++], 
+					new int[0], 
+					stateData[i++]
+				);
+				int[] args = new int[stateData[i++]];
+				for (int a = 0; a < args.length; a++)
+					args[a] = stateData[i++];
+				states.put(index, state.setArgs(args));
+			}
+
+			int[] pointerData = (int[])in.readObject();
+			String[] pointerNames = (String[])in.readObject();
+			DEHActionPointer[] pointerIds = new DEHActionPointer[pointerNames.length];
+			for (i = 0; i < pointerNames.length; i++)
+				pointerIds[i] = DEHActionPointer.valueOf(pointerNames[i]);
+			this.pointers = new TreeMap<>();
+			i = 0;
+			while (i < pointerData.length)
+			{
+				int index = pointerData[i++];
+				pointers.put(index, pointerIds[pointerData[i++]]);
+			}
+		} catch (ClassCastException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new InvalidObjectException("Bad states or pointers: " + e.getMessage());
+		}
 	}
 
 	// Throws IndexOutOfBoundsException if out of range.
@@ -852,19 +919,47 @@ public abstract class AbstractPatchContext<P extends DEHPatch> implements DEHPat
 		writer.flush();
 	}
 
-	// Search function for free states.
-	private Integer searchNextFree(int startingIndex, int maxIndex, Function<Integer, Boolean> isFreeFunc)
+	// Search function for free slots, from the starting index to the end, then from the beginning.
+	// Slots must be free, not excluded, and have an action pointer (or not) if actionPointer is not null.
+	private Integer searchNextFree(int startingIndex, int count, SparseBitSet free, SparseBitSet excluded, Boolean actionPointer)
 	{
-		int i = startingIndex;
-		while (!isFreeFunc.apply(i))
+		checkIndexRange(startingIndex, count);
+		
+		// Every state has an action pointer.
+		if (actionPointer != null && !actionPointer && pointerStates == null)
+			return null;
+		
+		int out;
+		if ((out = searchFreeRange(startingIndex, count, free, excluded, actionPointer)) >= 0)
+			return out;
+		if ((out = searchFreeRange(0, startingIndex, free, excluded, actionPointer)) >= 0)
+			return out;
+		return null;
+	}
+
+	// Searches a range of slots (end exclusive) a word at a time. Returns -1 if none found.
+	private int searchFreeRange(int fromIndex, int toIndex, SparseBitSet free, SparseBitSet excluded, Boolean actionPointer)
+	{
+		int i = fromIndex;
+		while (i < toIndex && (i = free.nextSetBit(i)) >= 0 && i < toIndex)
 		{
-			i++;
-			if (i >= maxIndex)
-				i = 0;
-			if (i == startingIndex)
-				return null;
+			int word = i >>> 6;
+			long bits = free.getWord(word) & (-1L << i);
+			if (excluded != null)
+				bits &= ~excluded.getWord(word);
+			if (actionPointer != null && pointerStates != null)
+				bits &= actionPointer ? pointerStates.getWord(word) : ~pointerStates.getWord(word);
+			
+			if (bits != 0)
+			{
+				int out = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return out < toIndex ? out : -1;
+			}
+			if (word >= (toIndex - 1) >>> 6)
+				return -1;
+			i = (word + 1) << 6;
 		}
-		return i;
+		return -1;
 	}
 	
 }
@@ -25,6 +25,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchBoom;
  */
 public class PatchBoomContext extends AbstractPatchContext<DEHPatchBoom> implements DEHPatchBoom
 {
+	private static final long serialVersionUID = -4466558871899652125L;
+
 	private static final DEHPatchBoom BOOMPATCH = new PatchBoom();
 	
 	private Map<String, String> strings;
@@ -199,7 +201,7 @@ public class PatchBoomContext extends AbstractPatchContext<DEHPatchBoom> impleme
 		for (EpisodeMap em : getParEntries())
 		{
 			Integer seconds;
-			if ((seconds = getParSeconds(em)) != getSourcePatch().getParSeconds(em))
+			if (!(seconds = getParSeconds(em)).equals(getSourcePatch().getParSeconds(em)))
 			{
 				if (!parsHeader)
 				{
@@ -22,6 +22,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchDSDHacked;
  */
 public class PatchDSDHackedContext extends PatchMBF21Context
 {
+	private static final long serialVersionUID = 3258157033066623648L;
+
 	private static final DEHPatchBoom DSDHACKEDPATCH = new PatchDSDHacked();
 	
 	private Map<String, Integer> soundIndexMap;
@@ -81,53 +83,6 @@ public class PatchDSDHackedContext extends PatchMBF21Context
 		return out;
 	}
 
-	@Override
-	public int getFreeStateCount() 
-	{
-		return (int)freeStatesMap.getIndexWidth(true);
-	}
-
-	@Override
-	public int getFreePointerStateCount() 
-	{
-		return getFreeStateCount();
-	}
-
-	@Override
-	public void setFreeState(int index, boolean state)
-	{
-		if (isProtectedState(index))
-			throw new IllegalStateException("State " + index + " is a protected state.");
-		freeStatesMap.set(index, state);
-	}
-
-	@Override
-	public void setFreeState(int min, int max, boolean state)
-	{
-		checkIndexRange(min, freeStatesMap);
-		checkIndexRange(max, freeStatesMap);
-		if (min < 0 || max < 0)
-			throw new IndexOutOfBoundsException("Index cannot be less than 0.");
-		if (protectedStatesMap.getValueSet(min, max).contains(true))
-			throw new IllegalStateException("One of the freed states is a protected state.");
-		freeStatesMap.set(min, max, state);
-	}
-
-	@Override
-	public void setProtectedState(int index, boolean state)
-	{
-		checkIndexRange(index, protectedStatesMap);
-		protectedStatesMap.set(index, state);
-	}
-
-	@Override
-	public void setProtectedState(int min, int max, boolean state)
-	{
-		checkIndexRange(min, protectedStatesMap);
-		checkIndexRange(max, protectedStatesMap);
-		protectedStatesMap.set(min, max, state);
-	}
-	
 	/**
 	 * Searches through the states and flags them as "free" until it hits a "protected" or "free" state.
 	 * The state traversal is through the "next state" indices on each state.
@@ -167,41 +122,6 @@ public class PatchDSDHackedContext extends PatchMBF21Context
 		return out;
 	}
 
-	/**
-	 * Gets how many free things there are.
-	 * @return the amount of things flagged as "free."
-	 */
-	public int getFreeThingCount() 
-	{
-		return (int)freeThingsMap.getIndexWidth(true);
-	}
-
-	/**
-	 * Sets a thing as "free" or not. 
-	 * @param index the thing index.
-	 * @param state true to set as "free", false to unset.
-	 * @throws IndexOutOfBoundsException if the index is out of bounds.
-	 */
-	public void setFreeThing(int index, boolean state)
-	{
-		checkIndexRange(index, freeThingsMap);
-		freeThingsMap.set(index, state);
-	}
-
-	/**
-	 * Sets a contiguous set of things as "free" or not. 
-	 * @param min the minimum thing index.
-	 * @param max the maximum thing index (inclusive).
-	 * @param state true to set as "free", false to unset.
-	 * @throws IndexOutOfBoundsException if the index is out of bounds.
-	 */
-	public void setFreeThing(int min, int max, boolean state)
-	{
-		checkIndexRange(min, freeThingsMap);
-		checkIndexRange(max, freeThingsMap);
-		freeThingsMap.set(min, max, state);
-	}
-	
 	@Override
 	public void writePatch(Writer writer, String comment) throws IOException
 	{
@@ -211,7 +131,7 @@ public class PatchDSDHackedContext extends PatchMBF21Context
 		boolean spritesHeader = false;
 		for (Map.Entry<String, Integer> entry : spriteIndexMap.entrySet())
 		{
-			if (entry.getValue() == getSourcePatch().getSpriteIndex(entry.getKey()))
+			if (entry.getValue().equals(getSourcePatch().getSpriteIndex(entry.getKey())))
 				continue;
 			
 			if (!spritesHeader)
@@ -232,7 +152,7 @@ public class PatchDSDHackedContext extends PatchMBF21Context
 		boolean soundHeader = false;
 		for (Map.Entry<String, Integer> entry : soundIndexMap.entrySet())
 		{
-			if (entry.getValue() == getSourcePatch().getSoundIndex(entry.getKey()))
+			if (entry.getValue().equals(getSourcePatch().getSoundIndex(entry.getKey())))
 				continue;
 
 			if (!soundHeader)
@@ -23,6 +23,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchDoom19;
  */
 public class PatchDoom19Context extends AbstractPatchContext<DEHPatchDoom19> implements DEHPatchDoom19
 {
+	private static final long serialVersionUID = 8263414158077792858L;
+
 	private static final DEHPatchDoom19 DOOM19PATCH = new PatchDoom19();
 	
 	private String[] strings;
@@ -15,6 +15,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchDoomUnity;
  */
 public class PatchDoomUnityContext extends PatchUltimateDoom19Context
 {
+	private static final long serialVersionUID = 1992457889858451697L;
+
 	private static final DEHPatchDoom19 DOOMUNITYPATCH = new PatchDoomUnity();
 	
 	@Override
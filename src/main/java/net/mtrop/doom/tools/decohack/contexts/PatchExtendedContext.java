@@ -16,6 +16,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchExtended;
  */
 public class PatchExtendedContext extends PatchMBFContext
 {
+	private static final long serialVersionUID = -7679868769164250250L;
+
 	private static final DEHPatchBoom DHEEXTENDEDPATCH = new PatchExtended();
 	
 	@Override
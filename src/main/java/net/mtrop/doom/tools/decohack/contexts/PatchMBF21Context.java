@@ -16,6 +16,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchMBF21;
  */
 public class PatchMBF21Context extends PatchExtendedContext
 {
+	private static final long serialVersionUID = -2579989779995218984L;
+
 	private static final DEHPatchBoom MBF21PATCH = new PatchMBF21();
 	
 	@Override
@@ -16,6 +16,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchMBF;
  */
 public class PatchMBFContext extends PatchBoomContext
 {
+	private static final long serialVersionUID = 6286003492006344793L;
+
 	private static final DEHPatchBoom MBFPATCH = new PatchMBF();
 	
 	@Override
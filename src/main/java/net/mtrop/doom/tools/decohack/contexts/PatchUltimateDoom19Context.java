@@ -17,6 +17,8 @@ import net.mtrop.doom.tools.decohack.patches.PatchUDoom19;
  */
 public class PatchUltimateDoom19Context extends PatchDoom19Context
 {
+	private static final long serialVersionUID = -4957569449231009712L;
+
 	private static final DEHPatchDoom19 UDOOM19PATCH = new PatchUDoom19();
 	
 	@Override
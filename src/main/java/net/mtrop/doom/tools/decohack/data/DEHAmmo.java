@@ -17,6 +17,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHAmmo implements DEHObject<DEHAmmo>
 {
+	private static final long serialVersionUID = -353080144688165849L;
+
 	/** Ammo name. */
 	private String name;
 	
@@ -17,6 +17,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHMiscellany implements DEHObject<DEHMiscellany>
 {
+	private static final long serialVersionUID = 1064918610856929640L;
+
 	private boolean monsterInfightingEnabled;
 	private int initialBullets;
 	private int initialHealth;
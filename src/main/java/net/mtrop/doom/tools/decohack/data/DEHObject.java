@@ -6,16 +6,18 @@
 package net.mtrop.doom.tools.decohack.data;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.Writer;
 
 import net.mtrop.doom.tools.decohack.data.enums.DEHFeatureLevel;
 
 /**
  * Describes all DeHackEd objects and how to write them.
+ * All objects can be serialized, so that a patch context can be kept between compiles.
  * @author Matthew Tropiano
  * @param <SELF> this object's class.
  */
-public interface DEHObject<SELF>
+public interface DEHObject<SELF> extends Serializable
 {
 	/**
 	 * Copies this object's values.
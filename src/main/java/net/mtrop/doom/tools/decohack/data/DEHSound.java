@@ -17,6 +17,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHSound implements DEHObject<DEHSound>
 {
+	private static final long serialVersionUID = -217407921520630248L;
+
 	/** Sound priority (unsigned byte). */
 	private int priority;
 	/** Sound is singular. */
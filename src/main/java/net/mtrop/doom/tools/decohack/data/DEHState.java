@@ -19,6 +19,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHState implements DEHObject<DEHState>
 {
+	private static final long serialVersionUID = 2937693471279272409L;
+
 	private int spriteIndex;
 	private int frameIndex; // 28 max
 	private boolean bright;
@@ -22,6 +22,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHThing implements DEHObject<DEHThing>, DEHThingTarget<DEHThing>
 {
+	private static final long serialVersionUID = -6776503595550476662L;
+
 	private String name;
 	
 	private int editorNumber;
@@ -21,6 +21,8 @@ import net.mtrop.doom.util.RangeUtils;
  */
 public class DEHWeapon implements DEHObject<DEHWeapon>, DEHWeaponTarget<DEHWeapon>
 {
+	private static final long serialVersionUID = 1103319830352240123L;
+
 	public static enum Ammo
 	{
 		BULLETS,
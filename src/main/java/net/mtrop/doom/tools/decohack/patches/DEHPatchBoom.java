@@ -5,6 +5,7 @@
  ******************************************************************************/
 package net.mtrop.doom.tools.decohack.patches;
 
+import java.io.Serializable;
 import java.util.Set;
 
 /**
@@ -16,8 +17,10 @@ public interface DEHPatchBoom extends DEHPatch
 	/**
 	 * Episode map.
 	 */
-	public static class EpisodeMap implements Comparable<EpisodeMap>
+	public static class EpisodeMap implements Comparable<EpisodeMap>, Serializable
 	{
+		private static final long serialVersionUID = 9023593395436642562L;
+
 		private int episode;
 		private int map;
 		
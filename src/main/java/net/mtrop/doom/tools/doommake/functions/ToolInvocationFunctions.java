@@ -195,7 +195,8 @@ public enum ToolInvocationFunctions implements ScriptFunctionType
 							"outfile:OBJECTREF(File)",
 							"outsourcefile:OBJECTREF(File)",
 							"outcharsetname:STRING",
-							"outputbudget:BOOLEAN"
+							"outputbudget:BOOLEAN",
+							"cachefile:OBJECTREF(File)"
 						) + "}",
 						"Map of options."
 					)
@@ -266,6 +267,8 @@ public enum ToolInvocationFunctions implements ScriptFunctionType
 							"paletteSourcePath:OBJECTREF(File)",
 							"modeType:STRING (one of 'palettes', 'colormaps', 'graphics', 'flats')",
 							"metaInfoFilename:STRING",
+							"threads:INTEGER",
+							"manifestPath:OBJECTREF(File)",
 							"verbose:BOOLEAN"
 						) + "}",
 						"Map of options."
@@ -337,7 +340,8 @@ public enum ToolInvocationFunctions implements ScriptFunctionType
 							"outputdirectory:OBJECTREF(File)",
 							"ffmpegpath:OBJECTREF(File)",
 							"onlyffmpeg:BOOLEAN",
-							"onlyjspi:BOOLEAN"
+							"onlyjspi:BOOLEAN",
+							"threads:INTEGER"
 						) + "}",
 						"Map of options."
 					)
@@ -421,7 +425,13 @@ public enum ToolInvocationFunctions implements ScriptFunctionType
 							"inputfile:OBJECTREF(File)",
 							"args:LIST[STRING, ...]",
 							"usestdin:BOOLEAN",
-							"verbose:BOOLEAN"
+							"verbose:BOOLEAN",
+							"planmode:BOOLEAN",
+							"threads:INTEGER",
+							"check:BOOLEAN",
+							"bufferbudget:INTEGER",
+							"deduplicate:BOOLEAN",
+							"incremental:BOOLEAN"
 						) + "}",
 						"Map of options."
 					)
@@ -811,7 +821,8 @@ public enum ToolInvocationFunctions implements ScriptFunctionType
 							"quiet:BOOLEAN",
 							"outputtextures:BOOLEAN",
 							"outputflats:BOOLEAN",
-							"skipskies:BOOLEAN"
+							"skipskies:BOOLEAN",
+							"threads:INTEGER"
 						) + "}",
 						"Map of options."
 					)
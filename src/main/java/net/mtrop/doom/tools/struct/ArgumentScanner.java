@@ -23,6 +23,11 @@ public class ArgumentScanner extends TokenScanner
 	 * @return the corresponding string, or empty string if not valid.
 	 */
 	public String getArgument(int index)
+	{
+		return getArgument(arguments, index);
+	}
+	
+	private static String getArgument(String[] arguments, int index)
 	{
 		if (index < 0 || index >= arguments.length)
 			return "$" + index;
@@ -37,6 +42,18 @@ public class ArgumentScanner extends TokenScanner
 		if (token == null)
 			return null;
 		
+		return replaceArguments(arguments, token);
+	}
+	
+	/**
+	 * Replaces the argument references (<code>$0</code>, <code>$1</code>, ...) in a token with arguments.
+	 * <code>$$</code> is a literal <code>$</code>. References to arguments that do not exist are kept as-is.
+	 * @param arguments the arguments.
+	 * @param token the token.
+	 * @return the resultant token.
+	 */
+	public static String replaceArguments(String[] arguments, String token)
+	{
 		StringBuilder sb = BUILDER.get();
 		sb.delete(0, sb.length());
 		
@@ -95,12 +112,12 @@ public class ArgumentScanner extends TokenScanner
 					}
 					else if (c == '$')
 					{
-						sb.append(getArgument(argIndex));
+						sb.append(getArgument(arguments, argIndex));
 						state = STATE_ARG_START;
 					}
 					else
 					{
-						sb.append(getArgument(argIndex));
+						sb.append(getArgument(arguments, argIndex));
 						sb.append(c);
 						state = STATE_START;
 					}
@@ -110,7 +127,7 @@ public class ArgumentScanner extends TokenScanner
 		}
 		
 		if (state == STATE_ARG)
-			sb.append(getArgument(argIndex));
+			sb.append(getArgument(arguments, argIndex));
 		else if (state == STATE_ARG_START)
 			sb.append('$');
 		
@@ -770,12 +770,10 @@ public final class AsyncFactory
 		 */
 		public final void waitForDone() throws InterruptedException
 		{
-			while (!isDone())
+			synchronized (waitMutex)
 			{
-				synchronized (waitMutex)
-				{
+				while (!isDone())
 					waitMutex.wait();
-				}
 			}
 		}
 	
@@ -787,12 +785,10 @@ public final class AsyncFactory
 		 */
 		public final void waitForDone(long time, TimeUnit unit) throws InterruptedException
 		{
-			if (!isDone())
+			synchronized (waitMutex)
 			{
-				synchronized (waitMutex)
-				{
+				if (!isDone())
 					unit.timedWait(waitMutex, time);
-				}
 			}
 		}
 	
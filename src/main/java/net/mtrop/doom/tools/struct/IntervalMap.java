@@ -2,28 +2,43 @@ package net.mtrop.doom.tools.struct;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
  * A sorted map of exclusive intervals used for defining values over a large contiguous range.
  * Size gets larger as intervals get more fragmented.
+ * <p>Intervals are kept in a tree by their starting index, so setting and getting values takes
+ * logarithmic time no matter how fragmented the map gets. Only intervals with a value are stored:
+ * indices between them are <code>null</code>.
  * @author Matthew Tropiano
  * @param <V> the value type that this contains.
  */
-public class IntervalMap<V>
+public class IntervalMap<V> implements Iterable<IntervalMap.Interval<V>>
 {
-	/** The main interval list. */
-	private List<Interval> intervalList;
-	
+	/** The intervals by starting index. */
+	private NavigableMap<Long, Interval<V>> intervalMap;
+	/** The amount of indices occupied by each value. */
+	private Map<V, Long> widthMap;
+	/** The amount of indices occupied by any value. */
+	private long totalWidth;
+
 	/**
 	 * Creates a new interval map.
 	 */
 	public IntervalMap()
 	{
-		this.intervalList = new ArrayList<>(4);
+		this.intervalMap = new TreeMap<>();
+		this.widthMap = new HashMap<>(4);
+		this.totalWidth = 0L;
 	}
 
 	/**
@@ -47,7 +62,7 @@ public class IntervalMap<V>
 	{
 		set(index, index, value);
 	}
-	
+
 	/**
 	 * Sets a value interval.
 	 * @param minIndex the min index.
@@ -56,250 +71,47 @@ public class IntervalMap<V>
 	 */
 	public void set(long minIndex, long maxIndex, V value)
 	{
-		long actualMin = Math.min(minIndex, maxIndex);
-		long actualMax = Math.max(minIndex, maxIndex);
-		minIndex = actualMin;
-		maxIndex = actualMax;
-		int minSlot = search(minIndex);
-		int maxSlot = search(maxIndex);
-		int size = intervalList.size();
-		Interval newInterval = new Interval(minIndex, maxIndex, value);
+		long min = Math.min(minIndex, maxIndex);
+		long max = Math.max(minIndex, maxIndex);
 
-		// empty list.
-		if (intervalList.isEmpty())
-		{
-			intervalList.add(newInterval);
-		}
-		// interval starts before.
-		else if (minSlot < 0)
+		// Cut out everything in the new interval, keeping the parts outside of it.
+		Map.Entry<Long, Interval<V>> floor = intervalMap.floorEntry(min);
+		Long start = floor != null && floor.getValue().max >= min ? floor.getKey() : Long.valueOf(min);
+		List<Interval<V>> overlapping = new ArrayList<>(intervalMap.subMap(start, true, max, true).values());
+		for (Interval<V> interval : overlapping)
 		{
-			// completely before
-			if (maxSlot < 0)
-			{
-				Interval headInterval = intervalList.get(0);
-				if (newInterval.max < headInterval.min - 1)
-				{
-					intervalList.add(0, new Interval(newInterval.max + 1, headInterval.min - 1, null));
-					intervalList.add(0, newInterval);
-				}
-				else if (Objects.equals(newInterval.value, headInterval.value))
-				{
-					headInterval.min = newInterval.min;
-				}
-				else // adjacent
-				{
-					intervalList.add(0, newInterval);
-					reduceRight(0);
-				}
-			}
-			else
-			{
-				while (!intervalList.isEmpty() && newInterval.max >= intervalList.get(0).max)
-					intervalList.remove(0);
-				
-				if (intervalList.isEmpty())
-				{
-					intervalList.add(newInterval);
-				}
-				else
-				{
-					Interval headInterval = intervalList.get(0);
-					if (Objects.equals(newInterval.value, headInterval.value))
-					{
-						headInterval.min = newInterval.min;
-					}
-					else
-					{
-						if (newInterval.max >= headInterval.min)
-							headInterval.min = newInterval.max + 1;
-						intervalList.add(0, newInterval);
-					}
-				}
-			}
+			remove(interval);
+			if (interval.min < min)
+				add(new Interval<>(interval.min, min - 1, interval.value));
+			if (interval.max > max)
+				add(new Interval<>(max + 1, interval.max, interval.value));
 		}
-		// interval starts after.
-		else if (minSlot >= size)
-		{
-			Interval tailInterval = intervalList.get(size - 1);
-			if (newInterval.min > tailInterval.max + 1)
-			{
-				intervalList.add(new Interval(tailInterval.max + 1, newInterval.min - 1, null));
-				intervalList.add(newInterval);
-			}
-			else if (Objects.equals(newInterval.value, tailInterval.value))
-			{
-				tailInterval.max = newInterval.max;
-			}
-			else // adjacent
-			{
-				intervalList.add(newInterval);
-				reduceLeft(intervalList.size() - 1);
-			}
-		}
-		// new interval goes past the end.
-		else if (maxSlot >= size)
-		{
-			while (!intervalList.isEmpty() && intervalList.get(intervalList.size() - 1).min >= newInterval.min)
-				intervalList.remove(intervalList.size() - 1);
-			
-			if (intervalList.isEmpty())
-			{
-				intervalList.add(newInterval);
-			}
-			else
-			{
-				Interval tailInterval = intervalList.get(size - 1);
-				if (Objects.equals(newInterval.value, tailInterval.value))
-				{
-					tailInterval.max = newInterval.max;
-				}
-				else
-				{
-					tailInterval.max = newInterval.min - 1;
-					intervalList.add(newInterval);
-				}
-			}
-		}
-		// inside one interval.
-		else if (minSlot == maxSlot)
+
+		if (value == null)
+			return;
+
+		// Merge with touching intervals of the same value.
+		if (min > Long.MIN_VALUE)
 		{
-			Interval middleInterval = intervalList.get(minSlot);
-			if (Objects.equals(newInterval.value, middleInterval.value))
-			{
-				// Do nothing.
-			}
-			// touches min
-			else if (middleInterval.min == newInterval.min)
-			{
-				// complete overlap
-				if (middleInterval.max == newInterval.max)
-				{
-					middleInterval.value = newInterval.value;
-					reduceRight(minSlot);
-				}
-				// new interval max is less
-				else
-				{
-					middleInterval.min = newInterval.max + 1;
-					intervalList.add(minSlot, newInterval);
-				}
-				reduceLeft(minSlot);
-			}
-			// touches max
-			else if (middleInterval.max == newInterval.max)
+			Map.Entry<Long, Interval<V>> left = intervalMap.floorEntry(min - 1);
+			if (left != null && left.getValue().max == min - 1 && Objects.equals(left.getValue().value, value))
 			{
-				middleInterval.max = newInterval.min - 1;
-				intervalList.add(minSlot + 1, newInterval);
-				reduceRight(minSlot + 1);
-			}
-			// touches max
-			else
-			{
-				Interval splitInterval = new Interval(newInterval.max + 1, middleInterval.max, middleInterval.value);
-				middleInterval.max = newInterval.min - 1;
-				intervalList.add(minSlot + 1, newInterval);
-				intervalList.add(minSlot + 2, splitInterval);
+				remove(left.getValue());
+				min = left.getValue().min;
 			}
 		}
-		else
+		if (max < Long.MAX_VALUE)
 		{
-			// remove complete overlaps
-			int amount = maxSlot - minSlot - 1;
-			int removeIndex = minSlot + 1;
-			while (amount-- > 0)
-				intervalList.remove(removeIndex);
-			
-			int firstSlot = minSlot;
-			int secondSlot = minSlot + 1;
-
-			Interval firstInterval = intervalList.get(firstSlot);
-			Interval secondInterval = intervalList.get(secondSlot);
-			
-			// touches first min
-			if (newInterval.min == firstInterval.min)
-			{
-				// touches second max
-				if (newInterval.max == secondInterval.max)
-				{
-					// delete both and add into the same slot
-					intervalList.remove(firstSlot);
-					intervalList.remove(firstSlot); // second shuffled down into first
-					intervalList.add(firstSlot, newInterval);
-					reduceRight(firstSlot);
-				}
-				// absorb into first interval.
-				else if (Objects.equals(newInterval.value, firstInterval.value))
-				{
-					secondInterval.min = newInterval.max + 1;
-				}
-				// absorb into second interval.
-				else if (Objects.equals(newInterval.value, secondInterval.value))
-				{
-					// overlaps first completely - delete.
-					intervalList.remove(firstSlot);
-					secondInterval.min = newInterval.min;
-				}
-				else
-				{
-					secondInterval.min = newInterval.max + 1;
-					intervalList.remove(firstSlot);
-					intervalList.add(firstSlot, newInterval);
-				}
-				reduceLeft(firstSlot);
-			}
-			// touches second max
-			else if (newInterval.max == secondInterval.max)
+			Interval<V> right = intervalMap.get(max + 1);
+			if (right != null && Objects.equals(right.value, value))
 			{
-				// absorb into first interval.
-				if (Objects.equals(newInterval.value, firstInterval.value))
-				{
-					// overlaps second completely - delete.
-					intervalList.remove(secondSlot);
-					firstInterval.max = newInterval.max;
-				}
-				// absorb into second interval.
-				else if (Objects.equals(newInterval.value, secondInterval.value))
-				{
-					firstInterval.max = newInterval.min - 1;
-				}
-				else
-				{
-					firstInterval.max = newInterval.min - 1;
-					intervalList.remove(secondSlot);
-					intervalList.add(secondSlot, newInterval);
-				}
-				reduceRight(secondSlot);
-			}
-			// overlap, no touch.
-			else
-			{
-				// absorb into first interval.
-				if (Objects.equals(newInterval.value, firstInterval.value))
-				{
-					secondInterval.min = newInterval.max + 1;
-				}
-				// absorb into second interval.
-				else if (Objects.equals(newInterval.value, secondInterval.value))
-				{
-					firstInterval.min = newInterval.min - 1;
-				}
-				// adjust and insert.
-				else
-				{
-					firstInterval.max = newInterval.min - 1;
-					secondInterval.min = newInterval.max + 1;
-					intervalList.add(secondSlot, newInterval);
-				}
+				remove(right);
+				max = right.max;
 			}
 		}
-		
-		// clean up end nulls.
-		while (!intervalList.isEmpty() && intervalList.get(intervalList.size() - 1).value == null)
-			intervalList.remove(intervalList.size() - 1);
-		while (!intervalList.isEmpty() && intervalList.get(0).value == null)
-			intervalList.remove(0);
+		add(new Interval<>(min, max, value));
 	}
-	
+
 	/**
 	 * Fetches a value at an interval index.
 	 * @param index the index.
@@ -307,15 +119,12 @@ public class IntervalMap<V>
 	 */
 	public V get(long index)
 	{
-		int idx = search(index);
-		if (idx < 0)
+		Map.Entry<Long, Interval<V>> entry = intervalMap.floorEntry(index);
+		if (entry == null || entry.getValue().max < index)
 			return null;
-		else if (idx >= intervalList.size())
-			return null;
-		else
-			return intervalList.get(idx).value;
+		return entry.getValue().value;
 	}
-	
+
 	/**
 	 * Fetches a value at an interval index, returning a default value if the value is null.
 	 * @param index the index.
@@ -329,7 +138,7 @@ public class IntervalMap<V>
 			return ifNull;
 		return out;
 	}
-	
+
 	/**
 	 * Gets a set of values across an inclusive interval.
 	 * Since this is a set, the order is undefined and there will not be any repeats.
@@ -339,9 +148,9 @@ public class IntervalMap<V>
 	 */
 	public Set<V> getValueSet(long minIndex, long maxIndex)
 	{
-		return getValueCollection(minIndex, maxIndex, new TreeSet<V>()); 
+		return getValueCollection(minIndex, maxIndex, new TreeSet<V>());
 	}
-	
+
 	/**
 	 * Gets a list of values across an inclusive interval.
 	 * Since this is a list, the order is in interval order and there may be repeats.
@@ -351,152 +160,141 @@ public class IntervalMap<V>
 	 */
 	public List<V> getValueList(long minIndex, long maxIndex)
 	{
-		return getValueCollection(minIndex, maxIndex, new ArrayList<V>()); 
+		return getValueCollection(minIndex, maxIndex, new ArrayList<V>());
 	}
-	
-	// Gets a set of values across an interval and returns them in the collection.
+
+	// Gets the values of the intervals that overlap an interval and returns them in the collection.
 	private <U extends Collection<V>> U getValueCollection(long minIndex, long maxIndex, U collection)
 	{
-		int slotA = search(Math.min(minIndex, maxIndex));
-		int slotB = search(Math.max(minIndex, maxIndex));
-		
-		if (slotB >= 0)
+		long min = Math.min(minIndex, maxIndex);
+		long max = Math.max(minIndex, maxIndex);
+		Long start = intervalMap.floorKey(min);
+		for (Interval<V> interval : intervalMap.subMap(start != null ? start : min, true, max, true).values())
 		{
-			slotA = slotA < 0 ? 0 : slotA;
-			slotB = slotB >= intervalList.size() ? intervalList.size() - 1 : slotB;
-			for (int i = slotA; i <= slotB; i++)
-			{
-				V value = intervalList.get(i).value;
-				if (value != null)
-					collection.add(value);
-			}
+			if (interval.max >= min)
+				collection.add(interval.value);
 		}
-		
 		return collection;
 	}
-	
+
 	/**
 	 * @return the lowest index in the map (if any).
 	 */
 	public Long getMinIndex()
 	{
-		return intervalList.isEmpty() ? null : intervalList.get(0).min;
+		return intervalMap.isEmpty() ? null : intervalMap.firstKey();
 	}
-	
+
 	/**
 	 * @return the highest index in the map (if any).
 	 */
 	public Long getMaxIndex()
 	{
-		return intervalList.isEmpty() ? null : intervalList.get(intervalList.size() - 1).max;
+		return intervalMap.isEmpty() ? null : intervalMap.lastEntry().getValue().max;
 	}
-	
+
 	/**
 	 * Gets how many indices are occupied by a value.
-	 * @param value the value. Cannot be null.
+	 * If the value is null, this is how many indices between the lowest and highest index have no value.
+	 * @param value the value.
 	 * @return the amount of indices, or 0 if not found.
 	 */
 	public long getIndexWidth(V value)
 	{
-		long out = 0L;
-		for (int i = 0; i < intervalList.size(); i++)
-			if (Objects.equals(intervalList.get(i).value, value))
-				out += intervalList.get(i).width();
-		return out;
+		if (value == null)
+			return intervalMap.isEmpty() ? 0L : getMaxIndex() - getMinIndex() + 1 - totalWidth;
+		return widthMap.getOrDefault(value, 0L);
 	}
-	
-	// Attempts to merge intervals by same value going backwards in the list.
-	private void reduceLeft(int startSlot)
+
+	/**
+	 * Returns an iterator over the intervals that have values, in index order.
+	 * The map cannot be changed while this is in use.
+	 */
+	@Override
+	public Iterator<Interval<V>> iterator()
 	{
-		if (startSlot <= 0)
-			return;
-		if (!Objects.equals(intervalList.get(startSlot - 1).value, intervalList.get(startSlot).value))
-			return;
-		
-		Interval newLeft = intervalList.get(startSlot);
-		Interval oldLeft = intervalList.get(startSlot - 1);
-		
-		newLeft.min = oldLeft.min;
-		intervalList.remove(startSlot - 1);
-		reduceLeft(startSlot - 1);
+		return Collections.unmodifiableCollection(intervalMap.values()).iterator();
 	}
 
-	// Attempts to merge intervals by same value going forwards in the list.
-	private void reduceRight(int startSlot)
+	// Adds an interval that overlaps nothing.
+	private void add(Interval<V> interval)
 	{
-		if (startSlot >= intervalList.size() - 1)
-			return;
-		if (!Objects.equals(intervalList.get(startSlot + 1).value, intervalList.get(startSlot).value))
-			return;
+		intervalMap.put(interval.min, interval);
+		widthMap.merge(interval.value, interval.width(), Long::sum);
+		totalWidth += interval.width();
+	}
 
-		Interval newRight = intervalList.get(startSlot);
-		Interval oldRight = intervalList.get(startSlot + 1);
-		
-		newRight.max = oldRight.max;
-		intervalList.remove(startSlot + 1);
-		reduceRight(startSlot);
+	// Removes an interval.
+	private void remove(Interval<V> interval)
+	{
+		intervalMap.remove(interval.min);
+		if (widthMap.merge(interval.value, -interval.width(), Long::sum) == 0L)
+			widthMap.remove(interval.value);
+		totalWidth -= interval.width();
 	}
 
-	// Searches for a suitable interval index to fetch or start an insert.
-	// Returns index, -1 to insert at the beginning, the list size to add at the end.
-	private int search(long index)
+	@Override
+	public String toString()
 	{
-		final int size = intervalList.size();
-		
-		int low = 0;
-		int high = size - 1;
-		
-		int slot = 0;
-		while (slot >= 0 && slot < size)
+		// Gaps between intervals are shown as null intervals.
+		StringBuilder sb = new StringBuilder("[");
+		Interval<V> previous = null;
+		for (Interval<V> interval : intervalMap.values())
 		{
-			slot = (low + high) >>> 1;
-			Interval currentInterval = intervalList.get(slot);
-			if (currentInterval.includes(index))
+			if (previous != null)
 			{
-				return slot;
-			}
-			else if (index < currentInterval.min)
-			{
-				if (slot == 0)
-					slot = -1;
-				else
-					high = slot - 1;
-			}
-			else // index > currentInterval.max
-			{
-				if (slot == size - 1)
-					slot = size;
-				else
-					low = slot + 1;
+				sb.append(", ");
+				if (interval.min > previous.max + 1)
+					sb.append(new Interval<V>(previous.max + 1, interval.min - 1, null)).append(", ");
 			}
+			sb.append(interval);
+			previous = interval;
 		}
-		
-		return slot;
+		return sb.append(']').toString();
 	}
-	
-	@Override
-	public String toString() 
-	{
-		return intervalList.toString();
-	}
-	
+
 	/**
 	 * Interval object.
 	 * Bounds values are inclusive.
+	 * @param <V> the value type.
 	 */
-	private class Interval
+	public static class Interval<V>
 	{
 		private long min;
 		private long max;
 		private V value;
-		
+
 		private Interval(long min, long max, V value)
 		{
 			this.min = min;
 			this.max = max;
 			this.value = value;
 		}
-		
+
+		/**
+		 * @return the lowest index in this interval.
+		 */
+		public long getMin()
+		{
+			return min;
+		}
+
+		/**
+		 * @return the highest index in this interval.
+		 */
+		public long getMax()
+		{
+			return max;
+		}
+
+		/**
+		 * @return the value of every index in this interval.
+		 */
+		public V getValue()
+		{
+			return value;
+		}
+
 		/**
 		 * Checks if this interval includes an index.
 		 * @param index the index.
@@ -506,17 +304,20 @@ public class IntervalMap<V>
 		{
 			return min <= index && index <= max;
 		}
-		
+
+		/**
+		 * @return the amount of indices in this interval.
+		 */
 		public long width()
 		{
 			return max - min + 1;
 		}
-		
+
 		@Override
-		public String toString() 
+		public String toString()
 		{
 			return "([" + min + ", " + max + "]: " + String.valueOf(value) + ")";
 		}
 	}
-	
+
 }
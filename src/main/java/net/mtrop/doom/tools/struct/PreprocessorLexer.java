@@ -7,6 +7,9 @@
  ******************************************************************************/
 package net.mtrop.doom.tools.struct;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -14,6 +17,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -168,6 +176,572 @@ public class PreprocessorLexer extends Lexer
 		 */
 		InputStream getIncludeResource(String path) throws IOException;
 	
+		/**
+		 * Returns a snapshot of a resource's directives, to include instead of reading the resource as a stream.
+		 * Any resources that the snapshot includes must also have snapshots, or else their contents
+		 * would be read after the rest of the snapshot's directives.
+		 * By default, this returns null.
+		 * @param path the resolved stream path from the include directive.
+		 * @return the snapshot to use for the requested resource, or null to read the resource.
+		 * @throws IOException if an error occurs reading the resource.
+		 * @see IncludeSnapshot#read(String, Reader)
+		 */
+		default IncludeSnapshot getIncludeSnapshot(String path) throws IOException
+		{
+			return null;
+		}
+		
+		/**
+		 * Returns a tokenized resource, to read instead of the resource's stream when the lexer is
+		 * reading tokenized resources. This is not called for resources that have a snapshot.
+		 * By default, this returns null.
+		 * @param path the resolved stream path from the include directive.
+		 * @return the tokenized resource, or null if it is not available (the lexer then reads every resource as a stream instead).
+		 * @throws IOException if an error occurs reading the resource.
+		 * @see PreprocessorLexer#pushTokenized(List)
+		 */
+		default TokenizedResource getTokenizedResource(String path) throws IOException
+		{
+			return null;
+		}
+		
+	}
+
+	/**
+	 * The directives read from a resource that has nothing else in it besides whitespace and comments.
+	 * Including a snapshot runs its directives directly, without reading the resource again.
+	 */
+	public static class IncludeSnapshot
+	{
+		private String streamName;
+		private int[] lineNumbers;
+		private String[] directiveLines;
+		
+		private IncludeSnapshot(String streamName, List<Integer> lineNumbers, List<String> directiveLines)
+		{
+			this.streamName = streamName;
+			this.lineNumbers = new int[lineNumbers.size()];
+			for (int i = 0; i < this.lineNumbers.length; i++)
+				this.lineNumbers[i] = lineNumbers.get(i);
+			this.directiveLines = directiveLines.toArray(new String[directiveLines.size()]);
+		}
+		
+		/**
+		 * Reads a resource's directives the same way that the lexer would.
+		 * Comments are not kept, so this should only be used for resources whose comments are not read by a parser.
+		 * @param streamName the stream name of the resource (for resolving includes and for error messages).
+		 * @param reader the reader to read the resource from. This is not closed.
+		 * @return a new snapshot, or null if the resource has anything besides directives, whitespace, and comments.
+		 * @throws IOException if the resource could not be read.
+		 */
+		public static IncludeSnapshot read(String streamName, Reader reader) throws IOException
+		{
+			List<Integer> lineNumbers = new ArrayList<>(64);
+			List<String> directiveLines = new ArrayList<>(64);
+			StringBuilder rest = new StringBuilder();
+
+			SnapshotReader in = new SnapshotReader(reader);
+			boolean lineBeginning = true;
+			int c;
+			while ((c = in.read()) >= 0)
+			{
+				if (c == '\n')
+				{
+					lineBeginning = true;
+					rest.append('\n');
+				}
+				else if (lineBeginning && c == '#')
+				{
+					lineBeginning = false;
+					lineNumbers.add(in.line);
+					
+					// Same as preprocess().
+					StringBuilder sb = new StringBuilder();
+					final int STATE_START = 0;
+					final int STATE_READ = 1;
+					final int STATE_ESCAPE = 2;
+					int state = STATE_START;
+					boolean breakloop = false;
+					
+					while (!breakloop)
+					{
+						c = in.read();
+						switch (state)
+						{
+							case STATE_START:
+							{
+								if (c < 0 || c == '\n')
+									breakloop = true;
+								else if (c == '\\')
+									state = STATE_ESCAPE;
+								else if (!Character.isWhitespace(c))
+								{
+									sb.append((char)c);
+									state = STATE_READ;
+								}
+							}
+							break;
+							
+							case STATE_READ:
+							{
+								if (c < 0)
+									breakloop = true;
+								else if (c == '\n')
+								{
+									lineBeginning = true;
+									breakloop = true;
+								}
+								else if (c == '\\')
+									state = STATE_ESCAPE;
+								else
+									sb.append((char)c);
+							}
+							break;
+							
+							case STATE_ESCAPE:
+							{
+								if (c < 0)
+									breakloop = true;
+								else if (c == '\n')
+								{
+									sb.append('\n');
+									state = STATE_READ;
+								}
+								else
+								{
+									sb.append('\\');
+									sb.append((char)c);
+									state = STATE_READ;
+								}
+							}
+							break;
+						}
+					}
+					directiveLines.add(sb.toString());
+				}
+				else
+				{
+					if (!Character.isWhitespace(c))
+						lineBeginning = false;
+					rest.append((char)c);
+				}
+			}
+			
+			return isBlank(rest) ? new IncludeSnapshot(streamName, lineNumbers, directiveLines) : null;
+		}
+		
+		// Checks if text is only whitespace and C-style comments.
+		private static boolean isBlank(CharSequence text)
+		{
+			int i = 0;
+			int len = text.length();
+			while (i < len)
+			{
+				char c = text.charAt(i);
+				if (Character.isWhitespace(c))
+				{
+					i++;
+				}
+				else if (c == '/' && i + 1 < len && text.charAt(i + 1) == '/')
+				{
+					while (i < len && text.charAt(i) != '\n')
+						i++;
+				}
+				else if (c == '/' && i + 1 < len && text.charAt(i + 1) == '*')
+				{
+					int end = text.toString().indexOf("*/", i + 2);
+					if (end < 0)
+						return false;
+					i = end + 2;
+				}
+				else
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * @return the stream name of the resource that this was read from.
+		 */
+		public String getStreamName()
+		{
+			return streamName;
+		}
+		
+		/**
+		 * @return the unresolved paths of every include directive in this snapshot, in the order that they appear.
+		 */
+		public List<String> getIncludePaths()
+		{
+			return PreprocessorLexer.getIncludePaths(directiveLines);
+		}
+	}
+	
+	/**
+	 * The tokens and directives read from a resource, without running any of the directives.
+	 * The directives only decide which of the tokens are read and which macros replace them, 
+	 * so a tokenized resource can be read again with any set of defines, without reading its text again.
+	 * @see PreprocessorLexer#pushTokenized(List)
+	 */
+	public static class TokenizedResource
+	{
+		private String streamName;
+		private Token[] tokens;
+		/** Tokens followed by only whitespace and a '#' on their line. */
+		private BitSet hashFollows;
+		private int[] directiveTokenIndices;
+		private int[] directiveLineNumbers;
+		private String[] directiveLines;
+		/** Directives that leave the lexer at the beginning of a line. */
+		private BitSet directiveLineEnds;
+		
+		private TokenizedResource(String streamName, TokenizingLexer lexer)
+		{
+			this.streamName = streamName;
+			this.tokens = lexer.tokens.toArray(new Token[lexer.tokens.size()]);
+			this.hashFollows = lexer.hashFollows;
+			this.directiveTokenIndices = new int[lexer.directiveTokenIndices.size()];
+			this.directiveLineNumbers = new int[lexer.directiveLineNumbers.size()];
+			for (int i = 0; i < this.directiveTokenIndices.length; i++)
+			{
+				this.directiveTokenIndices[i] = lexer.directiveTokenIndices.get(i);
+				this.directiveLineNumbers[i] = lexer.directiveLineNumbers.get(i);
+			}
+			this.directiveLines = lexer.directiveLines.toArray(new String[lexer.directiveLines.size()]);
+			this.directiveLineEnds = lexer.directiveLineEnds;
+		}
+		
+		private TokenizedResource(String streamName, Token[] tokens, BitSet hashFollows, int[] directiveTokenIndices, int[] directiveLineNumbers, String[] directiveLines, BitSet directiveLineEnds)
+		{
+			this.streamName = streamName;
+			this.tokens = tokens;
+			this.hashFollows = hashFollows;
+			this.directiveTokenIndices = directiveTokenIndices;
+			this.directiveLineNumbers = directiveLineNumbers;
+			this.directiveLines = directiveLines;
+			this.directiveLineEnds = directiveLineEnds;
+		}
+		
+		/**
+		 * Reads a resource's tokens and directives the same way that the lexer would.
+		 * @param kernel the lexer kernel to read tokens with.
+		 * @param streamName the stream name of the resource (for resolving includes and for error messages).
+		 * @param reader the reader to read the resource from. This is closed once the end is reached.
+		 * @return a new tokenized resource, or null if a token in the resource is split by a directive,
+		 * 		since which part of it is read depends on the directive.
+		 * @throws IOException if the resource could not be read.
+		 */
+		public static TokenizedResource read(Kernel kernel, String streamName, Reader reader) throws IOException
+		{
+			TokenizingLexer lexer = new TokenizingLexer(kernel, streamName, reader);
+			while (lexer.nextToken() != null)
+			{
+				// Keep reading.
+			}
+			
+			for (int i = 0; i < lexer.directiveTokenIndices.size(); i++)
+			{
+				int index = lexer.directiveTokenIndices.get(i);
+				if (index < lexer.tokens.size() && lexer.tokens.get(index).getLineNumber() < lexer.directiveLineNumbers.get(i))
+					return null;
+			}
+			return new TokenizedResource(streamName, lexer);
+		}
+		
+		/**
+		 * Reads a tokenized resource written by {@link #writeData(DataOutput)}.
+		 * @param in the input to read from.
+		 * @return the tokenized resource read.
+		 * @throws IOException if it could not be read, or the data is not valid.
+		 */
+		public static TokenizedResource readData(DataInput in) throws IOException
+		{
+			String streamName = in.readUTF();
+			
+			List<String> lexemes = new ArrayList<>(256);
+			for (int i = in.readInt(); i > 0; i--)
+				lexemes.add(readString(in));
+			
+			List<Token> tokens = new ArrayList<>(1024);
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int lexeme = in.readInt();
+				if (lexeme < 0 || lexeme >= lexemes.size())
+					throw new IOException("Bad lexeme index.");
+				tokens.add(new Token(streamName, in.readInt(), lexemes.get(lexeme), in.readInt(), in.readInt()));
+			}
+			BitSet hashFollows = readBits(in);
+			
+			List<Integer> directiveTokenIndices = new ArrayList<>(64);
+			List<Integer> directiveLineNumbers = new ArrayList<>(64);
+			List<String> directiveLines = new ArrayList<>(64);
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int tokenIndex = in.readInt();
+				if (tokenIndex < 0 || tokenIndex > tokens.size() || (!directiveTokenIndices.isEmpty() && tokenIndex < directiveTokenIndices.get(directiveTokenIndices.size() - 1)))
+					throw new IOException("Bad directive token index.");
+				directiveTokenIndices.add(tokenIndex);
+				directiveLineNumbers.add(in.readInt());
+				directiveLines.add(readString(in));
+			}
+			BitSet directiveLineEnds = readBits(in);
+			
+			int[] tokenIndices = new int[directiveTokenIndices.size()];
+			int[] lineNumbers = new int[directiveLineNumbers.size()];
+			for (int i = 0; i < tokenIndices.length; i++)
+			{
+				tokenIndices[i] = directiveTokenIndices.get(i);
+				lineNumbers[i] = directiveLineNumbers.get(i);
+			}
+			return new TokenizedResource(
+				streamName, 
+				tokens.toArray(new Token[tokens.size()]), 
+				hashFollows, 
+				tokenIndices, 
+				lineNumbers, 
+				directiveLines.toArray(new String[directiveLines.size()]), 
+				directiveLineEnds
+			);
+		}
+		
+		/**
+		 * Writes this resource's tokens and directives, so that it can be read again without reading its text.
+		 * Every token is written with this resource's stream name.
+		 * @param out the output to write to.
+		 * @throws IOException if it could not be written.
+		 * @see #readData(DataInput)
+		 */
+		public void writeData(DataOutput out) throws IOException
+		{
+			out.writeUTF(streamName);
+			
+			// Most lexemes repeat, so each is only written once.
+			Map<String, Integer> lexemeIndices = new HashMap<>(256);
+			List<String> lexemes = new ArrayList<>(256);
+			int[] tokenLexemes = new int[tokens.length];
+			for (int i = 0; i < tokens.length; i++)
+			{
+				String lexeme = tokens[i].getLexeme();
+				Integer index;
+				if ((index = lexemeIndices.get(lexeme)) == null)
+				{
+					lexemeIndices.put(lexeme, index = lexemes.size());
+					lexemes.add(lexeme);
+				}
+				tokenLexemes[i] = index;
+			}
+			out.writeInt(lexemes.size());
+			for (String lexeme : lexemes)
+				writeString(out, lexeme);
+			
+			out.writeInt(tokens.length);
+			for (int i = 0; i < tokens.length; i++)
+			{
+				out.writeInt(tokenLexemes[i]);
+				out.writeInt(tokens[i].getType());
+				out.writeInt(tokens[i].getLineNumber());
+				out.writeInt(tokens[i].getCharIndex());
+			}
+			writeBits(out, hashFollows);
+			
+			out.writeInt(directiveLines.length);
+			for (int i = 0; i < directiveLines.length; i++)
+			{
+				out.writeInt(directiveTokenIndices[i]);
+				out.writeInt(directiveLineNumbers[i]);
+				writeString(out, directiveLines[i]);
+			}
+			writeBits(out, directiveLineEnds);
+		}
+		
+		// Strings can be longer than writeUTF() allows (like block comments).
+		private static void writeString(DataOutput out, String s) throws IOException
+		{
+			byte[] data = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+		
+		private static String readString(DataInput in) throws IOException
+		{
+			int length = in.readInt();
+			if (length < 0)
+				throw new IOException("Bad string length.");
+			byte[] data = new byte[Math.min(length, 65536)];
+			if (length <= data.length)
+			{
+				in.readFully(data, 0, length);
+				return new String(data, 0, length, StandardCharsets.UTF_8);
+			}
+			
+			// Long strings are read in parts, so that a bad length runs out of data before it runs out of memory.
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length);
+			while (length > 0)
+			{
+				int len = Math.min(length, data.length);
+				in.readFully(data, 0, len);
+				bos.write(data, 0, len);
+				length -= len;
+			}
+			return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+		}
+		
+		private static void writeBits(DataOutput out, BitSet bits) throws IOException
+		{
+			long[] words = bits.toLongArray();
+			out.writeInt(words.length);
+			for (long word : words)
+				out.writeLong(word);
+		}
+		
+		private static BitSet readBits(DataInput in) throws IOException
+		{
+			List<Long> words = new ArrayList<>(16);
+			for (int i = in.readInt(); i > 0; i--)
+				words.add(in.readLong());
+			long[] out = new long[words.size()];
+			for (int i = 0; i < out.length; i++)
+				out[i] = words.get(i);
+			return BitSet.valueOf(out);
+		}
+		
+		/**
+		 * @return the stream name of the resource that this was read from.
+		 */
+		public String getStreamName()
+		{
+			return streamName;
+		}
+		
+		/**
+		 * @return the unresolved paths of every include directive in this resource, in the order that they appear.
+		 */
+		public List<String> getIncludePaths()
+		{
+			return PreprocessorLexer.getIncludePaths(directiveLines);
+		}
+		
+		// If true, the resource starts with a directive, which is only read as one at the beginning of a line.
+		private boolean hasLeadingDirective()
+		{
+			return directiveLineNumbers.length > 0 && directiveLineNumbers[0] == 1;
+		}
+	}
+	
+	// Reads a resource's tokens without running its directives, and keeps track of where the directives are.
+	private static class TokenizingLexer extends PreprocessorLexer
+	{
+		private List<Token> tokens;
+		private BitSet hashFollows;
+		private boolean afterToken;
+		private List<Integer> directiveTokenIndices;
+		private List<Integer> directiveLineNumbers;
+		private List<String> directiveLines;
+		private BitSet directiveLineEnds;
+		
+		private TokenizingLexer(Kernel kernel, String streamName, Reader reader)
+		{
+			super(kernel, streamName, reader);
+			this.tokens = new ArrayList<>(1024);
+			this.hashFollows = new BitSet();
+			this.afterToken = false;
+			this.directiveTokenIndices = new ArrayList<>(64);
+			this.directiveLineNumbers = new ArrayList<>(64);
+			this.directiveLines = new ArrayList<>(64);
+			this.directiveLineEnds = new BitSet();
+		}
+		
+		@Override
+		public Token nextToken() throws IOException
+		{
+			Token token = super.nextToken();
+			if (token != null)
+			{
+				tokens.add(token);
+				afterToken = true;
+			}
+			return token;
+		}
+		
+		@Override
+		protected char readChar() throws IOException
+		{
+			char c = super.readChar();
+			// The end of a macro leaves the lexer at the beginning of a line, so a '#' after a token 
+			// that is replaced by a macro would be read as a directive.
+			if (afterToken && (c == '\n' || !Character.isWhitespace(c)))
+			{
+				if (c == '#')
+					hashFollows.set(tokens.size() - 1);
+				afterToken = false;
+			}
+			return c;
+		}
+		
+		@Override
+		protected void processDirectiveLine(String streamName, int lineNumber, String directiveLine)
+		{
+			directiveLineEnds.set(directiveLines.size(), ((PreprocessorLexer)this).lineBeginning);
+			directiveTokenIndices.add(tokens.size());
+			directiveLineNumbers.add(lineNumber);
+			directiveLines.add(directiveLine);
+		}
+	}
+	
+	// Gets the unresolved paths of every include directive in a list of directive lines.
+	private static List<String> getIncludePaths(String[] directiveLines)
+	{
+		List<String> out = new ArrayList<>(4);
+		for (String directiveLine : directiveLines)
+		{
+			DirectiveParser parser = new DirectiveParser();
+			if (parser.scanNext(directiveLine).equalsIgnoreCase(DIRECTIVE_INCLUDE))
+				out.add(parser.scanNext(directiveLine));
+		}
+		return Collections.unmodifiableList(out);
+	}
+	
+	// Reads characters the way that the lexer's streams do: each run of newline characters is one '\n'.
+	private static class SnapshotReader
+	{
+		private Reader reader;
+		private int line;
+		private boolean hasPushed;
+		private int pushed;
+		
+		private SnapshotReader(Reader reader)
+		{
+			this.reader = reader;
+			this.line = 1;
+			this.hasPushed = false;
+		}
+		
+		private int read() throws IOException
+		{
+			if (hasPushed)
+			{
+				hasPushed = false;
+				return pushed;
+			}
+			
+			int c = reader.read();
+			boolean newline = false;
+			while (c == '\r' || c == '\n')
+			{
+				if (c == '\n')
+					line++;
+				newline = true;
+				c = reader.read();
+				if (c != '\r' && c != '\n')
+				{
+					pushed = c;
+					hasPushed = true;
+				}
+			}
+			return newline ? '\n' : c;
+		}
 	}
 
 	/** Is this at the beginning of a line? */
@@ -182,6 +756,15 @@ public class PreprocessorLexer extends Lexer
 	/** List of errors. */
 	private List<String> errors;
 
+	/** Tokens read from tokenized resources, to return before reading any stream. */
+	private Deque<Token> tokenQueue;
+	/** The error to throw after the queued tokens are read, if any. */
+	private RuntimeException tokenQueueException;
+	/** The stream name of the last queued token that was read. */
+	private String tokenQueueStreamName;
+	/** The resolved paths of included resources without snapshots, while tokenized resources are being read. */
+	private List<String> tokenizedIncludePaths;
+
 	/**
 	 * Creates a new preprocessor lexer around a String, that will be wrapped into a StringReader.
 	 * This will also assign this lexer a default name.
@@ -239,6 +822,10 @@ public class PreprocessorLexer extends Lexer
 		this.includer = DEFAULT_INCLUDER;
 		this.errors = new LinkedList<>();
 		this.ifStack = new LinkedList<>();
+		this.tokenQueue = null;
+		this.tokenQueueException = null;
+		this.tokenQueueStreamName = null;
+		this.tokenizedIncludePaths = null;
 	}
 
 	/**
@@ -272,9 +859,34 @@ public class PreprocessorLexer extends Lexer
 		macroMap.put(macro.toLowerCase(), tokenProvider);
 	}
 	
+	@Override
+	public String getCurrentStreamName()
+	{
+		if (tokenQueueStreamName != null)
+			return tokenQueueStreamName;
+		return super.getCurrentStreamName();
+	}
+	
 	@Override
 	public Token nextToken() throws IOException
 	{
+		if (tokenQueue != null)
+		{
+			Token queued;
+			if ((queued = tokenQueue.poll()) != null)
+			{
+				tokenQueueStreamName = queued.getStreamName();
+				return queued;
+			}
+			
+			RuntimeException exception = tokenQueueException;
+			tokenQueue = null;
+			tokenQueueException = null;
+			tokenQueueStreamName = null;
+			if (exception != null)
+				throw exception;
+		}
+		
 		Token token = super.nextToken();
 		if (token == null)
 			return null;
@@ -428,6 +1040,12 @@ public class PreprocessorLexer extends Lexer
 		}
 		
 		processDirectiveLine(streamName, lineNumber, sb.toString());
+		throwErrors();
+	}
+	
+	// Throws an exception if any directives had errors.
+	private void throwErrors()
+	{
 		if (!errors.isEmpty()) 
 		{
 			StringBuilder msg = new StringBuilder();
@@ -482,15 +1100,27 @@ public class PreprocessorLexer extends Lexer
 			
 			String includePath;
 			InputStream includeIn;
+			IncludeSnapshot snapshot;
 			try {
 				includePath = includer.getIncludeResourcePath(streamName, path);
 				if (includePath == null)
 					errors.add(getInfoLine(streamName, lineNumber, null, "Could not resolve path: \"" + path + "\""));
-				includeIn = includer.getIncludeResource(includePath);
-				if (includeIn == null)
-					errors.add(getInfoLine(streamName, lineNumber, null, "Could not resolve path: \"" + includePath + "\""));
+				if (includePath != null && (snapshot = includer.getIncludeSnapshot(includePath)) != null)
+				{
+					includeSnapshot(snapshot);
+				}
+				else if (tokenizedIncludePaths != null)
+				{
+					tokenizedIncludePaths.add(includePath);
+				}
 				else
-					pushStream(includePath, new InputStreamReader(includeIn));
+				{
+					includeIn = includer.getIncludeResource(includePath);
+					if (includeIn == null)
+						errors.add(getInfoLine(streamName, lineNumber, null, "Could not resolve path: \"" + includePath + "\""));
+					else
+						pushStream(includePath, new InputStreamReader(includeIn));
+				}
 				
 			} catch (IOException e) {
 				errors.add(getInfoLine(streamName, lineNumber, null, "Could not resolve path. "+ e.getMessage()));
@@ -552,6 +1182,159 @@ public class PreprocessorLexer extends Lexer
 		}
 	}
 	
+	/**
+	 * Runs every directive in a snapshot, in order, as though its resource was read.
+	 * @param snapshot the snapshot to include.
+	 */
+	protected void includeSnapshot(IncludeSnapshot snapshot)
+	{
+		for (int i = 0; i < snapshot.directiveLines.length; i++)
+		{
+			processDirectiveLine(snapshot.streamName, snapshot.lineNumbers[i], snapshot.directiveLines[i]);
+			throwErrors();
+		}
+	}
+	
+	/**
+	 * Reads tokenized resources one after the other, as though each was pushed onto this lexer in order,
+	 * and queues every token that would have been read from them, to return before reading any stream.
+	 * Directives are run and macros are replaced the same way as reading the resources' text would.
+	 * Included resources that have a snapshot ({@link Includer#getIncludeSnapshot(String)}) are included
+	 * from it, and the rest are got from {@link Includer#getTokenizedResource(String)}.
+	 * An error in a directive is thrown once the tokens before it are read.
+	 * <p>If an included resource is not available as tokens, or the tokens could end up different from 
+	 * reading the text (for example, if a macro is followed by a '#' on the same line), nothing is queued, 
+	 * this lexer is left as it was, and the resources need to be read as streams instead.
+	 * This lexer must not have any streams pushed onto it.
+	 * @param resources the resources to read.
+	 * @return true if the tokens were queued, false if not.
+	 */
+	public boolean pushTokenized(List<TokenizedResource> resources)
+	{
+		// Macros are read off of the stream stack.
+		if (getCurrentStream() != null || tokenQueue != null)
+			return false;
+		
+		Map<String, StringProvider> previousMacroMap = new HashMap<>(macroMap);
+		Deque<Boolean> previousIfStack = new LinkedList<>(ifStack);
+		List<Token> tokens = new ArrayList<>(4096);
+		RuntimeException exception = null;
+		boolean read = true;
+		
+		tokenizedIncludePaths = new ArrayList<>(1);
+		try {
+			for (TokenizedResource resource : resources)
+			{
+				if (!(read = readTokenized(resource, true, tokens)))
+					break;
+			}
+		} catch (PreprocessorException e) {
+			exception = e;
+		} catch (IOException e) {
+			read = false;
+		} finally {
+			tokenizedIncludePaths = null;
+		}
+		
+		if (!read)
+		{
+			macroMap = previousMacroMap;
+			ifStack = previousIfStack;
+			errors.clear();
+			return false;
+		}
+		
+		tokenQueue = new LinkedList<>(tokens);
+		tokenQueueException = exception;
+		return true;
+	}
+	
+	/**
+	 * Gets the tokens queued by {@link #pushTokenized(List)} that have not been read yet.
+	 * @return the queued tokens, in the order that they will be read. Empty if none.
+	 */
+	public Collection<Token> getQueuedTokens()
+	{
+		return tokenQueue != null ? Collections.unmodifiableCollection(tokenQueue) : Collections.emptyList();
+	}
+	
+	// Reads the tokens from a tokenized resource. Returns false if they could be different from reading the resource.
+	private boolean readTokenized(TokenizedResource resource, boolean lineBeginning, List<Token> out) throws IOException
+	{
+		// A directive at the start of an included resource is only one if the include directive ended its line.
+		if (!lineBeginning && resource.hasLeadingDirective())
+			return false;
+		
+		int t = 0;
+		for (int d = 0; d < resource.directiveLines.length; d++)
+		{
+			for (; t < resource.directiveTokenIndices[d]; t++)
+			{
+				if (!readResourceToken(resource, t, out))
+					return false;
+			}
+			
+			processDirectiveLine(resource.streamName, resource.directiveLineNumbers[d], resource.directiveLines[d]);
+			throwErrors();
+			
+			if (!tokenizedIncludePaths.isEmpty())
+			{
+				String includePath = tokenizedIncludePaths.remove(0);
+				TokenizedResource include;
+				if (includePath == null || (include = includer.getTokenizedResource(includePath)) == null)
+					return false;
+				if (!readTokenized(include, resource.directiveLineEnds.get(d), out))
+					return false;
+			}
+		}
+		
+		for (; t < resource.tokens.length; t++)
+		{
+			if (!readResourceToken(resource, t, out))
+				return false;
+		}
+		return true;
+	}
+	
+	// Reads a token from a tokenized resource, if it is not skipped by an "if" directive.
+	private boolean readResourceToken(TokenizedResource resource, int index, List<Token> out) throws IOException
+	{
+		if (!ifStack.isEmpty() && !ifStack.peek())
+			return true;
+		return readToken(resource.tokens[index], resource.hashFollows.get(index), out);
+	}
+	
+	// Reads a token, replacing it if it is a macro.
+	private boolean readToken(Token token, boolean hashFollows, List<Token> out) throws IOException
+	{
+		String macro = token.getLexeme().toLowerCase();
+		StringProvider provider;
+		if ((provider = macroMap.get(macro)) == null)
+		{
+			// Copied, since parsers may change the tokens that they read.
+			out.add(new Token(token.getStreamName(), token.getType(), token.getLexeme(), token.getLineNumber(), token.getCharIndex()));
+			return true;
+		}
+		
+		String text = provider.get();
+		if (hashFollows || text.indexOf('#') >= 0)
+			return false;
+		
+		// Same stream name as nextToken() gives it. Nothing is left on the stack after it is read.
+		pushStream(token.getStreamName() + ":" + macro, new StringReader(text));
+		List<Token> macroTokens = new ArrayList<>(4);
+		Token macroToken;
+		while ((macroToken = super.nextToken()) != null)
+			macroTokens.add(macroToken);
+		
+		for (Token t : macroTokens)
+		{
+			if (!readToken(t, false, out))
+				return false;
+		}
+		return true;
+	}
+	
 	// Parser state.
 	private static class DirectiveParser
 	{
@@ -0,0 +1,287 @@
+package net.mtrop.doom.tools.struct;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A set of bits over the whole range of non-negative <code>int</code> indices, kept in pages of words.
+ * A page that is all clear or all set takes no space of its own, so setting a large range of bits
+ * only costs one reference per page, and searches skip those pages whole.
+ * <p>Serialized sets only write the pages that are partly set.
+ * @author Matthew Tropiano
+ */
+public class SparseBitSet implements Serializable
+{
+	private static final long serialVersionUID = 3580424391932874126L;
+
+	/** Bits per page, as a shift. */
+	private static final int PAGE_SHIFT = 12;
+	/** Bits per page. */
+	private static final int PAGE_BITS = 1 << PAGE_SHIFT;
+	/** Words per page. */
+	private static final int PAGE_WORDS = PAGE_BITS >>> 6;
+	/** The most pages that a set can have. */
+	private static final int MAX_PAGES = (Integer.MAX_VALUE >>> PAGE_SHIFT) + 1;
+	/** The page used for pages that have every bit set. Never changed. */
+	private static final long[] FULL_PAGE;
+
+	static
+	{
+		FULL_PAGE = new long[PAGE_WORDS];
+		Arrays.fill(FULL_PAGE, -1L);
+	}
+
+	/** The pages. Null pages have no bits set. */
+	private transient long[][] pages;
+	/** The amount of bits set. */
+	private long cardinality;
+
+	/**
+	 * Creates a new, empty bit set.
+	 */
+	public SparseBitSet()
+	{
+		this.pages = new long[4][];
+		this.cardinality = 0L;
+	}
+
+	/**
+	 * Gets a bit.
+	 * @param index the bit index.
+	 * @return true if set, false if not.
+	 * @throws IndexOutOfBoundsException if the index is less than 0.
+	 */
+	public boolean get(int index)
+	{
+		checkIndex(index);
+		int p = index >>> PAGE_SHIFT;
+		if (p >= pages.length || pages[p] == null)
+			return false;
+		return (pages[p][(index >>> 6) & (PAGE_WORDS - 1)] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Gets a whole word of bits: the 64 bits starting at <code>wordIndex * 64</code>.
+	 * @param wordIndex the word index.
+	 * @return the word.
+	 * @throws IndexOutOfBoundsException if the index is less than 0.
+	 */
+	public long getWord(int wordIndex)
+	{
+		checkIndex(wordIndex);
+		int p = wordIndex >>> (PAGE_SHIFT - 6);
+		if (p >= pages.length || pages[p] == null)
+			return 0L;
+		return pages[p][wordIndex & (PAGE_WORDS - 1)];
+	}
+
+	/**
+	 * Sets or clears a bit.
+	 * @param index the bit index.
+	 * @param value true to set, false to clear.
+	 * @throws IndexOutOfBoundsException if the index is less than 0.
+	 */
+	public void set(int index, boolean value)
+	{
+		set(index, index, value);
+	}
+
+	/**
+	 * Sets or clears a range of bits.
+	 * @param min the first bit index.
+	 * @param max the last bit index (inclusive).
+	 * @param value true to set, false to clear.
+	 * @throws IndexOutOfBoundsException if an index is less than 0.
+	 */
+	public void set(int min, int max, boolean value)
+	{
+		int a = Math.min(min, max);
+		int b = Math.max(min, max);
+		checkIndex(a);
+
+		int firstPage = a >>> PAGE_SHIFT;
+		int lastPage = b >>> PAGE_SHIFT;
+		if (value)
+			ensurePages(lastPage + 1);
+
+		int end = Math.min(lastPage, pages.length - 1);
+		for (int p = firstPage; p <= end; p++)
+		{
+			int lo = p == firstPage ? a & (PAGE_BITS - 1) : 0;
+			int hi = p == lastPage ? b & (PAGE_BITS - 1) : PAGE_BITS - 1;
+			long[] page = pages[p];
+
+			if (lo == 0 && hi == PAGE_BITS - 1)
+			{
+				cardinality -= count(page);
+				pages[p] = value ? FULL_PAGE : null;
+				cardinality += value ? PAGE_BITS : 0;
+				continue;
+			}
+
+			if (page == (value ? FULL_PAGE : null))
+				continue;
+			if (page == null)
+				page = pages[p] = new long[PAGE_WORDS];
+			else if (page == FULL_PAGE)
+				page = pages[p] = FULL_PAGE.clone();
+
+			int loWord = lo >>> 6;
+			int hiWord = hi >>> 6;
+			for (int w = loWord; w <= hiWord; w++)
+			{
+				long mask = (w == loWord ? -1L << lo : -1L) & (w == hiWord ? -1L >>> (63 - (hi & 63)) : -1L);
+				long prev = page[w];
+				page[w] = value ? prev | mask : prev & ~mask;
+				cardinality += Long.bitCount(page[w]) - Long.bitCount(prev);
+			}
+		}
+	}
+
+	/**
+	 * Finds the next set bit, starting from an index.
+	 * @param fromIndex the index to start from (inclusive).
+	 * @return the index of the next set bit, or -1 if there are none.
+	 * @throws IndexOutOfBoundsException if the index is less than 0.
+	 */
+	public int nextSetBit(int fromIndex)
+	{
+		checkIndex(fromIndex);
+		int p = fromIndex >>> PAGE_SHIFT;
+		int w = (fromIndex >>> 6) & (PAGE_WORDS - 1);
+		long mask = -1L << fromIndex;
+		while (p < pages.length)
+		{
+			long[] page = pages[p];
+			if (page == FULL_PAGE)
+				return (p << PAGE_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(mask);
+			if (page != null)
+			{
+				for (; w < PAGE_WORDS; w++)
+				{
+					long bits = page[w] & mask;
+					if (bits != 0)
+						return (p << PAGE_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(bits);
+					mask = -1L;
+				}
+			}
+			p++;
+			w = 0;
+			mask = -1L;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the amount of bits that are set.
+	 */
+	public long cardinality()
+	{
+		return cardinality;
+	}
+
+	/**
+	 * Counts the bits that are set in both this set and another.
+	 * @param set the other set.
+	 * @return the amount of bits set in both.
+	 */
+	public long cardinality(SparseBitSet set)
+	{
+		long out = 0L;
+		int len = Math.min(pages.length, set.pages.length);
+		for (int p = 0; p < len; p++)
+		{
+			long[] page = pages[p];
+			long[] other = set.pages[p];
+			if (page == null || other == null)
+				continue;
+			else if (page == FULL_PAGE)
+				out += count(other);
+			else if (other == FULL_PAGE)
+				out += count(page);
+			else
+			{
+				for (int w = 0; w < PAGE_WORDS; w++)
+					out += Long.bitCount(page[w] & other[w]);
+			}
+		}
+		return out;
+	}
+
+	// Counts the bits in a page.
+	private static int count(long[] page)
+	{
+		if (page == null)
+			return 0;
+		if (page == FULL_PAGE)
+			return PAGE_BITS;
+		int out = 0;
+		for (int w = 0; w < PAGE_WORDS; w++)
+			out += Long.bitCount(page[w]);
+		return out;
+	}
+
+	// Writes the pages: full and empty pages are written as markers.
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeInt(pages.length);
+		for (int p = 0; p < pages.length; p++)
+		{
+			long[] page = pages[p];
+			if (page == null)
+				out.writeByte(0);
+			else if (page == FULL_PAGE)
+				out.writeByte(1);
+			else
+			{
+				out.writeByte(2);
+				for (int w = 0; w < PAGE_WORDS; w++)
+					out.writeLong(page[w]);
+			}
+		}
+	}
+
+	// Reads the pages: full pages are shared again.
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PAGES)
+			throw new IOException("Bad page count: " + length);
+		pages = new long[length][];
+		for (int p = 0; p < length; p++)
+		{
+			byte type = in.readByte();
+			if (type == 1)
+				pages[p] = FULL_PAGE;
+			else if (type == 2)
+			{
+				long[] page = pages[p] = new long[PAGE_WORDS];
+				for (int w = 0; w < PAGE_WORDS; w++)
+					page[w] = in.readLong();
+			}
+			else if (type != 0)
+				throw new IOException("Bad page type: " + type);
+		}
+	}
+
+	// Grows the page list to hold at least a certain amount of pages.
+	private void ensurePages(int count)
+	{
+		if (count <= pages.length)
+			return;
+		pages = Arrays.copyOf(pages, Math.min(MAX_PAGES, Math.max(count, pages.length * 2)));
+	}
+
+	// Throws IndexOutOfBoundsException if out of range.
+	private static void checkIndex(int index)
+	{
+		if (index < 0)
+			throw new IndexOutOfBoundsException("Index cannot be less than 0.");
+	}
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import net.mtrop.doom.WadEntry;
+import net.mtrop.doom.WadFile;
+import net.mtrop.doom.object.BinaryObject;
+
+/**
+ * What a symbol in a WadMerge context refers to: an open WAD (see {@link WadMergeWad}),
+ * or a WAD that is assembled when it is written (see {@link WadMergePlan}).
+ * Commands use these operations only, so that each command works the same way on both.
+ * @author Matthew Tropiano
+ */
+interface WadMergeBuffer extends Closeable
+{
+	/** Empty data (for markers). */
+	static final byte[] NO_DATA = new byte[0];
+
+	/**
+	 * @return the file that this buffer is in, or is written to when it is finished, or null if none.
+	 */
+	File getTargetFile();
+
+	/**
+	 * @return true if this is an IWAD.
+	 */
+	boolean isIWAD();
+
+	/**
+	 * @return true if this has changes that were not written to its target file yet.
+	 */
+	boolean isModified();
+
+	/**
+	 * @return true if entry data from files is read when this is written, not when it is added.
+	 */
+	boolean isPlanned();
+
+	int getEntryCount();
+
+	String getEntryName(int index);
+
+	int indexOf(String name);
+
+	int lastIndexOf(String name);
+
+	default boolean contains(String name)
+	{
+		return indexOf(name) >= 0;
+	}
+
+	/**
+	 * Reads an entry's data.
+	 * @param index the entry index.
+	 * @return the data.
+	 * @throws IOException if the data could not be read.
+	 */
+	byte[] getData(int index) throws IOException;
+
+	/**
+	 * Reads the first entry with a name as an object.
+	 * @param <BO> the object type.
+	 * @param name the entry name.
+	 * @param type the object class.
+	 * @return the object, or null if no such entry.
+	 * @throws IOException if the data could not be read.
+	 */
+	default <BO extends BinaryObject> BO getDataAs(String name, Class<BO> type) throws IOException
+	{
+		int index;
+		if ((index = indexOf(name)) < 0)
+			return null;
+		return BinaryObject.create(type, getData(index));
+	}
+
+	/**
+	 * Starts adding many entries at once.
+	 * Entries added until {@link #finishAdding()} may not be written out until then.
+	 * @throws IOException if the buffer could not be prepared for adding.
+	 */
+	default void startAdding() throws IOException
+	{
+		// Do nothing by default.
+	}
+
+	/**
+	 * Finishes adding entries started with {@link #startAdding()}.
+	 * @throws IOException if the added entries could not be written.
+	 */
+	default void finishAdding() throws IOException
+	{
+		// Do nothing by default.
+	}
+
+	void addDataAt(int index, String name, byte[] data) throws IOException;
+
+	default void addMarker(String name) throws IOException
+	{
+		addDataAt(getEntryCount(), name, NO_DATA);
+	}
+
+	default void addData(String name, byte[] data) throws IOException
+	{
+		addDataAt(getEntryCount(), name, data);
+	}
+
+	default void addData(String name, BinaryObject object) throws IOException
+	{
+		addDataAt(getEntryCount(), name, object.toBytes());
+	}
+
+	/**
+	 * Adds an entry whose data is the contents of a file.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param file the file.
+	 * @throws IOException if the file could not be read.
+	 */
+	void addFileAt(int index, String name, File file) throws IOException;
+
+	/**
+	 * Adds an entry from a WAD file that was opened for reading.
+	 * Plans record where the data is in the file, and read it when they are written.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param wad the WAD file that the entry is from.
+	 * @param wadEntry the entry in the WAD file.
+	 * @throws IOException if the data could not be read.
+	 */
+	void addWadEntryAt(int index, String name, WadFile wad, WadEntry wadEntry) throws IOException;
+
+	/**
+	 * Adds an entry from another buffer (which can be this one).
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param source the source buffer.
+	 * @param sourceIndex the index of the entry in the source buffer.
+	 * @throws IOException if the data could not be read.
+	 */
+	void addEntryAt(int index, String name, WadMergeBuffer source, int sourceIndex) throws IOException;
+
+	void replaceData(int index, byte[] data) throws IOException;
+
+	void deleteEntry(int index) throws IOException;
+
+	/**
+	 * Makes this stop reading from a file that is about to be overwritten.
+	 * @param file the file.
+	 * @throws IOException if the data read from the file could not be read.
+	 */
+	void detach(File file) throws IOException;
+
+	/**
+	 * @return a plan with the same entries as this buffer, for deduplicating or incremental writes.
+	 * @throws IOException if entry data had to be read and could not be.
+	 */
+	WadMergePlan toPlan() throws IOException;
+
+	/**
+	 * Writes this buffer out as a WAD file.
+	 * The output file is not the file that this buffer is in.
+	 * @param outFile the output file.
+	 * @throws IOException if a read or write error occurs.
+	 */
+	void writeTo(File outFile) throws IOException;
+
+}
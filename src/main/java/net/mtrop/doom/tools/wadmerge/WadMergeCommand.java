@@ -16,7 +16,6 @@ import java.util.NoSuchElementException;
 import net.mtrop.doom.exception.WadException;
 import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.common.Response;
-import net.mtrop.doom.tools.struct.ArgumentScanner;
 import net.mtrop.doom.tools.struct.TokenScanner;
 import net.mtrop.doom.tools.struct.TokenScanner.ParseException;
 import net.mtrop.doom.tools.struct.util.EnumUtils;
@@ -42,6 +41,12 @@ public enum WadMergeCommand
 			// Kills the script.
 			return null;
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			// Uses nothing.
+		}
 	},
 	
 	ECHO
@@ -67,6 +72,12 @@ public enum WadMergeCommand
 			context.logln(sb.toString());
 			return Response.OK;
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			// Runs with the next command.
+		}
 	},
 	
 	CREATE
@@ -94,6 +105,12 @@ public enum WadMergeCommand
 				iwad = scanner.nextString().equalsIgnoreCase("iwad");
 			return context.create(symbol, iwad);
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.createSymbol(scanner.nextString());
+		}
 	},
 	
 	CREATEFILE
@@ -134,6 +151,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.createSymbol(scanner.nextString());
+			access.writeFile(scanner.nextString());
+		}
 	},
 	
 	CLEAR
@@ -188,6 +212,12 @@ public enum WadMergeCommand
 				return Response.BAD_WAD;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.discardSymbol(scanner.nextString());
+		}
 	},
 	
 	SAVE
@@ -229,6 +259,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.writeFile(scanner.nextString());
+		}
 	},
 	
 	LOAD
@@ -263,6 +300,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.createSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	FINISH
@@ -304,6 +348,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.discardSymbol(scanner.nextString());
+			access.writeFile(scanner.nextString());
+		}
 	},
 	
 	VALID
@@ -406,6 +457,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readSymbol(scanner.nextString());
+		}
 	},
 	
 	MERGEWAD
@@ -445,6 +503,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	MERGENAMESPACE
@@ -486,6 +551,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readSymbol(scanner.nextString());
+		}
 	},
 	
 	MERGENAMESPACEFILE
@@ -538,6 +610,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	MERGEFILE
@@ -582,6 +661,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	MERGEMAP
@@ -622,6 +708,14 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			scanner.nextString();
+			access.readSymbol(scanner.nextString());
+		}
 	},
 	
 	MERGEMAPFILE
@@ -672,6 +766,14 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			scanner.nextString();
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	MERGEDIR
@@ -720,6 +822,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readDirectory(scanner.nextString());
+		}
 	},
 	
 	MERGEWADDIR
@@ -764,6 +873,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readDirectory(scanner.nextString());
+		}
 	},
 	
 	MERGESWANTBLS
@@ -801,6 +917,13 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+		}
 	},
 	
 	MERGEDEUTEXFILE
@@ -856,6 +979,14 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readFile(scanner.nextString());
+			access.textureMerge();
+		}
 	},
 	
 	MERGETEXTUREDIR
@@ -903,6 +1034,14 @@ public enum WadMergeCommand
 				return Response.BAD_FILE;
 			}
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			access.writeSymbol(scanner.nextString());
+			access.readDirectory(scanner.nextString());
+			access.textureMerge();
+		}
 	},
 	
 	FILECHARSUB
@@ -932,6 +1071,14 @@ public enum WadMergeCommand
 			context.addCharSubstitution(src.charAt(0), dest.charAt(0));
 			return Response.OK;
 		}
+		
+		@Override
+		void access(TokenScanner scanner, WadMergeScheduler.Access access)
+		{
+			scanner.nextString();
+			scanner.nextString();
+			access.barrier();
+		}
 	},
 	
 	;
@@ -950,8 +1097,21 @@ public enum WadMergeCommand
 	 */
 	public abstract Response execute(WadMergeContext context, TokenScanner scanner);
 	
+	/**
+	 * Adds the symbols and files that this command reads or changes, 
+	 * so that commands that use different ones can be run at the same time.
+	 * By default, the command only changes the symbol in its first argument.
+	 * @param scanner the scanner for arguments.
+	 * @param access the access set to add to.
+	 */
+	void access(TokenScanner scanner, WadMergeScheduler.Access access)
+	{
+		access.writeSymbol(scanner.nextString());
+	}
+	
 	/**
 	 * Executes the provided script.
+	 * The script is compiled before any of it is executed.
 	 * @param streamName stream name.
 	 * @param reader the reader to read the script from.
 	 * @param context the WAD merge context.
@@ -961,73 +1121,110 @@ public enum WadMergeCommand
 	 */
 	public static boolean callScript(String streamName, BufferedReader reader, WadMergeContext context, String[] arguments) throws IOException
 	{
-		String line;
-		int linenum = 0;
-		
-		while ((line = reader.readLine()) != null)
-		{
-			linenum++;
-			line = line.trim();
-			if (line.isEmpty() || line.startsWith("#"))
-				continue;
-			WadMergeCommand mergeCommand = null;
-			try (TokenScanner scanner = new ArgumentScanner(arguments, line)) 
+		return callScript(streamName, reader, context, arguments, 1);
+	}
+	
+	/**
+	 * Executes the provided script, running commands that work on different symbols and files 
+	 * at the same time, if more than one thread is requested.
+	 * The script is compiled before any of it is executed.
+	 * @param streamName stream name.
+	 * @param reader the reader to read the script from.
+	 * @param context the WAD merge context.
+	 * @param arguments the WadMerge arguments.
+	 * @param threads the amount of threads to use. If 1 or less, this runs the script one line at a time.
+	 * @return true if no errors, false otherwise.
+	 * @throws IOException if the script can't be read.
+	 * @see WadMergeScript
+	 */
+	public static boolean callScript(String streamName, BufferedReader reader, WadMergeContext context, String[] arguments, int threads) throws IOException
+	{
+		WadMergeScript script;
+		try {
+			script = WadMergeScript.compile(streamName, reader);
+		} catch (net.mtrop.doom.tools.common.ParseException e) {
+			context.logf("ERROR: %s\n", e.getLocalizedMessage());
+			return false;
+		}
+		return script.call(streamName, context, arguments, threads);
+	}
+	
+	/**
+	 * Executes a single compiled script line.
+	 * @param streamName stream name.
+	 * @param line the compiled line.
+	 * @param context the WAD merge context.
+	 * @param arguments the WadMerge arguments.
+	 * @return true if the command succeeded, false if not (errors are logged), or null if the script should end.
+	 */
+	static Boolean callLine(String streamName, WadMergeScript.Line line, WadMergeContext context, String[] arguments)
+	{
+		WadMergeCommand mergeCommand = line.getCommand();
+		String command = line.getCommandName();
+		int linenum = line.getLineNumber();
+		try (TokenScanner scanner = line.scan(arguments)) 
+		{
+			WadMergeScheduler.Access access = null;
+			if (context.hasBufferBudget() || context.hasPendingTextures())
 			{
-				String command = scanner.nextString();
-				try 
-				{
-					mergeCommand = WadMergeCommand.VALUES.get(command);
-					if (mergeCommand == null)
-					{
-						context.logf("ERROR: %s, line %d: Unknown command: \"%s\".\n", streamName, linenum, command);
-						return false;
-					}
-					
-					Response out = mergeCommand.execute(context, scanner);
-					if (out == null)
-						return true;
-					if (out != Response.OK)
-					{
-						context.logf("ERROR: %s, line %d: Command %s returned %s.\n", streamName, linenum, command, out.name());
-						return false;
-					}
-				}
-				catch (ParseException e)
-				{
-					context.logf("ERROR: %s, line %d: An argument in command %s could not be parsed: %s\n", streamName, linenum, command, e.getLocalizedMessage());
-					context.logf("    %s\n", line);
-					return false;
-				}
-				catch (NoSuchElementException e)
-				{
-					context.logf("ERROR: %s, line %d: Command %s is missing an argument.\n", streamName, linenum, command);
-					context.logf("    %s ...?\n", line);
-					context.logln();
-					mergeCommand.help(System.out);
-					return false;
-				}
-				catch (NumberFormatException e)
-				{
-					context.logf("ERROR: %s, line %d: Command %s requires a numeric argument: %s\n", streamName, linenum, command, e.getLocalizedMessage());
-					context.logf("    %s\n", line);
-					context.logln();
-					mergeCommand.help(System.out);
-					return false;
-				}
-				catch (Exception e)
+				access = new WadMergeScheduler.Access();
+				try (TokenScanner accessScanner = line.scan(arguments))
 				{
-					context.logf("ERROR: %s, line %d: Bad command call: %s. Internal error.\n", streamName, linenum, command);
-					context.logf("    Caused by: %s: %s\n", e.getClass().getSimpleName(), e.getLocalizedMessage());
-					return false;
+					mergeCommand.access(accessScanner, access);
 				}
 			}
-			catch (NoSuchElementException e) 
+			
+			// Batched texture merges are written before anything else uses their symbols.
+			if (access != null && !access.isTextureMerge())
+			{
+				for (String symbol : access.getSymbols())
+					context.flushTextures(symbol);
+			}
+			
+			Response out = mergeCommand.execute(context, scanner);
+			if (out == null)
+				return null;
+			if (out != Response.OK)
 			{
-				context.logf("ERROR: %s, line %d: Missing command.\n", streamName, linenum);
+				context.logf("ERROR: %s, line %d: Command %s returned %s.\n", streamName, linenum, command, out.name());
 				return false;
 			}
+			
+			// Buffers that this command changed may need to move to disk.
+			if (context.hasBufferBudget())
+			{
+				for (String symbol : access.getChangedSymbols())
+					context.checkBufferBudget(symbol);
+			}
+		}
+		catch (ParseException e)
+		{
+			context.logf("ERROR: %s, line %d: An argument in command %s could not be parsed: %s\n", streamName, linenum, command, e.getLocalizedMessage());
+			context.logf("    %s\n", line.getLine());
+			return false;
+		}
+		catch (NoSuchElementException e)
+		{
+			context.logf("ERROR: %s, line %d: Command %s is missing an argument.\n", streamName, linenum, command);
+			context.logf("    %s ...?\n", line.getLine());
+			context.logln();
+			context.logHelp(mergeCommand);
+			return false;
+		}
+		catch (NumberFormatException e)
+		{
+			context.logf("ERROR: %s, line %d: Command %s requires a numeric argument: %s\n", streamName, linenum, command, e.getLocalizedMessage());
+			context.logf("    %s\n", line.getLine());
+			context.logln();
+			context.logHelp(mergeCommand);
+			return false;
+		}
+		catch (Exception e)
+		{
+			context.logf("ERROR: %s, line %d: Bad command call: %s. Internal error.\n", streamName, linenum, command);
+			context.logf("    Caused by: %s: %s\n", e.getClass().getSimpleName(), e.getLocalizedMessage());
+			return false;
 		}
-		
 		return true;
 	}
 	
@@ -14,11 +14,20 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
 
 import net.mtrop.doom.Wad;
 import net.mtrop.doom.Wad.Type;
@@ -26,8 +35,6 @@ import net.mtrop.doom.WadBuffer;
 import net.mtrop.doom.WadEntry;
 import net.mtrop.doom.WadFile;
 import net.mtrop.doom.exception.WadException;
-import net.mtrop.doom.graphics.PNGPicture;
-import net.mtrop.doom.struct.io.SerialReader;
 import net.mtrop.doom.texture.Animated;
 import net.mtrop.doom.texture.CommonTextureList;
 import net.mtrop.doom.texture.DoomTextureList;
@@ -40,6 +47,8 @@ import net.mtrop.doom.tools.common.Response;
 import net.mtrop.doom.tools.common.Utility;
 import net.mtrop.doom.tools.common.Common;
 import net.mtrop.doom.tools.common.ParseException;
+import net.mtrop.doom.tools.struct.AsyncFactory;
+import net.mtrop.doom.tools.struct.util.IOUtils;
 import net.mtrop.doom.util.MapUtils;
 import net.mtrop.doom.util.NameUtils;
 
@@ -55,6 +64,16 @@ public class WadMergeContext
 	);
 	/** Reusable StringBuilder. */
 	private static final ThreadLocal<StringBuilder> STRINGBUILDER = ThreadLocal.withInitial(()->new StringBuilder());
+	/** Empty data (for markers). */
+	private static final byte[] NO_DATA = new byte[0];
+	/** Amount of threads that read files ahead in MERGEDIR, and texture sizes in MERGETEXTUREDIR. */
+	private static final int TREE_READ_THREADS = 4;
+	/** Maximum amount of files read ahead of the one being added in MERGEDIR. */
+	private static final int TREE_READ_AHEAD = 64;
+	/** PNG file signature. */
+	private static final byte[] PNG_SIGNATURE = {(byte)0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a};
+	/** Texture sizes read from patch files, by file path, length, and modified time. */
+	private static final Map<String, int[]> TEXTURE_DIMENSIONS = new ConcurrentHashMap<>();
 	
 	/** Comparator for MERGEDIR file sorting. */
 	private static final Comparator<File> DIR_FILESORT = (a, b) -> 
@@ -75,14 +94,26 @@ public class WadMergeContext
 		}
 	};
 
-	/** Map of open wads. */
-	private TreeMap<String, Wad> currentWads;
+	/** Map of open buffers (WADs, or plans in plan mode). */
+	private Map<String, WadMergeBuffer> currentBuffers;
 	/** Log out print stream. */
 	private PrintStream logout;
 	/** If verbosity is enabled. */
 	private boolean verbose;
+	/** If true, new buffers and files are plans, assembled when they are saved. */
+	private boolean planMode;
 	/** Map of character substitutions in filenames. */
 	private Map<Character, Character> charSubstitutions;
+	/** Largest size of buffer content in memory, in bytes, before it is moved to a temporary file (0 is no limit). */
+	private long bufferBudget;
+	/** Temporary files that buffer content was moved to. */
+	private Set<File> spillFiles;
+	/** If true, identical entry data is written once when WADs are saved. */
+	private boolean deduplicate;
+	/** If true, saved WADs reuse unchanged data from their previous output. */
+	private boolean incremental;
+	/** Map of symbols to texture merges that have not been written yet. */
+	private Map<String, WadMergeTextures> pendingTextures;
 
 	/**
 	 * Creates a new context. No output.
@@ -99,10 +130,160 @@ public class WadMergeContext
 	 */
 	public WadMergeContext(PrintStream log, boolean verbose)
 	{
-		this.currentWads = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		this(log, verbose, false);
+	}
+	
+	/**
+	 * Creates a new context.
+	 * <p>In plan mode, buffers and files are not built as commands are run. Instead, each entry
+	 * records where its data comes from (a file, an entry in a WAD file, or data in memory),
+	 * and WADs are assembled in one sequential write, with one directory write, when they are 
+	 * saved or finished. Files created with {@link #createFile(String, File, boolean)} that are
+	 * not finished are written on {@link #close()}.
+	 * @param log the output print stream to use for logging (can be null).
+	 * @param verbose if true, do verbose printing (only matters if log is not null).
+	 * @param planMode if true, new buffers and files are plans.
+	 */
+	public WadMergeContext(PrintStream log, boolean verbose, boolean planMode)
+	{
+		this.currentBuffers = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
 		this.charSubstitutions = new TreeMap<>();
 		this.logout = log;
 		this.verbose = verbose;
+		this.planMode = planMode;
+		this.bufferBudget = 0L;
+		this.spillFiles = ConcurrentHashMap.newKeySet();
+		this.deduplicate = false;
+		this.incremental = false;
+		this.pendingTextures = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+	}
+	
+	// Creates a context that shares another context's symbols and settings.
+	private WadMergeContext(WadMergeContext context, PrintStream log)
+	{
+		this.currentBuffers = context.currentBuffers;
+		this.charSubstitutions = context.charSubstitutions;
+		this.logout = log;
+		this.verbose = context.verbose;
+		this.planMode = context.planMode;
+		this.bufferBudget = context.bufferBudget;
+		this.spillFiles = context.spillFiles;
+		this.deduplicate = context.deduplicate;
+		this.incremental = context.incremental;
+		this.pendingTextures = context.pendingTextures;
+	}
+	
+	/**
+	 * Sets the memory budget for each buffer.
+	 * If there is a budget, buffers are created as plans, like in plan mode, so entries from files and 
+	 * WAD files are not read into memory. When a buffer's entry data in memory grows past the budget, 
+	 * it is moved to the end of a temporary file, and read from there, with no difference to the commands 
+	 * that use it after that. Buffers are checked as entries are added, so no command adds much more
+	 * than the budget before it is moved.
+	 * @param bytes the budget in bytes, or 0 or less for no limit.
+	 */
+	public void setBufferBudget(long bytes)
+	{
+		this.bufferBudget = Math.max(bytes, 0L);
+	}
+	
+	/**
+	 * Sets if saved WADs share data between entries with identical data.
+	 * If true, entries whose data is byte-for-byte the same as an earlier entry's data in the same WAD 
+	 * point at the earlier entry's data instead of adding another copy, which vanilla WAD directories allow.
+	 * This makes saving slower for WADs without many duplicates, since entry data must be read to compare it.
+	 * Files that are saved to themselves are rewritten.
+	 * @param deduplicate true to deduplicate, false to not.
+	 */
+	public void setDeduplicate(boolean deduplicate)
+	{
+		this.deduplicate = deduplicate;
+	}
+	
+	/**
+	 * Sets if saved WADs are written incrementally.
+	 * If true, a manifest of where each entry's data came from is written next to each saved WAD,
+	 * and the next save to the same file copies the data of unchanged sources from the previous WAD
+	 * instead of reading the sources again. If nothing changed, the WAD is not written at all.
+	 * This works best in plan mode, where entries record their sources instead of their data.
+	 * @param incremental true to write incrementally, false to not.
+	 */
+	public void setIncremental(boolean incremental)
+	{
+		this.incremental = incremental;
+	}
+	
+	/**
+	 * @return true if in-memory buffers have a memory budget, false if not.
+	 * @see #setBufferBudget(long)
+	 */
+	public boolean hasBufferBudget()
+	{
+		return bufferBudget > 0L;
+	}
+	
+	/**
+	 * Moves a buffer's entry data in memory to a temporary file if it is larger than the buffer budget.
+	 * Does nothing if the symbol is not a plan, or there is no budget.
+	 * Symbol is case-insensitive.
+	 * @param symbol the buffer symbol.
+	 * @throws IOException if the temporary file could not be written.
+	 * @see #setBufferBudget(long)
+	 */
+	public void checkBufferBudget(String symbol) throws IOException
+	{
+		WadMergeBuffer buffer;
+		if (hasBufferBudget() && (buffer = currentBuffers.get(symbol)) != null)
+			checkBufferBudget(symbol, buffer);
+	}
+	
+	/**
+	 * @return true if any symbol has texture merges that were not written yet, false if not.
+	 * @see #flushTextures(String)
+	 */
+	public boolean hasPendingTextures()
+	{
+		return !pendingTextures.isEmpty();
+	}
+	
+	/**
+	 * Writes a symbol's batched texture merges to its TEXTUREx and PNAMES entries.
+	 * Texture merges into the same symbol are batched so that those entries are only 
+	 * read and written once, no matter how many texture merges there are. Scripts write 
+	 * them before any other command uses the symbol, and save, finish, and discard 
+	 * write them as well.
+	 * Does nothing if the symbol has no batched texture merges.
+	 * Symbol is case-insensitive.
+	 * @param symbol the symbol.
+	 * @throws IOException if the entries could not be written.
+	 * @see #mergeDEUTEXTextureFile(String, File, boolean, String)
+	 * @see #mergeTextureDirectory(String, File, boolean, String)
+	 */
+	public void flushTextures(String symbol) throws IOException
+	{
+		WadMergeTextures textures;
+		if ((textures = pendingTextures.remove(symbol)) == null)
+			return;
+
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
+			return;
+
+		for (Map.Entry<String, CommonTextureList<?>> entry : textures.export().entrySet())
+			setLastEntryData(buffer, entry.getKey(), entry.getValue().toBytes());
+		setLastEntryData(buffer, "PNAMES", textures.getPatchNames().toBytes());
+		verbosef("Wrote texture merges to `%s`.\n", symbol);
+	}
+	
+	/**
+	 * Creates a context that shares this context's symbols and settings, but logs to another stream.
+	 * Used for running independent parts of a script at the same time.
+	 * @param log the output print stream to use for logging (can be null).
+	 * @return a new context.
+	 */
+	WadMergeContext withLog(PrintStream log)
+	{
+		return new WadMergeContext(this, log);
 	}
 	
 	public void verboseln(String seq)
@@ -134,6 +315,16 @@ public class WadMergeContext
 			logout.printf(seq, args);
 	}
 	
+	/**
+	 * Prints a command's help to the log.
+	 * @param command the command.
+	 */
+	public void logHelp(WadMergeCommand command)
+	{
+		if (logout != null)
+			command.help(logout);
+	}
+	
 	/**
 	 * Sets verbosity.
 	 * @param verbose the new verbosity flag.
@@ -158,13 +349,20 @@ public class WadMergeContext
 	 */
 	public Response create(String symbol, boolean iwad)
 	{
-		if (currentWads.containsKey(symbol))
+		if (symbolExists(symbol))
 			return Response.BAD_SYMBOL;
 		
-		WadBuffer buffer = new WadBuffer();
-		if (iwad)
-			buffer.setType(Type.IWAD);
-		currentWads.put(symbol, buffer);
+		if (planMode || hasBufferBudget())
+		{
+			currentBuffers.put(symbol, new WadMergePlan(null, iwad));
+		}
+		else
+		{
+			WadBuffer buffer = new WadBuffer();
+			if (iwad)
+				buffer.setType(Type.IWAD);
+			currentBuffers.put(symbol, new WadMergeWad(buffer));
+		}
 		verbosef("Created buffer `%s`.\n", symbol);
 		return Response.OK;
 	}
@@ -181,13 +379,21 @@ public class WadMergeContext
 	 */
 	public Response createFile(String symbol, File wadFile, boolean iwad) throws IOException
 	{
-		if (currentWads.containsKey(symbol))
+		if (symbolExists(symbol))
 			return Response.BAD_SYMBOL;
 		
-		WadFile wad = WadFile.createWadFile(wadFile);
-		if (iwad)
-			wad.setType(Type.IWAD);
-		currentWads.put(symbol, wad);
+		if (planMode)
+		{
+			currentBuffers.put(symbol, new WadMergePlan(wadFile, iwad));
+		}
+		else
+		{
+			detachPlans(wadFile);
+			WadFile wad = WadFile.createWadFile(wadFile);
+			if (iwad)
+				wad.setType(Type.IWAD);
+			currentBuffers.put(symbol, new WadMergeWad(wad));
+		}
 		logf("Created WAD file `%s` (at `%s`).\n", symbol, wadFile.getPath());
 		return Response.OK;
 	}
@@ -201,7 +407,7 @@ public class WadMergeContext
 	 */
 	public Response isValid(String symbol)
 	{
-		Response out = currentWads.containsKey(symbol) ? Response.OK : Response.BAD_SYMBOL;
+		Response out = symbolExists(symbol) ? Response.OK : Response.BAD_SYMBOL;
 		if (out == Response.OK)
 			verbosef("Symbol `%s` is valid.\n", symbol);
 		else
@@ -219,19 +425,20 @@ public class WadMergeContext
 	 */
 	public Response clear(String symbol) throws IOException
 	{
-		if (!currentWads.containsKey(symbol))
+		pendingTextures.remove(symbol);
+		
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.remove(symbol)) == null)
 			return Response.BAD_SYMBOL;
 		
-		Wad buffer = currentWads.remove(symbol);
 		boolean iwad = buffer.isIWAD();
+		File targetFile = buffer.getTargetFile();
 		verbosef("Cleared `%s`.\n", symbol);
 		buffer.close();
-		if (buffer instanceof WadBuffer)
+		if (targetFile == null)
 			return create(symbol, iwad);
-		else if (buffer instanceof WadFile)
-			return createFile(symbol, new File(((WadFile)buffer).getFilePath()), iwad);
 		else
-			return Response.UNEXPECTED_ERROR;
+			return createFile(symbol, targetFile, iwad);
 	}
 
 	/**
@@ -244,14 +451,42 @@ public class WadMergeContext
 	 */
 	public Response discard(String symbol) throws IOException
 	{
-		if (!currentWads.containsKey(symbol))
+		flushTextures(symbol);
+		
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
-		currentWads.remove(symbol).close();
+		// Planned files are still written, as they would have been built as they went.
+		writeModified(buffer);
+		currentBuffers.remove(symbol).close();
 		verbosef("Discarded `%s`.\n", symbol);
 		return Response.OK;
 	}
 
+	/**
+	 * Finishes this context: file plans that were modified and never finished are 
+	 * written to their target files, and all open buffers and files are closed.
+	 * @throws IOException if a plan could not be written or a Wad could not be closed.
+	 */
+	public void close() throws IOException
+	{
+		try {
+			for (String symbol : pendingTextures.keySet())
+				flushTextures(symbol);
+			for (WadMergeBuffer buffer : currentBuffers.values())
+				writeModified(buffer);
+		} finally {
+			pendingTextures.clear();
+			for (WadMergeBuffer buffer : currentBuffers.values())
+				Common.close(buffer);
+			currentBuffers.clear();
+			for (File file : spillFiles)
+				file.delete();
+			spillFiles.clear();
+		}
+	}
+
 	/**
 	 * Loads the contents of a Wad file into a buffer.
 	 * Symbol is case-insensitive.
@@ -298,37 +533,29 @@ public class WadMergeContext
 	 */
 	public Response save(String symbol, File outFile) throws IOException
 	{
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		flushTextures(symbol);
+		
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 	
 		Common.createPathForFile(outFile);
 		
-		if (buffer instanceof WadBuffer)
-		{
-			((WadBuffer)buffer).writeToFile(outFile);
-			logf("Wrote file `%s`.\n", outFile.getPath());
-		}
-		else if (buffer instanceof WadFile)
+		// WAD files saved to themselves are already written, unless they are rewritten to deduplicate them.
+		if (!buffer.isPlanned() && outFile.equals(buffer.getTargetFile()))
 		{
-			File wadFile = new File(((WadFile)buffer).getFilePath());
-			if (!wadFile.equals(outFile))
+			if (deduplicate)
 			{
-				try (WadFile wf = WadFile.extract(outFile, buffer, 0, buffer.getEntryCount()))
-				{
-					wf.setType(((WadFile)buffer).getType());
-				}
-				logf("Wrote file `%s`.\n", outFile.getPath());
-			}
-			// Do nothing if same file.
-			else
-			{
-				logf("Finished file `%s`.\n", outFile.getPath());
+				WadMergePlan plan = buffer.toPlan();
+				buffer.close();
+				writePlan(plan, outFile);
+				currentBuffers.put(symbol, new WadMergeWad(new WadFile(outFile)));
 			}
+			logf("Finished file `%s`.\n", outFile.getPath());
+			return Response.OK;
 		}
-		else
-			return Response.UNEXPECTED_ERROR;
-
+		
+		logf(write(buffer, outFile) ? "Wrote file `%s`.\n" : "File `%s` is up to date.\n", outFile.getPath());
 		return Response.OK;
 	}
 
@@ -392,8 +619,8 @@ public class WadMergeContext
 	 */
 	public Response addMarker(String symbol, String name) throws IOException
 	{
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 		
 		String marker = NameUtils.toValidEntryName(name);
@@ -413,8 +640,8 @@ public class WadMergeContext
 	 */
 	public Response addDateMarker(String symbol, String name) throws IOException
 	{
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 		
 		String marker = NameUtils.toValidEntryName(name);
@@ -425,6 +652,7 @@ public class WadMergeContext
 
 	/**
 	 * Merges a Wad buffer into another.
+	 * Entries merged from a plan into another plan share their data sources, and nothing is read.
 	 * The symbols are case-insensitive.
 	 * @param destinationSymbol the destination buffer.
 	 * @param sourceSymbol the source buffer.
@@ -435,23 +663,15 @@ public class WadMergeContext
 	 */
 	public Response merge(String destinationSymbol, String sourceSymbol) throws IOException
 	{
-		Wad bufferDest;
-		if ((bufferDest = currentWads.get(destinationSymbol)) == null)
+		WadMergeBuffer bufferDest;
+		if ((bufferDest = currentBuffers.get(destinationSymbol)) == null)
 			return Response.BAD_SYMBOL;
 		
-		Wad bufferSource;
-		if ((bufferSource = currentWads.get(sourceSymbol)) == null)
+		WadMergeBuffer bufferSource;
+		if ((bufferSource = currentBuffers.get(sourceSymbol)) == null)
 			return Response.BAD_SOURCE_SYMBOL;
 
-		destinationSymbol = destinationSymbol.toLowerCase();
-		sourceSymbol = sourceSymbol.toLowerCase();
-		for (WadEntry e : bufferSource)
-		{
-			bufferDest.addData(e.getName(), bufferSource.getData(e));
-			verbosef("Added entry `%s` to buffer `%s` (from `%s`).\n", e.getName(), destinationSymbol, sourceSymbol);
-		}
-		
-		return Response.OK;
+		return mergeBulkData(bufferDest, destinationSymbol.toLowerCase(), bufferDest.getEntryCount(), bufferSource, sourceSymbol.toLowerCase(), 0, bufferSource.getEntryCount());
 	}
 	
 	/**
@@ -473,8 +693,8 @@ public class WadMergeContext
 		if (!Wad.isWAD(wadFile))
 			return Response.BAD_WAD;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 		
 		try (WadFile wad = new WadFile(wadFile))
@@ -510,32 +730,13 @@ public class WadMergeContext
 		if (!Wad.isWAD(wadFile))
 			return Response.BAD_WAD;
 
-		Wad bufferDest;
-		if ((bufferDest = currentWads.get(destinationSymbol)) == null)
+		WadMergeBuffer bufferDest;
+		if ((bufferDest = currentBuffers.get(destinationSymbol)) == null)
 			return Response.BAD_SYMBOL;
 		
 		String startEntry = namespace.toUpperCase() + "_START";
 		String endEntry = namespace.toUpperCase() + "_END";
-		
-		int insertIndex = bufferDest.getEntryCount();
-		if (amendNamespace)
-		{
-			int idx;
-			if ((idx = bufferDest.indexOf(endEntry)) >= 0)
-			{
-				insertIndex = idx;
-				verbosef("Found `%s` in symbol `%s` for insertion point.\n", endEntry, destinationSymbol);
-			}
-			else
-			{
-				Response resp;
-				if ((resp = addMarker(destinationSymbol, startEntry)) != Response.OK)
-					return resp;
-				if ((resp = addMarker(destinationSymbol, endEntry)) != Response.OK)
-					return resp;
-				insertIndex = bufferDest.lastIndexOf(endEntry);
-			}
-		}
+		int insertIndex = getNamespaceInsertIndex(bufferDest, destinationSymbol, namespace, amendNamespace);
 		
 		try (WadFile wad = new WadFile(wadFile))
 		{
@@ -571,36 +772,15 @@ public class WadMergeContext
 	 */
 	public Response mergeNamespace(String destinationSymbol, String sourceSymbol, String namespace, boolean amendNamespace) throws IOException
 	{
-		Wad bufferDest;
-		if ((bufferDest = currentWads.get(destinationSymbol)) == null)
+		WadMergeBuffer bufferDest;
+		if ((bufferDest = currentBuffers.get(destinationSymbol)) == null)
 			return Response.BAD_SYMBOL;
 		
-		Wad bufferSource;
-		if ((bufferSource = currentWads.get(sourceSymbol)) == null)
+		WadMergeBuffer bufferSource;
+		if ((bufferSource = currentBuffers.get(sourceSymbol)) == null)
 			return Response.BAD_SOURCE_SYMBOL;
 
-		String startEntry = namespace.toUpperCase() + "_START";
-		String endEntry = namespace.toUpperCase() + "_END";
-		
-		int insertIndex = bufferDest.getEntryCount();
-		if (amendNamespace)
-		{
-			int idx;
-			if ((idx = bufferDest.indexOf(endEntry)) >= 0)
-			{
-				insertIndex = idx;
-				verbosef("Found `%s` in symbol `%s` for insertion point.\n", endEntry, destinationSymbol);
-			}
-			else
-			{
-				Response resp;
-				if ((resp = addMarker(destinationSymbol, startEntry)) != Response.OK)
-					return resp;
-				if ((resp = addMarker(destinationSymbol, endEntry)) != Response.OK)
-					return resp;
-				insertIndex = bufferDest.lastIndexOf(endEntry);
-			}
-		}
+		int insertIndex = getNamespaceInsertIndex(bufferDest, destinationSymbol, namespace, amendNamespace);
 		
 		int startIndex;
 		if ((startIndex = bufferSource.indexOf(namespace + "_START")) < 0)
@@ -614,7 +794,7 @@ public class WadMergeContext
 			return Response.BAD_NAMESPACE_RANGE;
 
 		int len = (endIndex - 1) - startIndex; 
-		return mergeBulkData(bufferDest, destinationSymbol, insertIndex, bufferSource, sourceSymbol, bufferSource.mapEntries(startIndex + 1, len));
+		return mergeBulkData(bufferDest, destinationSymbol, insertIndex, bufferSource, sourceSymbol, startIndex + 1, len);
 	}
 
 	/**
@@ -640,13 +820,21 @@ public class WadMergeContext
 		if (!Wad.isWAD(wadFile))
 			return Response.BAD_WAD;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 		
+		newHeader = NameUtils.toValidEntryName(newHeader);
 		try (WadFile wad = new WadFile(wadFile))
 		{
-			Response out = mergeMap(buffer, symbol, newHeader, wad, wadFile.getPath(), header);
+			int count = MapUtils.getMapEntryCount(wad, header);
+			int headerIndex = wad.indexOf(header);
+			WadEntry[] entries = wad.mapEntries(headerIndex + 1, count - 1);
+			if (entries.length == 0)
+				return Response.BAD_MAP;
+			
+			buffer.addWadEntryAt(buffer.getEntryCount(), newHeader, wad, wad.getEntry(headerIndex));
+			Response out = mergeBulkData(buffer, symbol, buffer.getEntryCount(), wad, wadFile.getPath(), entries);
 			verbosef("Added map `%s` to `%s` as `%s` (from `%s`).\n", header, symbol, newHeader, wadFile.getPath());
 			return out;
 		}		
@@ -654,6 +842,7 @@ public class WadMergeContext
 	
 	/**
 	 * Merges a single map from an existing buffer into a buffer.
+	 * Entries merged from a plan into another plan share their data sources, and nothing is read.
 	 * Symbol is case-insensitive, as well as entry. The new entry is coerced to a valid name.
 	 * @param destinationSymbol the buffer to merge into.
 	 * @param newHeader the new header name.
@@ -668,16 +857,23 @@ public class WadMergeContext
 	public Response mergeMap(String destinationSymbol, String newHeader, String sourceSymbol, String header) throws IOException
 	{
 		destinationSymbol = destinationSymbol.toLowerCase();
-		Wad bufferDest;
-		if ((bufferDest = currentWads.get(destinationSymbol)) == null)
+		WadMergeBuffer bufferDest;
+		if ((bufferDest = currentBuffers.get(destinationSymbol)) == null)
 			return Response.BAD_SYMBOL;
 		
 		sourceSymbol = sourceSymbol.toLowerCase();
-		Wad bufferSource;
-		if ((bufferSource = currentWads.get(sourceSymbol)) == null)
+		WadMergeBuffer bufferSource;
+		if ((bufferSource = currentBuffers.get(sourceSymbol)) == null)
 			return Response.BAD_SOURCE_SYMBOL;
 		
-		Response out = mergeMap(bufferDest, destinationSymbol, newHeader, bufferSource, sourceSymbol, header);
+		int headerIndex;
+		int count;
+		if ((headerIndex = bufferSource.indexOf(header)) < 0 || (count = getMapEntryCount(bufferSource, headerIndex, header)) < 2)
+			return Response.BAD_MAP;
+		
+		newHeader = NameUtils.toValidEntryName(newHeader);
+		bufferDest.addEntryAt(bufferDest.getEntryCount(), newHeader, bufferSource, headerIndex);
+		Response out = mergeBulkData(bufferDest, destinationSymbol, bufferDest.getEntryCount(), bufferSource, sourceSymbol, headerIndex + 1, count - 1);
 		verbosef("Added map `%s` to `%s` as `%s` (from `%s`).\n", header, destinationSymbol, newHeader, sourceSymbol);
 		return out;
 	}
@@ -698,8 +894,8 @@ public class WadMergeContext
 		if (!inFile.exists() || inFile.isDirectory())
 			return Response.BAD_FILE;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
 		return mergeFileData(buffer, symbol, inFile, entryName, buffer.getEntryCount());
@@ -725,66 +921,127 @@ public class WadMergeContext
 		if (!inDirectory.exists() || !inDirectory.isDirectory())
 			return Response.BAD_DIRECTORY;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
-		File[] files;
-		
-		// Sort files first, directories last, alphabetical order.
-		Arrays.sort(files = inDirectory.listFiles(), DIR_FILESORT);
-
-		WadFile.Adder adder = null;
+		// Walk the whole tree first.
+		List<TreeEntry> treeEntries = new ArrayList<>(256);
+		walkTree(inDirectory, filter, omitMarkers, treeEntries);
+
+		// Files are read ahead on a worker pool, unless the buffer is a plan that reads them when it is written.
+		// Everything is added in order.
+		AsyncFactory async = buffer.isPlanned() ? null : new AsyncFactory(TREE_READ_THREADS);
+		Deque<AsyncFactory.Instance<byte[]>> readAhead = new LinkedList<>();
+		Iterator<TreeEntry> readIterator = treeEntries.iterator();
+		int index = buffer.getEntryCount();
+		buffer.startAdding();
 		try {
-			for (File f : files)
+			for (TreeEntry entry : treeEntries)
 			{
-				Response resp;
-				if (f.isDirectory())
+				switch (entry.type)
 				{
-					if (adder != null)
+					case DIRECTORY_START:
+						verbosef("Scan directory `%s`...\n", entry.file.getPath());
+						break;
+					case DIRECTORY_END:
+						verbosef("Done scanning directory `%s`.\n", entry.file.getPath());
+						break;
+					case MARKER:
 					{
-						adder.close();
-						adder = null;
+						String marker = NameUtils.toValidEntryName(entry.name);
+						buffer.addDataAt(index++, marker, NO_DATA);
+						verbosef("Added marker `%s` to buffer `%s`.\n", marker, symbol);
+						break;
 					}
-					verbosef("Scan directory `%s`...\n", f.getPath());
-					if (!omitMarkers && (resp = addMarker(symbol, "\\" + f.getName())) != Response.OK)
-						return resp; 
-					if ((resp = mergeTree(symbol, f, filter, omitMarkers)) != Response.OK)
-						return resp; 
-					verbosef("Done scanning directory `%s`.\n", f.getPath());
-				}
-				else if (filter.accept(f))
-				{
-					if (Common.getFileExtension(f).equalsIgnoreCase("wad") && Wad.isWAD(f))
+					case FILE:
 					{
-						if (adder != null)
+						String entryName = NameUtils.toValidEntryName(entry.name);
+						if (async == null)
 						{
-							adder.close();
-							adder = null;
+							buffer.addFileAt(index++, entryName, entry.file);
 						}
-						if ((resp = mergeWad(symbol, f)) != Response.OK)
-							return resp; 
-					}
-					else if (buffer instanceof WadFile)
-					{
-						if (adder == null)
-							adder = ((WadFile)buffer).createAdder();
-						if ((resp = mergeFileData(adder, symbol, f, subCharString(Common.getFileNameWithoutExtension(f)), buffer.getEntryCount())) != Response.OK)
-							return resp; 
+						else
+						{
+							while (readAhead.size() < TREE_READ_AHEAD && readIterator.hasNext())
+							{
+								TreeEntry next = readIterator.next();
+								if (next.type == TreeEntryType.FILE)
+									readAhead.add(async.spawn(() -> IOUtils.getBinaryContents(next.file)));
+							}
+							buffer.addDataAt(index++, entryName, getReadAhead(readAhead.pollFirst()));
+						}
+						verbosef("Added `%s` to `%s` (from `%s`).\n", entryName, symbol, entry.file.getPath());
+						checkBufferBudget(symbol, buffer);
+						break;
 					}
-					else
+					case WAD:
 					{
-						if ((resp = mergeFile(symbol, f, subCharString(Common.getFileNameWithoutExtension(f)))) != Response.OK)
-							return resp; 
+						try (WadFile wad = new WadFile(entry.file))
+						{
+							verbosef("Reading WAD `%s`...\n", entry.file.getPath());
+							for (WadEntry e : wad.getAllEntries())
+							{
+								buffer.addWadEntryAt(index++, e.getName(), wad, e);
+								verbosef("Added `%s` to `%s` (from `%s`).\n", e.getName(), symbol, entry.file.getPath());
+								checkBufferBudget(symbol, buffer);
+							}
+							verbosef("Done reading `%s`.\n", entry.file.getPath());
+						}
+						break;
 					}
 				}
 			}
 		} finally {
-			Common.close(adder);
+			buffer.finishAdding();
+			if (async != null)
+				async.shutDownNow();
 		}
 		
 		return Response.OK;
 	}
+	
+	// Gets the result of a read ahead of a merge.
+	private static <T> T getReadAhead(AsyncFactory.Instance<T> instance) throws IOException
+	{
+		try {
+			return instance.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading a file.", e);
+		}
+	}
+	
+	// Walks a directory tree for a tree merge, adding what to add, in order.
+	private void walkTree(File inDirectory, FileFilter filter, boolean omitMarkers, List<TreeEntry> out) throws IOException
+	{
+		File[] files;
+		
+		// Sort files first, directories last, alphabetical order.
+		Arrays.sort(files = inDirectory.listFiles(), DIR_FILESORT);
+		
+		for (File f : files)
+		{
+			if (f.isDirectory())
+			{
+				out.add(new TreeEntry(TreeEntryType.DIRECTORY_START, f, null));
+				if (!omitMarkers)
+					out.add(new TreeEntry(TreeEntryType.MARKER, f, "\\" + f.getName()));
+				walkTree(f, filter, omitMarkers, out);
+				out.add(new TreeEntry(TreeEntryType.DIRECTORY_END, f, null));
+			}
+			else if (filter.accept(f))
+			{
+				if (Common.getFileExtension(f).equalsIgnoreCase("wad") && Wad.isWAD(f))
+					out.add(new TreeEntry(TreeEntryType.WAD, f, null));
+				else
+					out.add(new TreeEntry(TreeEntryType.FILE, f, subCharString(Common.getFileNameWithoutExtension(f))));
+			}
+		}
+	}
 
 	/**
 	 * Merges a DEUTEX texture file into TEXTUREX/PNAMES entries in a buffer
@@ -800,40 +1057,22 @@ public class WadMergeContext
 	 * 		or BAD_PARSE if the input file had a parse error,
 	 * 		or BAD_FILE if the file does not exist or is a directory.
 	 * @throws IOException if the file could not be read.
+	 * @see #flushTextures(String)
 	 */
-	@SuppressWarnings("unchecked")
 	public Response mergeDEUTEXTextureFile(String symbol, File textureFile, boolean strife, String textureEntryName) throws IOException
 	{
 		if (!textureFile.exists() || textureFile.isDirectory())
 			return Response.BAD_FILE;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
-		PatchNames pout;
-		if (buffer.contains("PNAMES"))
-			pout = buffer.getDataAs("PNAMES", PatchNames.class);
-		else
-			pout = new PatchNames();
-
-		CommonTextureList<?> tout;
-		if (buffer.contains(textureEntryName))
-		{
-			if (strife)
-				tout = buffer.getDataAs(textureEntryName, StrifeTextureList.class);
-			else
-				tout = buffer.getDataAs(textureEntryName, DoomTextureList.class);
-		}
-		else
-		{
-			tout = strife ? new StrifeTextureList(128) : new DoomTextureList(128);
-		}
-
-		TextureSet textureSet;
+		textureEntryName = NameUtils.toValidEntryName(textureEntryName);
+		TextureSet textureSet = getPendingTextureSet(buffer, symbol, textureEntryName, strife);
 		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textureFile))))
 		{
-			textureSet = Utility.readDEUTEXFile(reader, pout, tout);
+			Utility.readDEUTEXFile(reader, textureSet);
 		} 
 		catch (ParseException e) 
 		{
@@ -841,37 +1080,7 @@ public class WadMergeContext
 			return Response.BAD_PARSE;
 		}
 		
-		if (strife)
-			textureSet.export(pout, (CommonTextureList<StrifeTextureList.Texture>)(tout = new StrifeTextureList(128)));
-		else
-			textureSet.export(pout, (CommonTextureList<DoomTextureList.Texture>)(tout = new DoomTextureList(128)));
-
-		textureEntryName = NameUtils.toValidEntryName(textureEntryName);
-
-		if (buffer.contains(textureEntryName))
-		{
-			buffer.deleteEntry(buffer.indexOf(textureEntryName));
-			buffer.addData(textureEntryName, tout);
-			verbosef("Replaced `%s` in `%s`.\n", textureEntryName, symbol);
-		}
-		else
-		{
-			buffer.addData(textureEntryName, tout);
-			verbosef("Added `%s` to `%s`.\n", textureEntryName, symbol);
-		}
-		
-		if (buffer.contains("PNAMES"))
-		{
-			buffer.deleteEntry(buffer.indexOf("PNAMES"));
-			buffer.addData("PNAMES", pout);
-			verbosef("Replaced `PNAMES` in `%s`.\n", symbol);
-		}
-		else
-		{
-			buffer.addData("PNAMES", pout);
-			verbosef("Added `PNAMES` to `%s`.\n", symbol);
-		}
-
+		placeTextureEntries(buffer, symbol, textureEntryName);
 		return Response.OK;
 	}
 
@@ -887,40 +1096,20 @@ public class WadMergeContext
 	 * 		or BAD_SYMBOL if the destination symbol is invalid, 
 	 * 		or BAD_DIRECTORY if the provided file is not a directory.
 	 * @throws IOException if the file could not be read.
+	 * @see #flushTextures(String)
 	 */
-	@SuppressWarnings("unchecked")
 	public Response mergeTextureDirectory(String symbol, File textureDirectory, boolean strife, String textureEntryName) throws IOException
 	{
 		if (!textureDirectory.exists() || !textureDirectory.isDirectory())
 			return Response.BAD_DIRECTORY;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
 		// Find existing texture data.
-		PatchNames pout;
-		if (buffer.contains("PNAMES"))
-		{
-			pout = buffer.getDataAs("PNAMES", PatchNames.class);
-			verbosef("Found existing `PNAMES`.\n");
-		}
-		else
-			pout = new PatchNames();
-
-		CommonTextureList<?> tout;
-		if (buffer.contains(textureEntryName))
-		{
-			if (strife)
-				tout = buffer.getDataAs(textureEntryName, StrifeTextureList.class);
-			else
-				tout = buffer.getDataAs(textureEntryName, DoomTextureList.class);
-			verbosef("Found existing `%s`.\n", textureEntryName);
-		}
-		else
-		{
-			tout = strife ? new StrifeTextureList(128) : new DoomTextureList(128);
-		}
+		textureEntryName = NameUtils.toValidEntryName(textureEntryName);
+		TextureSet textureSet = getPendingTextureSet(buffer, symbol, textureEntryName, strife);
 		
 		// Find places to insert patches
 		int insertIndex;
@@ -939,14 +1128,22 @@ public class WadMergeContext
 			insertIndex = buffer.lastIndexOf("PP_END");
 		}
 		
-		TextureSet textureSet = new TextureSet(pout, tout);
-		WadFile.Adder adder = (buffer instanceof WadFile) ? ((WadFile)buffer).createAdder() : null;
 
 		File[] files;
 		
 		// Sort files first, directories last, alphabetical order.
 		Arrays.sort(files = textureDirectory.listFiles(), DIR_FILESORT);
 
+		// Texture sizes are all read on a worker pool, in the same order.
+		AsyncFactory async = new AsyncFactory(TREE_READ_THREADS);
+		Deque<AsyncFactory.Instance<int[]>> dimensions = new LinkedList<>();
+		for (File f : files)
+		{
+			if (!f.isDirectory())
+				dimensions.add(async.spawn(() -> getTextureDimensions(f)));
+		}
+		
+		buffer.startAdding();
 		try {
 			for (File f : files)
 			{
@@ -959,60 +1156,29 @@ public class WadMergeContext
 				{
 					Response resp;
 					String namenoext = subCharString(Common.getFileNameWithoutExtension(f));
-					if (adder != null)
-					{
-						if ((resp = mergeFileData(adder, symbol, f, namenoext, insertIndex)) != Response.OK)
-							return resp;
-					}
-					else
-					{
-						if ((resp = mergeFileData(buffer, symbol, f, namenoext, insertIndex)) != Response.OK)
-							return resp;
-					}
+					if ((resp = mergeFileData(buffer, symbol, f, namenoext, insertIndex)) != Response.OK)
+						return resp;
+					checkBufferBudget(symbol, buffer);
 					insertIndex++;
 					
 					String textureName = NameUtils.toValidTextureName(namenoext);
 					Texture texture = textureSet.createTexture(textureName);
-					setTextureDimensions(texture, f);
+					int[] size;
+					if ((size = getReadAhead(dimensions.pollFirst())) != null)
+					{
+						texture.setWidth(size[0]);
+						texture.setHeight(size[1]);
+					}
 					texture.createPatch(textureName);
 					verbosef("Add texture `%s`...\n", textureName);
 				}
 			}
 		} finally {
-			Common.close(adder);
-		}
-
-		if (strife)
-			textureSet.export(pout, (CommonTextureList<StrifeTextureList.Texture>)(tout = new StrifeTextureList(128)));
-		else
-			textureSet.export(pout, (CommonTextureList<DoomTextureList.Texture>)(tout = new DoomTextureList(128)));
-
-		textureEntryName = NameUtils.toValidEntryName(textureEntryName);
-
-		if (buffer.contains(textureEntryName))
-		{
-			buffer.deleteEntry(buffer.indexOf(textureEntryName));
-			buffer.addData(textureEntryName, tout);
-			verbosef("Replaced `%s` in `%s`.\n", textureEntryName, symbol);
-		}
-		else
-		{
-			buffer.addData(textureEntryName, tout);
-			verbosef("Added `%s` to `%s`.\n", textureEntryName, symbol);
-		}
-		
-		if (buffer.contains("PNAMES"))
-		{
-			buffer.deleteEntry(buffer.indexOf("PNAMES"));
-			buffer.addData("PNAMES", pout);
-			verbosef("Replaced `PNAMES` in `%s`.\n", symbol);
-		}
-		else
-		{
-			buffer.addData("PNAMES", pout);
-			verbosef("Added `PNAMES` to `%s`.\n", symbol);
+			buffer.finishAdding();
+			async.shutDownNow();
 		}
 
+		placeTextureEntries(buffer, symbol, textureEntryName);
 		return Response.OK;
 	}
 	
@@ -1033,8 +1199,8 @@ public class WadMergeContext
 		if (!swantblsFile.exists() || swantblsFile.isDirectory())
 			return Response.BAD_FILE;
 
-		Wad buffer;
-		if ((buffer = currentWads.get(symbol)) == null)
+		WadMergeBuffer buffer;
+		if ((buffer = currentBuffers.get(symbol)) == null)
 			return Response.BAD_SYMBOL;
 
 		Animated animated;
@@ -1060,82 +1226,277 @@ public class WadMergeContext
 		}
 	}
 
-	private Response setTextureDimensions(Texture t, File f)
+	// Reads the size of a patch file (PNG or Doom Graphic) from its header only.
+	// Returns null if the file could not be read.
+	private static int[] getTextureDimensions(File f)
 	{
+		String key = f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+		int[] out;
+		if ((out = TEXTURE_DIMENSIONS.get(key)) != null)
+			return out;
+
+		// PNG signature, then IHDR length and type, then width and height.
+		byte[] header = new byte[24];
+		int length = 0;
 		try (FileInputStream fis = new FileInputStream(f))
 		{
-			if (Common.getFileExtension(f).toLowerCase().equals("png"))
-			{
-				PNGPicture picture = new PNGPicture();
-				picture.readBytes(fis);
-				t.setWidth(picture.getWidth());
-				t.setHeight(picture.getHeight());
-			}
-			else
-			{
-				// Quick scan Doom Graphic
-				SerialReader sr = new SerialReader(SerialReader.LITTLE_ENDIAN);
-				int x = sr.readUnsignedShort(fis);
-				int y = sr.readUnsignedShort(fis);
-				t.setWidth(x);
-				t.setHeight(y);
-			}
+			int n;
+			while (length < header.length && (n = fis.read(header, length, header.length - length)) > 0)
+				length += n;
 		}
 		catch (IOException e)
 		{
-			return Response.BAD_FILE;
+			return null;
 		}
+
+		if (length >= header.length && Arrays.equals(Arrays.copyOf(header, PNG_SIGNATURE.length), PNG_SIGNATURE))
+		{
+			out = new int[]{
+				((header[16] & 0x0ff) << 24) | ((header[17] & 0x0ff) << 16) | ((header[18] & 0x0ff) << 8) | (header[19] & 0x0ff),
+				((header[20] & 0x0ff) << 24) | ((header[21] & 0x0ff) << 16) | ((header[22] & 0x0ff) << 8) | (header[23] & 0x0ff)
+			};
+		}
+		else if (length >= 4 && !Common.getFileExtension(f).toLowerCase().equals("png"))
+		{
+			// Doom Graphic: little-endian width and height.
+			out = new int[]{
+				(header[0] & 0x0ff) | ((header[1] & 0x0ff) << 8),
+				(header[2] & 0x0ff) | ((header[3] & 0x0ff) << 8)
+			};
+		}
+		else
+		{
+			return null;
+		}
+
+		TEXTURE_DIMENSIONS.put(key, out);
+		return out;
+	}
+	
+	// Checks if a symbol has a symbol (WAD or plan).
+	private boolean symbolExists(String symbol)
+	{
+		return currentBuffers.containsKey(symbol);
+	}
+	
+	// Moves a plan's entry data in memory to its temporary file if it is over the budget.
+	// Temporary files are deleted when this context is closed, since other plans can share their entries.
+	private void checkBufferBudget(String symbol, WadMergeBuffer buffer) throws IOException
+	{
+		long size;
+		if (!hasBufferBudget() || !(buffer instanceof WadMergePlan) || (size = ((WadMergePlan)buffer).getMemoryLength()) <= bufferBudget)
+			return;
 		
-		return Response.OK;
+		File spillFile = ((WadMergePlan)buffer).spill();
+		spillFiles.add(spillFile);
+		verbosef("Moved %d bytes of buffer `%s` to temporary file `%s`.\n", size, symbol, spillFile.getPath());
 	}
 	
-	// Merge map into buffer, with rename.
-	private Response mergeMap(Wad targetBuffer, String bufferName, String newHeader, Wad source, String sourceName, String header) throws IOException
+	
+	// Writes a plan to a file. Returns false if it was not written because the file is up to date.
+	private boolean writePlan(WadMergePlan plan, File outFile) throws IOException
 	{
-		int count = MapUtils.getMapEntryCount(source, header);
-		WadEntry[] entries = source.mapEntries(source.indexOf(header) + 1, count - 1);
-		if (entries.length == 0)
-			return Response.BAD_MAP;
+		if (incremental && plan.isUpToDate(outFile, deduplicate))
+			return false;
+		detachPlans(outFile);
+		int shared = plan.writeTo(outFile, deduplicate, incremental);
+		if (shared > 0)
+			verbosef("Shared data between %d duplicate entries in `%s`.\n", shared, outFile.getPath());
+		return true;
+	}
+	
+	// Writes a buffer to a file. Returns false if it was not written because the file is up to date.
+	private boolean write(WadMergeBuffer buffer, File outFile) throws IOException
+	{
+		if (deduplicate || incremental)
+			return writePlan(buffer.toPlan(), outFile);
+		detachPlans(outFile);
+		buffer.writeTo(outFile);
+		return true;
+	}
+	
+	// Writes a buffer to its target file if it has changes that were not written yet.
+	private void writeModified(WadMergeBuffer buffer) throws IOException
+	{
+		File targetFile;
+		if ((targetFile = buffer.getTargetFile()) != null && buffer.isModified())
+			logf(write(buffer, targetFile) ? "Wrote file `%s`.\n" : "File `%s` is up to date.\n", targetFile.getPath());
+	}
+	
+	// Makes all plans stop reading from a file that is about to be overwritten.
+	private void detachPlans(File file) throws IOException
+	{
+		for (WadMergeBuffer buffer : currentBuffers.values())
+			buffer.detach(file);
+	}
+	
+	// Gets where to insert entries in a namespace, adding the namespace markers if needed.
+	private int getNamespaceInsertIndex(WadMergeBuffer buffer, String symbol, String namespace, boolean amendNamespace) throws IOException
+	{
+		String startEntry = namespace.toUpperCase() + "_START";
+		String endEntry = namespace.toUpperCase() + "_END";
+
+		if (!amendNamespace)
+			return buffer.getEntryCount();
 		
-		targetBuffer.addData(newHeader, source.getData(header));
-		mergeBulkData(targetBuffer, bufferName, targetBuffer.getEntryCount(), source, sourceName, entries);
-		return Response.OK;
+		int idx;
+		if ((idx = buffer.indexOf(endEntry)) >= 0)
+		{
+			verbosef("Found `%s` in symbol `%s` for insertion point.\n", endEntry, symbol);
+			return idx;
+		}
+		
+		addMarker(symbol, startEntry);
+		addMarker(symbol, endEntry);
+		return buffer.lastIndexOf(endEntry);
+	}
+	
+	// Counts a map's entries in a buffer, header included. Map entries are found by name only.
+	private static int getMapEntryCount(WadMergeBuffer buffer, int headerIndex, String header) throws IOException
+	{
+		WadBuffer names = new WadBuffer();
+		for (int i = headerIndex; i < buffer.getEntryCount(); i++)
+			names.addMarker(buffer.getEntryName(i));
+		return MapUtils.getMapEntryCount(names, header);
+	}
+	
+	// Gets the batched texture set for a symbol's texture entry, reading the current entries on first use.
+	private TextureSet getPendingTextureSet(WadMergeBuffer buffer, String symbol, String textureEntryName, boolean strife) throws IOException
+	{
+		WadMergeTextures textures;
+		if ((textures = pendingTextures.get(symbol)) == null)
+		{
+			PatchNames pout;
+			if ((pout = buffer.getDataAs("PNAMES", PatchNames.class)) != null)
+				verbosef("Found existing `PNAMES`.\n");
+			else
+				pout = new PatchNames();
+			pendingTextures.put(symbol, textures = new WadMergeTextures(pout));
+		}
+		
+		TextureSet textureSet;
+		if ((textureSet = textures.getTextureSet(textureEntryName)) != null)
+			return textureSet;
+		
+		CommonTextureList<?> tout;
+		if (buffer.contains(textureEntryName))
+		{
+			if (strife)
+				tout = buffer.getDataAs(textureEntryName, StrifeTextureList.class);
+			else
+				tout = buffer.getDataAs(textureEntryName, DoomTextureList.class);
+			verbosef("Found existing `%s`.\n", textureEntryName);
+		}
+		else
+		{
+			tout = strife ? new StrifeTextureList(128) : new DoomTextureList(128);
+		}
+		return textures.addTextureSet(textureEntryName, strife, tout);
+	}
+	
+	// Moves a texture entry and PNAMES to the end of a buffer, where a texture merge puts them. 
+	// Their data is written when the batched texture merges are flushed.
+	private void placeTextureEntries(WadMergeBuffer buffer, String symbol, String textureEntryName) throws IOException
+	{
+		replaceEntry(buffer, symbol, textureEntryName, NO_DATA);
+		replaceEntry(buffer, symbol, "PNAMES", NO_DATA);
+	}
+	
+	// Replaces the data of the last entry with a name in a buffer, or adds it if it does not exist.
+	private static void setLastEntryData(WadMergeBuffer buffer, String entryName, byte[] data) throws IOException
+	{
+		int index;
+		if ((index = buffer.lastIndexOf(entryName)) >= 0)
+			buffer.replaceData(index, data);
+		else
+			buffer.addData(entryName, data);
+	}
+	
+	// Adds an entry to the end of a buffer, removing the first entry with the same name.
+	private void replaceEntry(WadMergeBuffer buffer, String symbol, String entryName, byte[] data) throws IOException
+	{
+		if (buffer.contains(entryName))
+		{
+			buffer.deleteEntry(buffer.indexOf(entryName));
+			buffer.addData(entryName, data);
+			verbosef("Replaced `%s` in `%s`.\n", entryName, symbol);
+		}
+		else
+		{
+			buffer.addData(entryName, data);
+			verbosef("Added `%s` to `%s`.\n", entryName, symbol);
+		}
 	}
 
-	private Response mergeBulkData(Wad targetWad, String targetSymbol, int targetIndex, Wad sourceWad, String sourceName, WadEntry[] entries) throws IOException
+	// Entries from a buffer. Plans share the data sources of entries from other plans.
+	private Response mergeBulkData(WadMergeBuffer targetBuffer, String targetSymbol, int targetIndex, WadMergeBuffer sourceBuffer, String sourceName, int sourceIndex, int count) throws IOException
 	{
-		WadFile.Adder adder = (targetWad instanceof WadFile) ? ((WadFile)targetWad).createAdder() : null;
+		targetBuffer.startAdding();
+		try {
+			for (int i = sourceIndex; i < sourceIndex + count; i++)
+			{
+				String entryName = sourceBuffer.getEntryName(i);
+				targetBuffer.addEntryAt(targetIndex, entryName, sourceBuffer, i);
+				verbosef("Added `%s` to `%s` (from `%s`).\n", entryName, targetSymbol, sourceName);
+				checkBufferBudget(targetSymbol, targetBuffer);
+				targetIndex++;
+			}
+		} finally {
+			targetBuffer.finishAdding();
+		}
+		return Response.OK;
+	}
 
+	// Entries from a WAD file. Plans read them from the file when they are written.
+	private Response mergeBulkData(WadMergeBuffer targetBuffer, String targetSymbol, int targetIndex, WadFile sourceWad, String sourceName, WadEntry[] entries) throws IOException
+	{
+		targetBuffer.startAdding();
 		try {
 			for (WadEntry e : entries)
 			{
-				if (adder != null)
-					adder.addDataAt(targetIndex, e.getName(), sourceWad.getData(e));
-				else
-					targetWad.addDataAt(targetIndex, e.getName(), sourceWad.getData(e));
+				targetBuffer.addWadEntryAt(targetIndex, e.getName(), sourceWad, e);
 				verbosef("Added `%s` to `%s` (from `%s`).\n", e.getName(), targetSymbol, sourceName);
+				checkBufferBudget(targetSymbol, targetBuffer);
 				targetIndex++;
 			}
 		} finally {
-			Common.close(adder);
+			targetBuffer.finishAdding();
 		}
 		return Response.OK;
 	}
 
-	private Response mergeFileData(Wad targetWad, String targetSymbol, File inFile, String entryName, int index) throws IOException
+	private Response mergeFileData(WadMergeBuffer targetBuffer, String targetSymbol, File inFile, String entryName, int index) throws IOException
 	{
 		entryName = NameUtils.toValidEntryName(entryName);
-		targetWad.addDataAt(index, entryName, inFile);
+		targetBuffer.addFileAt(index, entryName, inFile);
 		verbosef("Added `%s` to `%s` (from `%s`).\n", entryName, targetSymbol, inFile.getPath());
 		return Response.OK;
 	}
-
-	private Response mergeFileData(WadFile.Adder targetAdder, String targetSymbol, File inFile, String entryName, int index) throws IOException
+	
+	private enum TreeEntryType
 	{
-		entryName = NameUtils.toValidEntryName(entryName);
-		targetAdder.addDataAt(index, entryName, inFile);
-		verbosef("Added `%s` to `%s` (from `%s`).\n", entryName, targetSymbol, inFile.getPath());
-		return Response.OK;
+		DIRECTORY_START,
+		DIRECTORY_END,
+		MARKER,
+		FILE,
+		WAD;
+	}
+	
+	/**
+	 * Something to add in a directory tree merge.
+	 */
+	private static class TreeEntry
+	{
+		private TreeEntryType type;
+		private File file;
+		private String name;
+		
+		private TreeEntry(TreeEntryType type, File file, String name)
+		{
+			this.type = type;
+			this.file = file;
+			this.name = name;
+		}
 	}
 	
 }
@@ -0,0 +1,981 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.mtrop.doom.Wad;
+import net.mtrop.doom.WadEntry;
+import net.mtrop.doom.WadFile;
+import net.mtrop.doom.object.BinaryObject;
+import net.mtrop.doom.tools.common.Common;
+import net.mtrop.doom.util.NameUtils;
+
+/**
+ * A WAD that is assembled in one pass when it is written.
+ * Its entries only record where their data comes from (a file, a region of a WAD file, or data in memory).
+ * None of the data is read until the WAD is written, and the directory is written once, at the end.
+ * Data that is in memory can be moved to a temporary file (see {@link #spill()}).
+ * All operations are synchronized, so plans can be used from more than one thread.
+ * @author Matthew Tropiano
+ */
+class WadMergePlan implements WadMergeBuffer
+{
+	private static final Charset ASCII = Charset.forName("ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_LENGTH = 12;
+	private static final int ENTRY_LENGTH = 16;
+
+	/** The file that this plan is written to on finish, if any. */
+	private File targetFile;
+	/** If true, this is an IWAD. */
+	private boolean iwad;
+	/** The planned entries. */
+	private List<Entry> entries;
+	/** If true, this has changed since it was last written to its target file. */
+	private boolean modified;
+	/** The length of the entry data in memory, in bytes. */
+	private long memoryLength;
+	/** The temporary file that data in memory is moved to, if any. */
+	private File spillFile;
+	/** The open end of the temporary file. */
+	private OutputStream spillOut;
+	/** The length of the temporary file. */
+	private long spillLength;
+
+	/**
+	 * Creates a new plan.
+	 * @param targetFile the file that this is written to when it is finished, or null if none.
+	 * @param iwad if true, this is written as an IWAD.
+	 */
+	WadMergePlan(File targetFile, boolean iwad)
+	{
+		this.targetFile = targetFile;
+		this.iwad = iwad;
+		this.entries = new ArrayList<>(256);
+		this.modified = true;
+		this.memoryLength = 0L;
+		this.spillFile = null;
+		this.spillOut = null;
+		this.spillLength = 0L;
+	}
+
+	/**
+	 * @return the file that this is written to when it is finished, or null if none.
+	 */
+	@Override
+	public File getTargetFile()
+	{
+		return targetFile;
+	}
+
+	/**
+	 * @return true if this is an IWAD.
+	 */
+	@Override
+	public synchronized boolean isIWAD()
+	{
+		return iwad;
+	}
+
+	/**
+	 * @return true if this has changed since it was last written to its target file.
+	 */
+	@Override
+	public synchronized boolean isModified()
+	{
+		return modified;
+	}
+
+	@Override
+	public boolean isPlanned()
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String getEntryName(int index)
+	{
+		return entries.get(index).name;
+	}
+
+	@Override
+	public synchronized int indexOf(String name)
+	{
+		for (int i = 0; i < entries.size(); i++)
+			if (entries.get(i).name.equals(name))
+				return i;
+		return -1;
+	}
+
+	@Override
+	public synchronized int lastIndexOf(String name)
+	{
+		for (int i = entries.size() - 1; i >= 0; i--)
+			if (entries.get(i).name.equals(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Reads an entry's data.
+	 * @param index the entry index.
+	 * @return the data.
+	 * @throws IOException if the data could not be read from its source.
+	 */
+	@Override
+	public synchronized byte[] getData(int index) throws IOException
+	{
+		return entries.get(index).source.getData();
+	}
+
+	/**
+	 * Reads the first entry with a name as an object.
+	 * @param <BO> the object type.
+	 * @param name the entry name.
+	 * @param type the object class.
+	 * @return the object, or null if no such entry.
+	 * @throws IOException if the data could not be read from its source.
+	 */
+	@Override
+	public synchronized <BO extends BinaryObject> BO getDataAs(String name, Class<BO> type) throws IOException
+	{
+		int index;
+		if ((index = indexOf(name)) < 0)
+			return null;
+		return BinaryObject.create(type, getData(index));
+	}
+
+	@Override
+	public synchronized void addMarker(String name)
+	{
+		addSourceAt(entries.size(), name, new DataSource(NO_DATA));
+	}
+
+	@Override
+	public synchronized void addData(String name, byte[] data)
+	{
+		addDataAt(entries.size(), name, data);
+	}
+
+	@Override
+	public synchronized void addData(String name, BinaryObject object) throws IOException
+	{
+		addDataAt(entries.size(), name, object.toBytes());
+	}
+
+	@Override
+	public synchronized void addDataAt(int index, String name, byte[] data)
+	{
+		addSourceAt(index, name, new DataSource(data));
+	}
+
+	/**
+	 * Adds an entry whose data is the contents of a file, read when this is written.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param file the file.
+	 */
+	@Override
+	public synchronized void addFileAt(int index, String name, File file)
+	{
+		addSourceAt(index, name, new FileSource(file.getAbsoluteFile()));
+	}
+
+	/**
+	 * Adds an entry from a WAD file, whose data is read from that file when this is written.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param wad the WAD file that the entry is from.
+	 * @param wadEntry the entry in the WAD file.
+	 */
+	@Override
+	public synchronized void addWadEntryAt(int index, String name, WadFile wad, WadEntry wadEntry)
+	{
+		addSourceAt(index, name, new WadSource(new File(wad.getFilePath()).getAbsoluteFile(), wadEntry.getOffset(), wadEntry.getSize()));
+	}
+
+	/**
+	 * Adds an entry from another buffer.
+	 * If the buffer is a plan, the data source is shared, and nothing is read.
+	 * @param index the index to add the entry at.
+	 * @param name the entry name.
+	 * @param source the source buffer.
+	 * @param sourceIndex the index of the entry in the source buffer.
+	 * @throws IOException if the data could not be read.
+	 */
+	@Override
+	public synchronized void addEntryAt(int index, String name, WadMergeBuffer source, int sourceIndex) throws IOException
+	{
+		if (source instanceof WadMergePlan)
+			addSourceAt(index, name, ((WadMergePlan)source).getSource(sourceIndex));
+		else
+			addSourceAt(index, name, new DataSource(source.getData(sourceIndex)));
+	}
+
+	/**
+	 * Adds all of the entries of a WAD to the end of this plan.
+	 * Entries from a WAD file are read from that file when this is written. 
+	 * Entries from any other WAD are read now.
+	 * Entry names are kept as they are, as they are when a WAD is read.
+	 * @param wad the source WAD.
+	 * @throws IOException if the data could not be read.
+	 */
+	synchronized void addWad(Wad wad) throws IOException
+	{
+		File wadFile = wad instanceof WadFile ? new File(((WadFile)wad).getFilePath()).getAbsoluteFile() : null;
+		for (WadEntry entry : wad)
+		{
+			if (wadFile != null)
+				putSourceAt(entries.size(), entry.getName(), new WadSource(wadFile, entry.getOffset(), entry.getSize()));
+			else
+				putSourceAt(entries.size(), entry.getName(), new DataSource(wad.getData(entry)));
+		}
+	}
+
+	/**
+	 * Replaces an entry's data.
+	 * @param index the entry index.
+	 * @param data the new data.
+	 */
+	@Override
+	public synchronized void replaceData(int index, byte[] data)
+	{
+		setSource(entries.get(index), new DataSource(data));
+		modified = true;
+	}
+
+	@Override
+	public synchronized void deleteEntry(int index)
+	{
+		memoryLength -= entries.remove(index).source.getMemoryLength();
+		modified = true;
+	}
+
+	/**
+	 * @return the length of the entry data that is in memory, in bytes.
+	 */
+	synchronized long getMemoryLength()
+	{
+		return memoryLength;
+	}
+
+	/**
+	 * Moves all of the entry data that is in memory to the end of a temporary file, 
+	 * which the entries then read their data from, like entries from WAD files. 
+	 * The same temporary file is used for every move, and is not deleted by this plan,
+	 * since other plans can share its entries.
+	 * @return the temporary file.
+	 * @throws IOException if the data could not be written.
+	 */
+	synchronized File spill() throws IOException
+	{
+		if (spillOut == null)
+		{
+			spillFile = File.createTempFile("wadmerge", ".tmp");
+			spillFile.deleteOnExit();
+			spillOut = new BufferedOutputStream(new FileOutputStream(spillFile, true), 65536);
+		}
+
+		// Data shared between entries is only written once.
+		Map<Source, Source> moved = new IdentityHashMap<>();
+		for (Entry e : entries)
+		{
+			if (e.source.getMemoryLength() == 0L)
+				continue;
+
+			Source source;
+			if ((source = moved.get(e.source)) == null)
+			{
+				byte[] data = e.source.getData();
+				spillOut.write(data);
+				moved.put(e.source, source = new SpillSource(spillFile, spillLength, data.length));
+				spillLength += data.length;
+			}
+			e.source = source;
+		}
+		spillOut.flush();
+		memoryLength = 0L;
+		return spillFile;
+	}
+
+	private synchronized Source getSource(int index)
+	{
+		return entries.get(index).source;
+	}
+
+	// Rejects invalid names, like WadBuffer and WadFile do.
+	private void addSourceAt(int index, String name, Source source)
+	{
+		NameUtils.checkValidEntryName(name);
+		putSourceAt(index, name, source);
+	}
+
+	private void putSourceAt(int index, String name, Source source)
+	{
+		entries.add(index, new Entry(name, source));
+		memoryLength += source.getMemoryLength();
+		modified = true;
+	}
+
+	private void setSource(Entry entry, Source source)
+	{
+		memoryLength += source.getMemoryLength() - entry.source.getMemoryLength();
+		entry.source = source;
+	}
+
+	/**
+	 * Reads the data of every entry that comes from a file into memory, so that the file can be safely overwritten.
+	 * @param file the file.
+	 * @throws IOException if the data could not be read.
+	 */
+	@Override
+	public synchronized void detach(File file) throws IOException
+	{
+		file = file.getAbsoluteFile();
+		for (Entry e : entries)
+			if (file.equals(e.source.getFile()))
+				setSource(e, new DataSource(e.source.getData()));
+	}
+
+	@Override
+	public WadMergePlan toPlan()
+	{
+		return this;
+	}
+
+	@Override
+	public void writeTo(File outFile) throws IOException
+	{
+		writeTo(outFile, false, false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (spillOut != null)
+			spillOut.close();
+		spillOut = null;
+	}
+
+	/**
+	 * Gets the manifest file for an output file, written in incremental mode.
+	 * @param outFile the output file.
+	 * @return the manifest file.
+	 */
+	static File getManifestFile(File outFile)
+	{
+		return new File(outFile.getPath() + ".manifest");
+	}
+
+	/**
+	 * Checks if an output file written in incremental mode already has the same
+	 * entries from the same unchanged sources that this plan has, in the same order.
+	 * If so, it does not need to be written again.
+	 * @param outFile the output file.
+	 * @param deduplicate if true, the output file must have been written with deduplication.
+	 * @return true if the output file is up to date, false if not.
+	 * @throws IOException if the data in memory could not be digested.
+	 */
+	synchronized boolean isUpToDate(File outFile, boolean deduplicate) throws IOException
+	{
+		Manifest previous;
+		if ((previous = Manifest.read(getManifestFile(outFile), outFile)) == null)
+			return false;
+		if (!previous.options.equals(Manifest.getOptions(iwad, deduplicate)) || previous.names.size() != entries.size())
+			return false;
+		for (int i = 0; i < entries.size(); i++)
+		{
+			Entry entry = entries.get(i);
+			if (!entry.name.equals(previous.names.get(i)) || !entry.source.getKey().equals(previous.keys.get(i)))
+				return false;
+		}
+		if (targetFile != null && targetFile.getAbsoluteFile().equals(outFile.getAbsoluteFile()))
+			modified = false;
+		return true;
+	}
+
+	/**
+	 * Writes this plan out as a WAD file.
+	 * The WAD is written to a temporary file first, which then replaces the output file,
+	 * so a failed write does not destroy an existing file.
+	 * If the output file is one of this plan's sources, call {@link #detach(File)} first.
+	 * <p>If deduplicate is true, the data of every entry that has the same length as another 
+	 * entry is digested, and entries with the same data share one copy of it in the output.
+	 * Vanilla WAD directories allow more than one entry to point at the same data.
+	 * <p>If incremental is true, a manifest of where each entry's data came from is written next to
+	 * the output file (see {@link #getManifestFile(File)}). On the next incremental write, the data of each 
+	 * entry whose source has not changed (same file path, length, and modified time, or same data in memory) 
+	 * is copied from the previous output instead of its source. A manifest that does not match its 
+	 * output file, or cannot be read, is ignored.
+	 * @param outFile the output file.
+	 * @param deduplicate if true, identical entry data is only written once.
+	 * @param incremental if true, reuse data from the previous output, and write a manifest.
+	 * @return the amount of entries that share data written for an earlier entry.
+	 * @throws IOException if a read or write error occurs.
+	 */
+	synchronized int writeTo(File outFile, boolean deduplicate, boolean incremental) throws IOException
+	{
+		int out;
+		File manifestFile = getManifestFile(outFile);
+		Manifest previous = null;
+		Manifest next = null;
+		if (incremental)
+		{
+			previous = Manifest.read(manifestFile, outFile);
+			next = new Manifest(Manifest.getOptions(iwad, deduplicate));
+		}
+		manifestFile.delete();
+
+		File parent = outFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile("wadmerge", ".tmp", parent);
+		try
+		{
+			try (Writer writer = new Writer(tempFile))
+			{
+				out = writer.write(iwad, entries, deduplicate, previous, outFile.getAbsoluteFile(), next);
+			}
+			Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+
+		if (next != null)
+			next.write(manifestFile, outFile);
+		if (targetFile != null && targetFile.getAbsoluteFile().equals(outFile.getAbsoluteFile()))
+			modified = false;
+		return out;
+	}
+
+	/**
+	 * A single planned entry.
+	 */
+	private static class Entry
+	{
+		private String name;
+		private Source source;
+
+		private Entry(String name, Source source)
+		{
+			this.name = name;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Where an entry's data comes from.
+	 */
+	private static abstract class Source
+	{
+		/**
+		 * @return the file that the data is read from, or null if in memory.
+		 */
+		abstract File getFile();
+
+		/**
+		 * @return the data.
+		 * @throws IOException if the data could not be read.
+		 */
+		abstract byte[] getData() throws IOException;
+
+		/**
+		 * @return the length of the data, in bytes.
+		 */
+		abstract long getLength();
+
+		/**
+		 * @return the length of the data that is held in memory, in bytes.
+		 */
+		long getMemoryLength()
+		{
+			return 0L;
+		}
+
+		/**
+		 * Gets a key that is the same for the same source with the same data.
+		 * Used for finding unchanged data in incremental mode.
+		 * @return the key.
+		 * @throws IOException if the data could not be digested.
+		 */
+		abstract String getKey() throws IOException;
+
+		/**
+		 * Reads the data while writing, using the writer's open files.
+		 * @param writer the writer that is writing.
+		 * @return the data.
+		 * @throws IOException if the data could not be read.
+		 */
+		byte[] getData(Writer writer) throws IOException
+		{
+			return getData();
+		}
+
+		/**
+		 * Writes the data.
+		 * @param writer the writer to write to.
+		 * @return the amount of bytes written.
+		 * @throws IOException if the data could not be read or written.
+		 */
+		abstract long writeTo(Writer writer) throws IOException;
+	}
+
+	/**
+	 * Data in memory.
+	 */
+	private static class DataSource extends Source
+	{
+		private byte[] data;
+
+		private DataSource(byte[] data)
+		{
+			this.data = data;
+		}
+
+		@Override
+		File getFile()
+		{
+			return null;
+		}
+
+		@Override
+		byte[] getData()
+		{
+			return data;
+		}
+
+		@Override
+		long getLength()
+		{
+			return data.length;
+		}
+
+		@Override
+		long getMemoryLength()
+		{
+			return data.length;
+		}
+
+		@Override
+		String getKey()
+		{
+			return "D " + Common.getDigest(data);
+		}
+
+		@Override
+		long writeTo(Writer writer) throws IOException
+		{
+			writer.out.write(data);
+			return data.length;
+		}
+	}
+
+	/**
+	 * The full contents of a file.
+	 */
+	private static class FileSource extends Source
+	{
+		private File file;
+
+		private FileSource(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		File getFile()
+		{
+			return file;
+		}
+
+		@Override
+		byte[] getData() throws IOException
+		{
+			return Files.readAllBytes(file.toPath());
+		}
+
+		@Override
+		long getLength()
+		{
+			return file.length();
+		}
+
+		@Override
+		String getKey()
+		{
+			return "F " + file.length() + " " + file.lastModified() + " " + file.getPath();
+		}
+
+		@Override
+		long writeTo(Writer writer) throws IOException
+		{
+			FileChannel in = writer.open(file);
+			return writer.transfer(in, 0L, in.size());
+		}
+	}
+
+	/**
+	 * An entry's data in a WAD file.
+	 */
+	private static class WadSource extends Source
+	{
+		private File file;
+		private long offset;
+		private int length;
+
+		private WadSource(File file, long offset, int length)
+		{
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		File getFile()
+		{
+			return file;
+		}
+
+		@Override
+		byte[] getData() throws IOException
+		{
+			byte[] out = new byte[length];
+			try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+			{
+				in.seek(offset);
+				in.readFully(out);
+			}
+			return out;
+		}
+
+		@Override
+		long getLength()
+		{
+			return length;
+		}
+
+		@Override
+		String getKey() throws IOException
+		{
+			return "W " + file.length() + " " + file.lastModified() + " " + offset + " " + length + " " + file.getPath();
+		}
+
+		@Override
+		byte[] getData(Writer writer) throws IOException
+		{
+			return writer.read(writer.open(file), offset, length);
+		}
+
+		@Override
+		long writeTo(Writer writer) throws IOException
+		{
+			return writer.transfer(writer.open(file), offset, length);
+		}
+	}
+
+	/**
+	 * Data that was in memory, moved to a temporary file.
+	 * Its key is the same as it was in memory, so incremental writes still find it unchanged.
+	 */
+	private static class SpillSource extends WadSource
+	{
+		private SpillSource(File file, long offset, int length)
+		{
+			super(file, offset, length);
+		}
+
+		@Override
+		String getKey() throws IOException
+		{
+			return "D " + Common.getDigest(getData());
+		}
+	}
+
+	/**
+	 * A record of the sources of each entry in a written WAD, and where their data was written.
+	 * The output file's length and modified time are recorded as well, so that a manifest 
+	 * is ignored if its output file was changed by something else.
+	 */
+	private static class Manifest
+	{
+		private static final String HEADER = "# WadMerge manifest 1";
+
+		private String options;
+		private List<String> names;
+		private List<String> keys;
+		private Map<String, long[]> regions;
+
+		private Manifest(String options)
+		{
+			this.options = options;
+			this.names = new ArrayList<>(256);
+			this.keys = new ArrayList<>(256);
+			this.regions = new HashMap<>(256);
+		}
+
+		// Gets the options line for a manifest - a change in these means a full rewrite.
+		private static String getOptions(boolean iwad, boolean deduplicate)
+		{
+			return (iwad ? "IWAD" : "PWAD") + (deduplicate ? " dedup" : "");
+		}
+
+		private void add(String name, String key, long offset, long length)
+		{
+			names.add(name);
+			keys.add(key);
+			regions.putIfAbsent(key, new long[]{offset, length});
+		}
+
+		/**
+		 * Reads a manifest.
+		 * @param manifestFile the manifest file.
+		 * @param outFile the output file that the manifest is for.
+		 * @return the manifest, or null if there is none, it can't be read, or it does not match the output file.
+		 */
+		private static Manifest read(File manifestFile, File outFile)
+		{
+			if (!manifestFile.isFile() || !outFile.isFile())
+				return null;
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8)))
+			{
+				String line;
+				if (!HEADER.equals(reader.readLine()))
+					return null;
+				if ((line = reader.readLine()) == null || !line.equals("output " + outFile.length() + " " + outFile.lastModified()))
+					return null;
+				if ((line = reader.readLine()) == null || !line.startsWith("options "))
+					return null;
+
+				Manifest out = new Manifest(line.substring(8));
+				while ((line = reader.readLine()) != null)
+				{
+					// entry [offset] [length] [name] [key]
+					String[] tokens = line.split(" ", 5);
+					if (tokens.length < 5 || !tokens[0].equals("entry"))
+						return null;
+					out.add(tokens[3], tokens[4], Long.parseLong(tokens[1]), Long.parseLong(tokens[2]));
+				}
+				return out;
+			}
+			catch (IOException | NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+		/**
+		 * Writes this manifest.
+		 * @param manifestFile the manifest file.
+		 * @param outFile the output file that the manifest is for (already written).
+		 * @throws IOException if the manifest could not be written.
+		 */
+		private void write(File manifestFile, File outFile) throws IOException
+		{
+			try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), UTF8)))
+			{
+				writer.append(HEADER).append('\n');
+				writer.append("output ").append(String.valueOf(outFile.length())).append(' ').append(String.valueOf(outFile.lastModified())).append('\n');
+				writer.append("options ").append(options).append('\n');
+				for (int i = 0; i < names.size(); i++)
+				{
+					long[] region = regions.get(keys.get(i));
+					writer.append("entry ")
+						.append(String.valueOf(region[0])).append(' ')
+						.append(String.valueOf(region[1])).append(' ')
+						.append(names.get(i)).append(' ')
+						.append(keys.get(i)).append('\n');
+				}
+				if (writer.checkError())
+					throw new IOException("Could not write manifest file: " + manifestFile.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Writes a planned WAD, keeping source files open until the write is done.
+	 * Data from files is transferred channel-to-channel, so that the OS can copy it 
+	 * without it passing through the heap.
+	 */
+	private static class Writer implements AutoCloseable
+	{
+		private RandomAccessFile out;
+		private FileChannel outChannel;
+		private Map<File, FileChannel> sourceFiles;
+
+		private Writer(File outFile) throws IOException
+		{
+			this.out = new RandomAccessFile(outFile, "rw");
+			this.outChannel = out.getChannel();
+			this.sourceFiles = new HashMap<>();
+			out.setLength(0L);
+		}
+
+		private FileChannel open(File file) throws IOException
+		{
+			FileChannel in;
+			if ((in = sourceFiles.get(file)) == null)
+				sourceFiles.put(file, in = FileChannel.open(file.toPath(), StandardOpenOption.READ));
+			return in;
+		}
+
+		// Transfers a region of a file to the end of the output (which shares its position with the channel).
+		private long transfer(FileChannel in, long offset, long length) throws IOException
+		{
+			long done = 0L;
+			while (done < length)
+			{
+				long count = in.transferTo(offset + done, length - done, outChannel);
+				if (count <= 0L)
+					throw new IOException("Unexpected end of data.");
+				done += count;
+			}
+			return length;
+		}
+
+		// Reads a region of a file.
+		private byte[] read(FileChannel in, long offset, int length) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining())
+			{
+				if (in.read(buffer, offset + buffer.position()) < 0)
+					throw new IOException("Unexpected end of data.");
+			}
+			return buffer.array();
+		}
+
+		// Writes the content in order, then the directory, then the header.
+		// Data for entries in the previous manifest (if any) is read from the previous output file.
+		// Each entry is recorded in the next manifest (if any).
+		// Returns the amount of entries that point at data written for an earlier entry.
+		private int write(boolean iwad, List<Entry> entries, boolean deduplicate, Manifest previous, File previousFile, Manifest next) throws IOException
+		{
+			out.write(new byte[HEADER_LENGTH]);
+
+			// Only data with a length that occurs more than once can have a duplicate, so only that gets digested.
+			Map<Long, Integer> lengthCounts = new HashMap<>();
+			if (deduplicate)
+			{
+				for (Entry entry : entries)
+					lengthCounts.merge(entry.source.getLength(), 1, Integer::sum);
+			}
+			Map<Source, Long> sourceOffsets = new IdentityHashMap<>();
+			Map<String, Long> digestOffsets = new HashMap<>();
+			int shared = 0;
+
+			byte[] directory = new byte[entries.size() * ENTRY_LENGTH];
+			long position = HEADER_LENGTH;
+			for (int i = 0; i < entries.size(); i++)
+			{
+				Entry entry = entries.get(i);
+				Source source = entry.source;
+				String key = next != null ? source.getKey() : null;
+				long[] region;
+				if (previous != null && (region = previous.regions.get(key)) != null)
+					source = new WadSource(previousFile, region[0], (int)region[1]);
+
+				long offset = position;
+				long length;
+				Long earlier;
+				if (!deduplicate || source.getLength() == 0L || lengthCounts.get(entry.source.getLength()) < 2)
+				{
+					length = source.writeTo(this);
+				}
+				else if ((earlier = sourceOffsets.get(entry.source)) != null)
+				{
+					offset = earlier;
+					length = source.getLength();
+					shared++;
+				}
+				else
+				{
+					byte[] data = source.getData(this);
+					String digest = Common.getDigest(data);
+					length = data.length;
+					if ((earlier = digestOffsets.get(digest)) != null)
+					{
+						offset = earlier;
+						shared++;
+					}
+					else
+					{
+						out.write(data);
+						digestOffsets.put(digest, offset);
+					}
+					sourceOffsets.put(entry.source, offset);
+				}
+				if (next != null)
+					next.add(entry.name, key, offset, length);
+
+				if (offset == position)
+					position += length;
+				if (position > Integer.MAX_VALUE)
+					throw new IOException("WAD is too large - can't be larger than 2 GB.");
+
+				int d = i * ENTRY_LENGTH;
+				putInt(directory, d, (int)offset);
+				putInt(directory, d + 4, (int)length);
+				byte[] name = entry.name.getBytes(ASCII);
+				System.arraycopy(name, 0, directory, d + 8, Math.min(name.length, 8));
+			}
+			out.write(directory);
+
+			byte[] header = new byte[HEADER_LENGTH];
+			System.arraycopy((iwad ? "IWAD" : "PWAD").getBytes(ASCII), 0, header, 0, 4);
+			putInt(header, 4, entries.size());
+			putInt(header, 8, (int)position);
+			out.seek(0L);
+			out.write(header);
+			return shared;
+		}
+
+		private static void putInt(byte[] b, int offset, int value)
+		{
+			b[offset] = (byte)(value & 0x0ff);
+			b[offset + 1] = (byte)((value >> 8) & 0x0ff);
+			b[offset + 2] = (byte)((value >> 16) & 0x0ff);
+			b[offset + 3] = (byte)((value >> 24) & 0x0ff);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			for (FileChannel in : sourceFiles.values())
+				Common.close(in);
+			out.close();
+		}
+	}
+
+}
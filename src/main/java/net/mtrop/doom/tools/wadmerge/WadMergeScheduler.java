@@ -0,0 +1,452 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.mtrop.doom.tools.struct.AsyncFactory;
+import net.mtrop.doom.tools.struct.TokenScanner;
+
+/**
+ * Runs a WadMerge script on a thread pool, so that commands that work on unrelated
+ * symbols and files run at the same time.
+ * <p>The whole script is compiled first, and each command is added to a chain of commands that
+ * run in script order on one thread. A command joins the chain that last used the same symbols
+ * and files, or starts a new chain if it used none of them. A command that reads a directory uses
+ * every file in it, as far as writes to files are concerned. If a command needs the results of
+ * more than one chain (like a MERGE from one buffer into another, or a SAVE to a file that others read),
+ * it starts a new chain that waits for all of them to finish first. Commands that change the
+ * state of the whole script (like FILECHARSUB) wait for everything before them, and everything
+ * after them waits for them.
+ * <p>The output of each chain is collected and printed in the order that the chains were started.
+ * <p>If a command fails, no more commands are started. Unlike a script that runs in order, commands after
+ * the failed one that do not depend on it may have already run, and may have written their files.
+ * @author Matthew Tropiano
+ */
+final class WadMergeScheduler
+{
+	private WadMergeScheduler() {}
+
+	/**
+	 * The symbols and files that a command reads or changes.
+	 */
+	static class Access
+	{
+		private Set<String> reads;
+		private Set<String> writes;
+		private Set<String> directories;
+		private List<String> symbols;
+		private List<String> changedSymbols;
+		private List<String> createdSymbols;
+		private List<String> discardedSymbols;
+		private boolean barrier;
+		private boolean textureMerge;
+
+		Access()
+		{
+			this.reads = new LinkedHashSet<>(4);
+			this.writes = new LinkedHashSet<>(4);
+			this.directories = new LinkedHashSet<>(2);
+			this.symbols = new ArrayList<>(2);
+			this.changedSymbols = new ArrayList<>(2);
+			this.createdSymbols = new ArrayList<>(1);
+			this.discardedSymbols = new ArrayList<>(1);
+			this.barrier = false;
+			this.textureMerge = false;
+		}
+
+		/**
+		 * Marks a symbol as read from.
+		 * @param symbol the symbol.
+		 */
+		void readSymbol(String symbol)
+		{
+			reads.add("symbol:" + symbol.toLowerCase());
+			symbols.add(symbol);
+		}
+
+		/**
+		 * Marks a symbol as changed.
+		 * @param symbol the symbol.
+		 */
+		void writeSymbol(String symbol)
+		{
+			writes.add("symbol:" + symbol.toLowerCase());
+			symbols.add(symbol);
+			changedSymbols.add(symbol);
+		}
+
+		/**
+		 * Marks a symbol as created (and changed).
+		 * @param symbol the symbol.
+		 */
+		void createSymbol(String symbol)
+		{
+			writeSymbol(symbol);
+			createdSymbols.add(symbol);
+		}
+
+		/**
+		 * Marks a symbol as discarded (and changed).
+		 * @param symbol the symbol.
+		 */
+		void discardSymbol(String symbol)
+		{
+			writeSymbol(symbol);
+			discardedSymbols.add(symbol);
+		}
+
+		/**
+		 * @return the symbols marked as read from or changed.
+		 */
+		List<String> getSymbols()
+		{
+			return symbols;
+		}
+
+		/**
+		 * @return the symbols marked as changed.
+		 */
+		List<String> getChangedSymbols()
+		{
+			return changedSymbols;
+		}
+
+		/**
+		 * @return the symbols marked as created.
+		 */
+		List<String> getCreatedSymbols()
+		{
+			return createdSymbols;
+		}
+
+		/**
+		 * @return the symbols marked as discarded.
+		 */
+		List<String> getDiscardedSymbols()
+		{
+			return discardedSymbols;
+		}
+
+		/**
+		 * Marks the command as one that adds to its symbol's batched texture merges,
+		 * so they do not need to be written before it runs.
+		 */
+		void textureMerge()
+		{
+			textureMerge = true;
+		}
+
+		/**
+		 * @return true if the command adds to batched texture merges.
+		 */
+		boolean isTextureMerge()
+		{
+			return textureMerge;
+		}
+
+		/**
+		 * Marks a file as read from.
+		 * @param path the file path.
+		 */
+		void readFile(String path)
+		{
+			reads.add("file:" + new File(path).getAbsolutePath());
+		}
+
+		/**
+		 * Marks a directory, and every file under it, as read from.
+		 * @param path the directory path.
+		 */
+		void readDirectory(String path)
+		{
+			directories.add(new File(path).getAbsolutePath());
+		}
+
+		/**
+		 * Marks a file as written to.
+		 * @param path the file path.
+		 */
+		void writeFile(String path)
+		{
+			writes.add("file:" + new File(path).getAbsolutePath());
+		}
+
+		/**
+		 * @return the absolute paths of the files marked as read from.
+		 */
+		List<String> getReadFiles()
+		{
+			return getFiles(reads);
+		}
+
+		/**
+		 * @return the absolute paths of the directories marked as read from.
+		 */
+		Set<String> getDirectories()
+		{
+			return directories;
+		}
+
+		/**
+		 * @return the absolute paths of the files marked as written to.
+		 */
+		List<String> getWrittenFiles()
+		{
+			return getFiles(writes);
+		}
+
+		/**
+		 * Marks the command as one that must run after everything before it,
+		 * and before everything after it.
+		 */
+		void barrier()
+		{
+			barrier = true;
+		}
+
+		// Gets the paths of the files in a set of resources.
+		private static List<String> getFiles(Set<String> resources)
+		{
+			List<String> out = new ArrayList<>(resources.size());
+			for (String resource : resources)
+			{
+				if (resource.startsWith("file:"))
+					out.add(resource.substring(5));
+			}
+			return out;
+		}
+
+		// Commands that use nothing are run just before the next command that does.
+		private boolean isEmpty()
+		{
+			return !barrier && reads.isEmpty() && writes.isEmpty() && directories.isEmpty();
+		}
+	}
+
+	/**
+	 * A set of commands that run in order, after the chains that it needs have finished.
+	 */
+	private static class Chain
+	{
+		private List<WadMergeScript.Line> statements;
+		private Set<Chain> prerequisites;
+		private boolean closed;
+		private ByteArrayOutputStream log;
+		private AsyncFactory.Instance<Boolean> instance;
+
+		private Chain(Set<Chain> prerequisites)
+		{
+			this.statements = new LinkedList<>();
+			this.prerequisites = prerequisites;
+			this.closed = false;
+			this.log = new ByteArrayOutputStream(1024);
+			this.instance = null;
+		}
+
+		// Runs the chain. Returns false if a command failed or a prerequisite chain did not finish.
+		private boolean run(String streamName, WadMergeContext context, String[] arguments, AtomicBoolean failed)
+		{
+			for (Chain chain : prerequisites)
+			{
+				if (!chain.instance.result())
+					return false;
+			}
+
+			WadMergeContext chainContext = context.withLog(new PrintStream(log, true));
+			for (WadMergeScript.Line statement : statements)
+			{
+				if (failed.get())
+					return false;
+				Boolean result = WadMergeCommand.callLine(streamName, statement, chainContext, arguments);
+				if (result == null)
+					return true;
+				if (!result)
+				{
+					failed.set(true);
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Calls a compiled script, running independent chains of commands at the same time.
+	 * @param script the compiled script.
+	 * @param streamName stream name.
+	 * @param context the WAD merge context.
+	 * @param arguments the WadMerge arguments.
+	 * @param threads the amount of threads to use.
+	 * @return true if no errors, false otherwise.
+	 */
+	static boolean call(WadMergeScript script, String streamName, WadMergeContext context, String[] arguments, int threads)
+	{
+		List<Chain> chains = plan(script, arguments);
+
+		AtomicBoolean failed = new AtomicBoolean(false);
+		AsyncFactory async = new AsyncFactory(threads);
+		try {
+			// Prerequisites are always spawned before the chains that wait on them.
+			for (Chain chain : chains)
+				chain.instance = async.spawn(() -> chain.run(streamName, context, arguments, failed));
+
+			boolean out = true;
+			for (Chain chain : chains)
+			{
+				chain.instance.join();
+				if (chain.log.size() > 0)
+					context.logf("%s", chain.log.toString());
+				if (chain.instance.getException() != null)
+				{
+					context.logf("ERROR: %s: Internal error: %s\n", streamName, chain.instance.getException().getLocalizedMessage());
+					out = false;
+				}
+				else if (!chain.instance.result())
+					out = false;
+			}
+			return out;
+		} finally {
+			async.shutDown();
+		}
+	}
+
+	// Sorts the script's commands into chains.
+	private static List<Chain> plan(WadMergeScript script, String[] arguments)
+	{
+		List<Chain> chains = new ArrayList<>();
+		Map<String, Chain> writers = new HashMap<>();
+		Map<String, Set<Chain>> readers = new HashMap<>();
+		Map<String, Set<Chain>> directoryReaders = new HashMap<>();
+		List<WadMergeScript.Line> pending = new LinkedList<>();
+		Chain lastBarrier = null;
+
+		for (WadMergeScript.Line statement : script.getLines())
+		{
+			Access access = new Access();
+			if (statement.getCommand() == WadMergeCommand.END)
+			{
+				pending.add(statement);
+				break;
+			}
+			
+			try (TokenScanner scanner = statement.scan(arguments))
+			{
+				statement.getCommand().access(scanner, access);
+			}
+			catch (RuntimeException e)
+			{
+				access.barrier(); // errors out in order
+			}
+
+			if (access.isEmpty())
+			{
+				pending.add(statement);
+				continue;
+			}
+
+			Set<Chain> prerequisites = new LinkedHashSet<>();
+			if (access.barrier)
+			{
+				prerequisites.addAll(chains);
+			}
+			else
+			{
+				for (String resource : access.writes)
+				{
+					if (writers.containsKey(resource))
+						prerequisites.add(writers.get(resource));
+					if (readers.containsKey(resource))
+						prerequisites.addAll(readers.get(resource));
+					for (Map.Entry<String, Set<Chain>> entry : directoryReaders.entrySet())
+					{
+						if (isInDirectory(resource, entry.getKey()))
+							prerequisites.addAll(entry.getValue());
+					}
+				}
+				for (String resource : access.reads)
+				{
+					if (writers.containsKey(resource))
+						prerequisites.add(writers.get(resource));
+				}
+				for (String directory : access.directories)
+				{
+					for (Map.Entry<String, Chain> entry : writers.entrySet())
+					{
+						if (isInDirectory(entry.getKey(), directory))
+							prerequisites.add(entry.getValue());
+					}
+				}
+			}
+
+			Chain chain;
+			if (!access.barrier && prerequisites.size() == 1 && !prerequisites.iterator().next().closed)
+			{
+				chain = prerequisites.iterator().next();
+			}
+			else
+			{
+				if (prerequisites.isEmpty() && lastBarrier != null)
+					prerequisites.add(lastBarrier);
+				for (Chain c : prerequisites)
+					c.closed = true;
+				chains.add(chain = new Chain(prerequisites));
+			}
+
+			chain.statements.addAll(pending);
+			chain.statements.add(statement);
+			pending.clear();
+
+			if (access.barrier)
+			{
+				chain.closed = true;
+				lastBarrier = chain;
+				writers.clear();
+				readers.clear();
+				directoryReaders.clear();
+			}
+			else
+			{
+				for (String resource : access.writes)
+				{
+					writers.put(resource, chain);
+					readers.remove(resource);
+				}
+				for (String resource : access.reads)
+					readers.computeIfAbsent(resource, (k) -> new LinkedHashSet<>()).add(chain);
+				for (String directory : access.directories)
+					directoryReaders.computeIfAbsent(directory, (k) -> new LinkedHashSet<>()).add(chain);
+			}
+		}
+
+		// Trailing commands (and END) run after everything else.
+		if (!pending.isEmpty())
+		{
+			Chain chain = new Chain(new LinkedHashSet<>(chains));
+			chain.statements.addAll(pending);
+			chains.add(chain);
+		}
+
+		return chains;
+	}
+
+	// Checks if a resource is a file under a directory.
+	private static boolean isInDirectory(String resource, String directory)
+	{
+		return resource.startsWith("file:" + directory + File.separator);
+	}
+
+}
@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.mtrop.doom.tools.common.ParseException;
+import net.mtrop.doom.tools.struct.ArgumentScanner;
+import net.mtrop.doom.tools.struct.TokenScanner;
+
+/**
+ * A compiled WadMerge script: every line is read, split into tokens, and matched to its command once.
+ * Argument references (<code>$0</code>, <code>$1</code>, ...) are kept in the tokens and are only replaced
+ * when the script is called, so a compiled script can be called many times with different arguments.
+ * <p>The most recently compiled script files are cached by path, and are reused while the file's length and
+ * modified time stay the same, so calling the same script again (like from many DoomMake targets) skips reading it again.
+ * @author Matthew Tropiano
+ */
+public final class WadMergeScript
+{
+	/** The most compiled script files kept in the cache. */
+	private static final int CACHE_SIZE = 32;
+
+	/** Compiled script files by absolute path, least recently used first. */
+	private static final Map<String, CachedScript> CACHE = new LinkedHashMap<String, CachedScript>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 2427106383472358640L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedScript> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** The script lines. */
+	private List<Line> lines;
+
+	private WadMergeScript(List<Line> lines)
+	{
+		this.lines = Collections.unmodifiableList(lines);
+	}
+
+	/**
+	 * A compiled script file, and the file length and modified time that it was compiled from.
+	 */
+	private static class CachedScript
+	{
+		private long length;
+		private long lastModified;
+		private WadMergeScript script;
+
+		private CachedScript(long length, long lastModified, WadMergeScript script)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.script = script;
+		}
+	}
+
+	/**
+	 * A single compiled command.
+	 */
+	static class Line
+	{
+		private int linenum;
+		private String line;
+		private String commandName;
+		private WadMergeCommand command;
+		private String[] tokens;
+		private boolean[] hasArguments;
+
+		private Line(int linenum, String line, String commandName, WadMergeCommand command, String[] tokens)
+		{
+			this.linenum = linenum;
+			this.line = line;
+			this.commandName = commandName;
+			this.command = command;
+			this.tokens = tokens;
+			this.hasArguments = new boolean[tokens.length];
+			for (int i = 0; i < tokens.length; i++)
+				hasArguments[i] = tokens[i].indexOf('$') >= 0;
+		}
+
+		/**
+		 * @return the line number in the source script.
+		 */
+		int getLineNumber()
+		{
+			return linenum;
+		}
+
+		/**
+		 * @return the full (trimmed) line text.
+		 */
+		String getLine()
+		{
+			return line;
+		}
+
+		/**
+		 * @return the command name as written in the script.
+		 */
+		String getCommandName()
+		{
+			return commandName;
+		}
+
+		/**
+		 * @return the command.
+		 */
+		WadMergeCommand getCommand()
+		{
+			return command;
+		}
+
+		/**
+		 * Creates a scanner for this line's command arguments, with script arguments bound to them.
+		 * @param arguments the script arguments.
+		 * @return a new scanner.
+		 */
+		TokenScanner scan(String[] arguments)
+		{
+			String[] bound = new String[tokens.length];
+			for (int i = 0; i < tokens.length; i++)
+				bound[i] = hasArguments[i] ? ArgumentScanner.replaceArguments(arguments, tokens[i]) : tokens[i];
+			return new BoundScanner(bound);
+		}
+	}
+
+	/**
+	 * A scanner over tokens that were already read.
+	 */
+	private static class BoundScanner extends TokenScanner
+	{
+		private String[] tokens;
+		private int index;
+
+		private BoundScanner(String[] tokens)
+		{
+			super(new StringReader(""));
+			this.tokens = tokens;
+			this.index = 0;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return index < tokens.length;
+		}
+
+		@Override
+		public String nextToken()
+		{
+			return index < tokens.length ? tokens[index++] : null;
+		}
+	}
+
+	/**
+	 * Compiles a script file, or fetches the compiled script if the same file was compiled before
+	 * and its length and modified time have not changed.
+	 * @param file the script file.
+	 * @return the compiled script.
+	 * @throws FileNotFoundException if the file does not exist.
+	 * @throws IOException if the file could not be read.
+	 * @throws ParseException if the script has an unknown command or a malformed token.
+	 */
+	public static WadMergeScript compile(File file) throws IOException, ParseException
+	{
+		String path = file.getAbsolutePath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		CachedScript cached;
+		synchronized (CACHE)
+		{
+			cached = CACHE.get(path);
+		}
+		// A modified time of 0 means the file could not be read.
+		if (cached != null && lastModified != 0L && cached.length == length && cached.lastModified == lastModified)
+			return cached.script;
+
+		WadMergeScript out;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file))))
+		{
+			out = compile(file.getPath(), reader);
+		}
+		synchronized (CACHE)
+		{
+			CACHE.put(path, new CachedScript(length, lastModified, out));
+		}
+		return out;
+	}
+
+	/**
+	 * Compiles a script. The result is not cached.
+	 * @param streamName the stream name (for error messages).
+	 * @param reader the reader to read the script from.
+	 * @return the compiled script.
+	 * @throws IOException if the script could not be read.
+	 * @throws ParseException if the script has an unknown command or a malformed token.
+	 */
+	public static WadMergeScript compile(String streamName, BufferedReader reader) throws IOException, ParseException
+	{
+		List<Line> lines = new ArrayList<>(64);
+		String line;
+		int linenum = 0;
+		while ((line = reader.readLine()) != null)
+		{
+			linenum++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			List<String> tokens = new ArrayList<>(8);
+			try (TokenScanner scanner = new TokenScanner(line))
+			{
+				while (scanner.hasNext())
+					tokens.add(scanner.nextString());
+			}
+			catch (TokenScanner.ParseException e)
+			{
+				throw new ParseException(String.format("%s, line %d: A token could not be parsed: %s", streamName, linenum, e.getLocalizedMessage()));
+			}
+
+			// Can't be empty - line is trimmed and not empty.
+			String commandName = tokens.remove(0);
+			WadMergeCommand command = WadMergeCommand.VALUES.get(commandName);
+			if (command == null)
+				throw new ParseException(String.format("%s, line %d: Unknown command: \"%s\".", streamName, linenum, commandName));
+
+			lines.add(new Line(linenum, line, commandName, command, tokens.toArray(new String[tokens.size()])));
+			if (command == WadMergeCommand.END)
+				break;
+		}
+		return new WadMergeScript(lines);
+	}
+
+	/**
+	 * @return the compiled lines of this script.
+	 */
+	List<Line> getLines()
+	{
+		return lines;
+	}
+
+	/**
+	 * Checks this script without executing anything. Each command is checked for missing arguments,
+	 * then, in script order, that the symbols it uses exist (or do not exist yet, for commands that create them),
+	 * and that the files and directories it reads exist or are written by a command before it.
+	 * Arguments that refer to script arguments that were not passed in are not checked.
+	 * @param streamName the stream name (for error messages).
+	 * @param context the context to log errors to.
+	 * @param arguments the WadMerge arguments.
+	 * @return true if no errors were found, false otherwise.
+	 */
+	public boolean check(String streamName, WadMergeContext context, String[] arguments)
+	{
+		boolean out = true;
+		Set<String> symbols = new HashSet<>();
+		Set<String> writtenFiles = new HashSet<>();
+		for (Line line : lines)
+		{
+			if (line.command == WadMergeCommand.END)
+				continue;
+			
+			WadMergeScheduler.Access access = new WadMergeScheduler.Access();
+			try (TokenScanner scanner = line.scan(arguments))
+			{
+				line.command.access(scanner, access);
+			}
+			catch (NoSuchElementException e)
+			{
+				context.logf("ERROR: %s, line %d: Command %s is missing an argument.\n", streamName, line.linenum, line.commandName);
+				context.logf("    %s ...?\n", line.line);
+				out = false;
+				continue;
+			}
+
+			List<String> created = access.getCreatedSymbols();
+			for (String symbol : access.getSymbols())
+			{
+				if (isUnbound(symbol))
+					continue;
+				String key = symbol.toLowerCase();
+				if (created.contains(symbol))
+				{
+					if (!symbols.add(key))
+						out = checkError(context, streamName, line, String.format("Symbol `%s` already exists.", symbol));
+				}
+				else if (!symbols.contains(key))
+				{
+					out = checkError(context, streamName, line, String.format("Symbol `%s` does not exist.", symbol));
+				}
+			}
+			for (String symbol : access.getDiscardedSymbols())
+				symbols.remove(symbol.toLowerCase());
+			
+			for (String path : access.getReadFiles())
+			{
+				if (!isUnbound(path) && !writtenFiles.contains(path) && !(new File(path)).isFile())
+					out = checkError(context, streamName, line, String.format("File `%s` does not exist.", path));
+			}
+			for (String path : access.getDirectories())
+			{
+				if (!isUnbound(path) && !isWrittenTo(writtenFiles, path) && !(new File(path)).isDirectory())
+					out = checkError(context, streamName, line, String.format("Directory `%s` does not exist.", path));
+			}
+			writtenFiles.addAll(access.getWrittenFiles());
+		}
+		return out;
+	}
+
+	// Logs a check error for a line. Always returns false.
+	private static boolean checkError(WadMergeContext context, String streamName, Line line, String message)
+	{
+		context.logf("ERROR: %s, line %d: %s\n", streamName, line.linenum, message);
+		context.logf("    %s\n", line.line);
+		return false;
+	}
+
+	// Checks if a token still has an argument reference that was not replaced.
+	private static boolean isUnbound(String token)
+	{
+		return token.indexOf('$') >= 0;
+	}
+
+	// Checks if a file is written to under a directory.
+	private static boolean isWrittenTo(Set<String> writtenFiles, String directory)
+	{
+		String prefix = directory + File.separator;
+		for (String path : writtenFiles)
+		{
+			if (path.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Calls this script, one command at a time.
+	 * @param streamName the stream name (for error messages).
+	 * @param context the WAD merge context.
+	 * @param arguments the WadMerge arguments.
+	 * @return true if no errors, false otherwise.
+	 */
+	public boolean call(String streamName, WadMergeContext context, String[] arguments)
+	{
+		for (Line line : lines)
+		{
+			Boolean result = WadMergeCommand.callLine(streamName, line, context, arguments);
+			if (result == null)
+				return true;
+			if (!result)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calls this script, running commands that work on different symbols and files
+	 * at the same time, if more than one thread is requested.
+	 * Output from each set of dependent commands is grouped together.
+	 * @param streamName the stream name (for error messages).
+	 * @param context the WAD merge context.
+	 * @param arguments the WadMerge arguments.
+	 * @param threads the amount of threads to use. If 1 or less, this runs the script one line at a time.
+	 * @return true if no errors, false otherwise.
+	 */
+	public boolean call(String streamName, WadMergeContext context, String[] arguments, int threads)
+	{
+		if (threads <= 1)
+			return call(streamName, context, arguments);
+		return WadMergeScheduler.call(this, streamName, context, arguments, threads);
+	}
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.mtrop.doom.texture.CommonPatch;
+import net.mtrop.doom.texture.CommonTexture;
+import net.mtrop.doom.texture.CommonTextureList;
+import net.mtrop.doom.texture.DoomTextureList;
+import net.mtrop.doom.texture.PatchNames;
+import net.mtrop.doom.texture.StrifeTextureList;
+import net.mtrop.doom.texture.TextureSet;
+
+/**
+ * The texture merges for one symbol, kept until they are written out all at once.
+ * Each texture entry (like TEXTURE1 and TEXTURE2) has its own texture set, and all of them share one PNAMES.
+ * On export, patch names are found through a hash index instead of a search through PNAMES for every patch.
+ * @author Matthew Tropiano
+ */
+class WadMergeTextures
+{
+	/** The shared patch names. */
+	private PatchNames patchNames;
+	/** Texture entries, in the order that they were first merged into. */
+	private Map<String, Entry> entries;
+
+	/**
+	 * Creates a new set of texture merges.
+	 * @param patchNames the starting patch names.
+	 */
+	WadMergeTextures(PatchNames patchNames)
+	{
+		this.patchNames = patchNames;
+		this.entries = new LinkedHashMap<>(4);
+	}
+
+	/**
+	 * A texture entry's textures.
+	 */
+	private static class Entry
+	{
+		private boolean strife;
+		private TextureSet textureSet;
+
+		private Entry(boolean strife, TextureSet textureSet)
+		{
+			this.strife = strife;
+			this.textureSet = textureSet;
+		}
+	}
+
+	/**
+	 * Gets the texture set for a texture entry.
+	 * @param entryName the texture entry name.
+	 * @return the texture set, or null if the entry has not been added.
+	 */
+	TextureSet getTextureSet(String entryName)
+	{
+		Entry entry;
+		return (entry = entries.get(entryName)) != null ? entry.textureSet : null;
+	}
+
+	/**
+	 * Adds a texture entry, starting with its current textures.
+	 * @param entryName the texture entry name.
+	 * @param strife if true, the entry is exported in Strife format.
+	 * @param textureList the starting texture list.
+	 * @return the new texture set for the entry.
+	 */
+	TextureSet addTextureSet(String entryName, boolean strife, CommonTextureList<?> textureList)
+	{
+		TextureSet out = new TextureSet(patchNames, textureList);
+		entries.put(entryName, new Entry(strife, out));
+		return out;
+	}
+
+	/**
+	 * @return the shared patch names. Complete after {@link #export()}.
+	 */
+	PatchNames getPatchNames()
+	{
+		return patchNames;
+	}
+
+	/**
+	 * Exports every texture set to a new texture list, and adds any new patch names to the shared patch names.
+	 * @return a map of texture entry name to texture list, in the order that the entries were added.
+	 */
+	Map<String, CommonTextureList<?>> export()
+	{
+		Map<String, Integer> patchIndex = new HashMap<>(patchNames.size() * 2);
+		for (int i = 0; i < patchNames.size(); i++)
+			patchIndex.putIfAbsent(patchNames.get(i), i);
+
+		Map<String, CommonTextureList<?>> out = new LinkedHashMap<>(4);
+		for (Map.Entry<String, Entry> pair : entries.entrySet())
+		{
+			Entry entry = pair.getValue();
+			if (entry.strife)
+			{
+				StrifeTextureList list = new StrifeTextureList(128);
+				export(entry.textureSet, patchIndex, list);
+				out.put(pair.getKey(), list);
+			}
+			else
+			{
+				DoomTextureList list = new DoomTextureList(128);
+				export(entry.textureSet, patchIndex, list);
+				out.put(pair.getKey(), list);
+			}
+		}
+		return out;
+	}
+
+	// Exports a texture set, adding patch names that are not in the index.
+	private <P extends CommonPatch, T extends CommonTexture<P>> void export(TextureSet textureSet, Map<String, Integer> patchIndex, CommonTextureList<T> textureList)
+	{
+		for (TextureSet.Texture texture : textureSet)
+		{
+			T exported = textureList.createTexture(texture.getName());
+			exported.setWidth(texture.getWidth());
+			exported.setHeight(texture.getHeight());
+			for (TextureSet.Patch patch : texture)
+			{
+				Integer index;
+				if ((index = patchIndex.get(patch.getName())) == null)
+				{
+					patchNames.add(patch.getName());
+					patchIndex.put(patch.getName(), index = patchNames.size() - 1);
+				}
+				P exportedPatch = exported.createPatch();
+				exportedPatch.setPatchIndex(index);
+				exportedPatch.setOriginX(patch.getOriginX());
+				exportedPatch.setOriginY(patch.getOriginY());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2020-2021 Matt Tropiano
+ * This program and the accompanying materials are made available under
+ * the terms of the MIT License, which accompanies this distribution.
+ ******************************************************************************/
+package net.mtrop.doom.tools.wadmerge;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.mtrop.doom.Wad;
+import net.mtrop.doom.WadBuffer;
+import net.mtrop.doom.WadEntry;
+import net.mtrop.doom.WadFile;
+
+/**
+ * A buffer that is an open WAD, in memory or in a file.
+ * Entry data is read as entries are added. While many entries are added to a WAD file,
+ * they are added through one adder, so that its directory is only written once.
+ * @author Matthew Tropiano
+ */
+class WadMergeWad implements WadMergeBuffer
+{
+	/** The WAD. */
+	private Wad wad;
+	/** If true, entries are being added all at once. */
+	private boolean adding;
+	/** The open adder for a WAD file, if adding. */
+	private WadFile.Adder adder;
+
+	/**
+	 * Creates a new buffer.
+	 * @param wad the WAD.
+	 */
+	WadMergeWad(Wad wad)
+	{
+		this.wad = wad;
+		this.adding = false;
+		this.adder = null;
+	}
+
+	@Override
+	public File getTargetFile()
+	{
+		return wad instanceof WadFile ? new File(((WadFile)wad).getFilePath()) : null;
+	}
+
+	@Override
+	public boolean isIWAD()
+	{
+		return wad.isIWAD();
+	}
+
+	@Override
+	public boolean isModified()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isPlanned()
+	{
+		return false;
+	}
+
+	@Override
+	public int getEntryCount()
+	{
+		return wad.getEntryCount();
+	}
+
+	@Override
+	public String getEntryName(int index)
+	{
+		return wad.getEntry(index).getName();
+	}
+
+	@Override
+	public int indexOf(String name)
+	{
+		return wad.indexOf(name);
+	}
+
+	@Override
+	public int lastIndexOf(String name)
+	{
+		return wad.lastIndexOf(name);
+	}
+
+	@Override
+	public byte[] getData(int index) throws IOException
+	{
+		closeAdder();
+		return wad.getData(index);
+	}
+
+	@Override
+	public void startAdding() throws IOException
+	{
+		adding = true;
+	}
+
+	@Override
+	public void finishAdding() throws IOException
+	{
+		adding = false;
+		closeAdder();
+	}
+
+	@Override
+	public void addDataAt(int index, String name, byte[] data) throws IOException
+	{
+		WadFile.Adder adder;
+		if ((adder = getAdder()) != null)
+			adder.addDataAt(index, name, data);
+		else
+			wad.addDataAt(index, name, data);
+	}
+
+	@Override
+	public void addFileAt(int index, String name, File file) throws IOException
+	{
+		WadFile.Adder adder;
+		if ((adder = getAdder()) != null)
+			adder.addDataAt(index, name, file);
+		else
+			wad.addDataAt(index, name, file);
+	}
+
+	@Override
+	public void addWadEntryAt(int index, String name, WadFile wad, WadEntry wadEntry) throws IOException
+	{
+		addDataAt(index, name, wad.getData(wadEntry));
+	}
+
+	@Override
+	public void addEntryAt(int index, String name, WadMergeBuffer source, int sourceIndex) throws IOException
+	{
+		addDataAt(index, name, source.getData(sourceIndex));
+	}
+
+	@Override
+	public void replaceData(int index, byte[] data) throws IOException
+	{
+		closeAdder();
+		wad.replaceEntry(index, data);
+	}
+
+	@Override
+	public void deleteEntry(int index) throws IOException
+	{
+		closeAdder();
+		wad.deleteEntry(index);
+	}
+
+	@Override
+	public void detach(File file)
+	{
+		// Nothing is read from other files later.
+	}
+
+	@Override
+	public WadMergePlan toPlan() throws IOException
+	{
+		closeAdder();
+		WadMergePlan plan = new WadMergePlan(null, wad.isIWAD());
+		plan.addWad(wad);
+		return plan;
+	}
+
+	@Override
+	public void writeTo(File outFile) throws IOException
+	{
+		closeAdder();
+		if (wad instanceof WadBuffer)
+		{
+			((WadBuffer)wad).writeToFile(outFile);
+		}
+		else try (WadFile wf = WadFile.extract(outFile, wad, 0, wad.getEntryCount()))
+		{
+			wf.setType(wad.getType());
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			closeAdder();
+		} finally {
+			wad.close();
+		}
+	}
+
+	// Gets the adder to add through, opening one if adding to a WAD file, or null if none.
+	private WadFile.Adder getAdder() throws IOException
+	{
+		if (adding && adder == null && wad instanceof WadFile)
+			adder = ((WadFile)wad).createAdder();
+		return adder;
+	}
+
+	// Closes the open adder, if any, so that the WAD file can be read or changed.
+	private void closeAdder() throws IOException
+	{
+		if (adder == null)
+			return;
+		try {
+			adder.close();
+		} finally {
+			adder = null;
+		}
+	}
+
+}
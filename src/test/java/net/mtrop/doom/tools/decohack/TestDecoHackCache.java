@@ -0,0 +1,257 @@
+package net.mtrop.doom.tools.decohack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import net.mtrop.doom.tools.decohack.contexts.AbstractPatchContext;
+
+public final class TestDecoHackCache
+{
+	private static final int BLOCKS = 60;
+
+	private static File dir;
+	private static File mainFile;
+	private static File includeFile;
+	private static File cacheFile;
+	private static List<File> files;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException
+	{
+		dir = new File(System.getProperty("java.io.tmpdir"), "decohack-cache-test-" + System.nanoTime());
+		dir.mkdirs();
+		mainFile = new File(dir, "main.dh");
+		includeFile = new File(dir, "inc.dh");
+		cacheFile = new File(dir, "cache.bin");
+		files = Arrays.asList(mainFile);
+
+		try {
+			seed();
+			check("unchanged", true);
+			check("unchanged, again", true);
+
+			seed();
+			writeMain(BLOCKS, 1, 1);
+			check("edit at start", false);
+			writeMain(BLOCKS, 1, 2);
+			check("edit at start, again", false);
+
+			seed();
+			writeMain(BLOCKS, BLOCKS / 2, 1);
+			check("edit in middle", false);
+			writeMain(BLOCKS, BLOCKS / 2, 2);
+			check("edit in middle, again", false);
+
+			seed();
+			writeMain(BLOCKS, BLOCKS - 2, 1);
+			check("edit at end", false);
+			writeMain(BLOCKS, BLOCKS - 2, 2);
+			check("edit at end, again", false);
+			check("edit at end, unchanged", false);
+
+			seed();
+			writeMain(BLOCKS + 2, -1, 0);
+			check("appended blocks", true);
+			writeMain(BLOCKS + 4, -1, 0);
+			check("appended blocks, again", true);
+
+			// The last block could go on, so the parser looked at the end, and blocks can't be added after it.
+			seed();
+			String main = new String(Files.readAllBytes(mainFile.toPath()), StandardCharsets.UTF_8);
+			writeFile(mainFile, main + "state free 400\n");
+			cacheFile.delete();
+			buildCached();
+			writeFile(mainFile, main + "state free 400 to 410\n");
+			check("appended to the last block", false);
+
+			seed();
+			writeFile(mainFile, new String(Files.readAllBytes(mainFile.toPath()), StandardCharsets.UTF_8) + "\n\n");
+			check("whitespace only", true);
+			check("whitespace only, unchanged", true);
+
+			seed();
+			setFileTimes(-60000L);
+			buildCached();
+			setFileTimes(-30000L);
+			check("touched only", true);
+			check("touched only, unchanged", true);
+			writeInclude(66);
+			setFileTimes(-20000L);
+			check("touched and changed, same length", false);
+
+			seed();
+			writeInclude(88);
+			check("include only", false);
+			writeInclude(99);
+			check("include only, again", false);
+
+			seed();
+			writeFile(cacheFile, "DECOHack Compile Cache, but not really.");
+			check("corrupt cache", false);
+
+			seed();
+			byte[] truncated = Arrays.copyOf(Files.readAllBytes(cacheFile.toPath()), (int)(cacheFile.length() / 2));
+			Files.write(cacheFile.toPath(), truncated);
+			check("truncated cache", false);
+
+			seed();
+			writeMain(BLOCKS / 2, 3, 7);
+			buildCached();
+			writeMain(BLOCKS, -1, 0);
+			writeInclude(77);
+			check("stale cache from other sources", false);
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+
+		System.out.println(failures == 0 ? "All cases match." : failures + " case(s) did not match.");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	// Writes the starting sources and builds them once with a fresh cache.
+	private static void seed() throws IOException
+	{
+		cacheFile.delete();
+		writeInclude(77);
+		writeMain(BLOCKS, -1, 0);
+		buildCached();
+	}
+
+	// Builds with the cache, compares the result to a clean build, and checks if a snapshot was restored.
+	private static void check(String name, boolean expectRestored) throws IOException
+	{
+		int restores = DecoHackCache.RESTORE_COUNT.get();
+		String cached = buildCached();
+		boolean restored = DecoHackCache.RESTORE_COUNT.get() != restores;
+		String clean = toPatch(DecoHackParser.read(files));
+		if (!cached.equals(clean))
+		{
+			System.out.println("FAILED: " + name);
+			failures++;
+		}
+		else if (restored != expectRestored)
+		{
+			System.out.println("FAILED: " + name + (restored ? ": restored a snapshot, but expected not to" : ": did not restore a snapshot"));
+			failures++;
+		}
+		else
+		{
+			System.out.println("OK: " + name + (restored ? " (restored)" : ""));
+		}
+	}
+
+	private static String buildCached() throws IOException
+	{
+		return toPatch(DecoHackParser.read(files, cacheFile));
+	}
+
+	private static String toPatch(AbstractPatchContext<?> context) throws IOException
+	{
+		StringWriter writer = new StringWriter();
+		context.writePatch(writer, "Test");
+		return writer.toString();
+	}
+
+	private static void writeInclude(int health) throws IOException
+	{
+		writeFile(includeFile,
+			"#define HP " + health + "\n" +
+			"thing 20 \"Inc Thing\"\n" +
+			"{\n" +
+			"\thealth HP\n" +
+			"}\n"
+		);
+	}
+
+	// Writes the main file, with a block changed by a variant.
+	private static void writeMain(int blocks, int changedBlock, int variant) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("#include <mbf21>\n");
+		sb.append("#include \"inc.dh\"\n");
+		sb.append("thing free 151 to 250\n");
+		for (int i = 0; i < blocks; i++)
+			sb.append(block(i, i == changedBlock ? variant : 0));
+		writeFile(mainFile, sb.toString());
+	}
+
+	private static String block(int i, int variant)
+	{
+		switch (i % 3)
+		{
+			case 0:
+				return String.format(
+					"//$Category Monsters%d\n" +
+					"auto thing Imp%d : thing 12 \"Imp %d\"\n" +
+					"{\n" +
+					"\thealth %d\n" +
+					"\tstates\n" +
+					"\t{\n" +
+					"\tspawn:\n" +
+					"\t\tTROO AB 10 A_Look\n" +
+					"\t\tloop\n" +
+					"\tsee:\n" +
+					"\t\tTROO CD %d A_Chase\n" +
+					"\t\tgoto spawn\n" +
+					"\t}\n" +
+					"}\n",
+					i, i, i, 100 + i + variant, 2 + (i + variant) % 5
+				);
+			case 1:
+				return String.format(
+					"thing %d\n" +
+					"{\n" +
+					"\thealth %d\n" +
+					"\tstates\n" +
+					"\t{\n" +
+					"\tspawn:\n" +
+					"\t\tPOSS A 10 A_Look\n" +
+					"\t\tPOSS B %d A_Look\n" +
+					"\t\tloop\n" +
+					"\t}\n" +
+					"}\n",
+					2 + i % 60, 50 + i + variant, 10 + variant
+				);
+			default:
+				return String.format(
+					"weapon %d\n" +
+					"{\n" +
+					"\tstates\n" +
+					"\t{\n" +
+					"\tready:\n" +
+					"\t\tPISG A %d A_WeaponReady\n" +
+					"\t\tloop\n" +
+					"\t}\n" +
+					"}\n",
+					i % 8, 1 + variant
+				);
+		}
+	}
+
+	// Sets the modified times of the sources to a time from now, so that the cache trusts them.
+	private static void setFileTimes(long fromNow)
+	{
+		long time = System.currentTimeMillis() + fromNow;
+		mainFile.setLastModified(time);
+		includeFile.setLastModified(time);
+	}
+
+	private static void writeFile(File file, String content) throws IOException
+	{
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+		{
+			writer.write(content);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package net.mtrop.doom.tools.decohack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.mtrop.doom.tools.struct.Lexer.Token;
+import net.mtrop.doom.tools.struct.PreprocessorLexer.PreprocessorException;
+import net.mtrop.doom.tools.struct.util.IOUtils;
+
+public final class TestDecoHackTokens
+{
+	private static final String[] BUILT_INS = {
+		"doom19", "udoom19", "doomunity", "boom", "mbf", "extended", "mbf21", "dsdhacked", "constants/friendly_things"
+	};
+
+	private static File dir;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws IOException
+	{
+		dir = new File(System.getProperty("java.io.tmpdir"), "decohack-tokens-test-" + System.nanoTime());
+		dir.mkdirs();
+
+		try {
+			for (String name : BUILT_INS)
+				check("built-in " + name, true, "classpath:decohack/" + name + ".dh");
+
+			for (String name : Arrays.asList("doom19", "boom", "mbf21", "dsdhacked"))
+			{
+				String template = new String(readResource("doommake/decohack/main.dh"), StandardCharsets.UTF_8);
+				check("doommake template for " + name, true, writeFile("main-" + name + ".dh", template.replace("{{DECOHACK_BASE}}", name)));
+			}
+
+			writeFile("macros.dh",
+				"#define HP 100\n" +
+				"#define TWICE HP HP\n" +
+				"#define NAME \"Macro Thing\"\n" +
+				"thing 1 NAME\n" +
+				"{\n" +
+				"\thealth HP // comment\n" +
+				"\tspeed TWICE\n" +
+				"\t/* block\n" +
+				"\t   comment */\n" +
+				"}\n" +
+				"#undefine HP\n" +
+				"thing 2 { health HP }\n"
+			);
+			check("macros and comments", true, writeFile("main.dh", "#include <mbf21>\n#include \"macros.dh\"\n"));
+
+			check("token split by a directive", false, writeFile("split.dh",
+				"/* a comment\n" +
+				"#define SPLIT 5\n" +
+				"that goes on */\n" +
+				"thing 1 { health SPLIT }\n"
+			));
+
+			check("macro followed by a directive", false, writeFile("hash.dh",
+				"#define HP 100\n" +
+				"thing 1\n" +
+				"{\n" +
+				"\thealth HP #define OTHER 5\n" +
+				"}\n"
+			));
+
+			writeFile("leading.dh",
+				"#define HP 7\n" +
+				"thing 2 { health HP }\n"
+			);
+			check("include directive at the end without a newline", false, writeFile("midline.dh",
+				"thing 1 { health 5 }\n" +
+				"#include \"leading.dh\""
+			));
+
+			writeFile("trailing.dh",
+				"#define HP 8\n" +
+				"thing 3 { health HP"
+			);
+			check("include without a newline at its end", true, writeFile("midline2.dh",
+				"#include \"trailing.dh\"\n" +
+				"}\n" +
+				"thing 4 { health HP }\n"
+			));
+
+			check("missing include", false, writeFile("missing.dh",
+				"thing 1 { health 5 }\n" +
+				"#include \"not-a-file.dh\"\n" +
+				"thing 2 { health 6 }\n"
+			));
+
+			check("unresolved include", false, writeFile("unresolved.dh",
+				"thing 1 { health 5 }\n" +
+				"#include <not-a-built-in>\n" +
+				"thing 2 { health 6 }\n"
+			));
+
+			check("bad directive", true, writeFile("bad.dh",
+				"thing 1 { health 5 }\n" +
+				"#notadirective\n" +
+				"thing 2 { health 6 }\n"
+			));
+
+			writeFile("nested-inc.dh",
+				"#ifdef B\n" +
+				"thing 10 { health 10 }\n" +
+				"#else\n" +
+				"thing 11 { health 11 }\n" +
+				"#endif\n"
+			);
+			check("nested if", true, writeFile("nested.dh",
+				"#define A\n" +
+				"#ifdef A\n" +
+				"thing 1 { health 1 }\n" +
+				"#ifndef B\n" +
+				"thing 2 { health 2 }\n" +
+				"#define B\n" +
+				"#else\n" +
+				"thing 3 { health 3 }\n" +
+				"#endif\n" +
+				"#ifdef B\n" +
+				"#include \"nested-inc.dh\"\n" +
+				"#undefine B\n" +
+				"#endif\n" +
+				"#include \"nested-inc.dh\"\n" +
+				"#else\n" +
+				"thing 5 { health 5 }\n" +
+				"#endif\n" +
+				"thing 6 { health 6 }\n"
+			));
+
+			check("several files", true,
+				new File(dir, "macros.dh").getPath(),
+				new File(dir, "nested.dh").getPath()
+			);
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+
+		System.out.println(failures == 0 ? "All cases match." : failures + " case(s) did not match.");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	// Reads the resources as streams and as tokens, and compares every token and any error.
+	private static void check(String name, boolean expectTokenized, String... paths) throws IOException
+	{
+		List<String> pathList = Arrays.asList(paths);
+
+		List<Token> streamTokens = new ArrayList<>();
+		String streamError = read(pathList, false, streamTokens);
+
+		List<Token> tokenizedTokens = new ArrayList<>();
+		String tokenizedError;
+		boolean tokenized;
+		try {
+			tokenized = DecoHackParser.readTokens(pathList, true, tokenizedTokens);
+			tokenizedError = null;
+		} catch (PreprocessorException e) {
+			tokenized = true;
+			tokenizedError = e.getMessage();
+		}
+
+		String problem = null;
+		if (tokenized != expectTokenized)
+			problem = tokenized ? "read as tokens, but expected to be read as streams" : "read as streams, but expected to be read as tokens";
+		else if (tokenized)
+			problem = compare(streamTokens, streamError, tokenizedTokens, tokenizedError);
+
+		if (problem == null)
+		{
+			System.out.println("OK: " + name + (tokenized ? " (" + streamTokens.size() + " tokens)" : " (read as streams)"));
+		}
+		else
+		{
+			System.out.println("FAILED: " + name + ": " + problem);
+			failures++;
+		}
+	}
+
+	// Reads tokens, and returns the error message, if any.
+	private static String read(List<String> paths, boolean tokenized, List<Token> out) throws IOException
+	{
+		try {
+			DecoHackParser.readTokens(paths, tokenized, out);
+			return null;
+		} catch (PreprocessorException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static String compare(List<Token> expected, String expectedError, List<Token> actual, String actualError)
+	{
+		for (int i = 0; i < Math.min(expected.size(), actual.size()); i++)
+		{
+			Token e = expected.get(i);
+			Token a = actual.get(i);
+			if (!e.getStreamName().equals(a.getStreamName())
+				|| e.getType() != a.getType()
+				|| !e.getLexeme().equals(a.getLexeme())
+				|| e.getLineNumber() != a.getLineNumber()
+				|| e.getCharIndex() != a.getCharIndex()
+			)
+				return "token " + i + " is " + describe(a) + ", expected " + describe(e);
+		}
+		if (expected.size() != actual.size())
+			return actual.size() + " tokens, expected " + expected.size();
+		if (expectedError == null ? actualError != null : !expectedError.equals(actualError))
+			return "error \"" + actualError + "\", expected \"" + expectedError + "\"";
+		return null;
+	}
+
+	private static String describe(Token token)
+	{
+		return String.format("(%s) line %d, char %d, type %d \"%s\"",
+			token.getStreamName(), token.getLineNumber(), token.getCharIndex(), token.getType(), token.getLexeme()
+		);
+	}
+
+	private static byte[] readResource(String path) throws IOException
+	{
+		try (InputStream in = ClassLoader.getSystemResourceAsStream(path))
+		{
+			if (in == null)
+				throw new IOException("Missing resource: " + path);
+			return IOUtils.getBinaryContents(in);
+		}
+	}
+
+	private static String writeFile(String name, String content) throws IOException
+	{
+		File file = new File(dir, name);
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+		{
+			writer.write(content);
+		}
+		return file.getPath();
+	}
+}